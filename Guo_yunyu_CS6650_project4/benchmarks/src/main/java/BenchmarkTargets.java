@@ -0,0 +1,372 @@
+import bench.Targets;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// The store's side of bench.Targets: plain calls into the classes under benchmark
+public class BenchmarkTargets implements Targets.Factory {
+  private static final int BASE_PORT = Integer.getInteger("bench.basePort", 6201);
+
+  public BenchmarkTargets() throws Exception {
+    Logger.getLogger("").setLevel(Level.SEVERE); // elections and shutdowns in the cluster benchmarks log warnings
+    LocalCluster.useTemporaryDataDir();
+  }
+
+  @Override
+  public Targets.Acceptor acceptor() {
+    Acceptor acceptor = new Acceptor(null);
+    return new Targets.Acceptor() {
+      @Override
+      public byte[] prepare(long ballot, long fromSlot) {
+        return acceptor.prepare(ballot, fromSlot);
+      }
+
+      @Override
+      public byte[] accept(long ballot, long slot, byte[] value) {
+        return acceptor.accept(ballot, slot, value);
+      }
+    };
+  }
+
+  @Override
+  public Targets.Learner learner() {
+    Learner learner = new Learner(null);
+    return new Targets.Learner() {
+      @Override
+      public void learn(long slot, byte[] value) {
+        learner.learn(slot, value);
+      }
+
+      @Override
+      public void release(long slot) {
+        learner.release(slot);
+      }
+    };
+  }
+
+  @Override
+  public Targets.Commands commands(int batchSize) {
+    List<Command> batch = new ArrayList<>();
+    for (int i = 0; i < batchSize; i++) {
+      batch.add(Command.put("key" + i, "value-" + i + "-0123456789"));
+    }
+    byte[] encoded = PaxosCodec.encodeCommands(batch);
+    StorageEngine store = StorageEngine.create();
+    return new Targets.Commands() {
+      @Override
+      public byte[] encode() {
+        return PaxosCodec.encodeCommands(batch);
+      }
+
+      @Override
+      public List<?> decode() {
+        return PaxosCodec.decodeCommands(encoded);
+      }
+
+      @Override
+      public boolean apply() {
+        return Server.applyTo(store, encoded);
+      }
+    };
+  }
+
+  @Override
+  public Targets.Promise promise(int slots) {
+    byte[] value = PaxosCodec.encodeCommands(List.of(Command.put("key", "value-0123456789")));
+    Map<Long, AcceptedEntry> accepted = new TreeMap<>();
+    for (long slot = 0; slot < slots; slot++) {
+      accepted.put(slot, new AcceptedEntry(100 + slot, value));
+    }
+    byte[] encoded = PaxosCodec.encodePromise(accepted);
+    return new Targets.Promise() {
+      @Override
+      public byte[] encode() {
+        return PaxosCodec.encodePromise(accepted);
+      }
+
+      @Override
+      public Map<?, ?> decode() {
+        return PaxosCodec.decodePromise(encoded);
+      }
+    };
+  }
+
+  @Override
+  public Targets.Wal wal(boolean groupCommit) throws Exception {
+    File dir = Files.createTempDirectory("wal-bench").toFile();
+    WriteAheadLog wal = new WriteAheadLog(dir, groupCommit);
+    return new Targets.Wal() {
+      @Override
+      public void syncedAccept(long slot, byte[] value) throws Exception {
+        wal.sync(wal.append(WriteAheadLog.ACCEPT, WriteAheadLog.accept(slot, 1, value)));
+      }
+
+      @Override
+      public long fsyncs() {
+        return wal.getFsyncCount();
+      }
+
+      @Override
+      public void close() throws Exception {
+        wal.close();
+        deleteRecursively(dir);
+      }
+    };
+  }
+
+  @Override
+  public Targets.Recovery recovery(int slots) throws Exception {
+    File dir = Files.createTempDirectory("wal-recovery").toFile();
+    WriteAheadLog wal = new WriteAheadLog(dir, true);
+    byte[] command = PaxosCodec.encodeCommands(List.of(Command.put("key", "value-0123456789")));
+    for (int slot = 0; slot < slots; slot++) {
+      wal.append(WriteAheadLog.ACCEPT, WriteAheadLog.accept(slot, 1, command));
+      wal.append(WriteAheadLog.DECIDE, WriteAheadLog.decide(slot, command));
+    }
+    wal.close();
+    StorageEngine store = StorageEngine.create();
+    for (int i = 0; i < slots; i++) {
+      store.put("key" + i, "value-0123456789");
+    }
+    Snapshot.write(dir, slots - 1, store);
+    return new Targets.Recovery() {
+      @Override
+      public long replay() throws Exception {
+        long[] records = new long[1];
+        WriteAheadLog.replay(dir, (type, payload) -> records[0]++);
+        return records[0];
+      }
+
+      @Override
+      public int loadSnapshot() throws Exception {
+        return Snapshot.read(dir).store.size();
+      }
+
+      @Override
+      public void delete() throws Exception {
+        deleteRecursively(dir);
+      }
+    };
+  }
+
+  @Override
+  public Targets.Engine engine(String kind, int keys, int valueSize) throws Exception {
+    System.setProperty("paxos.store.engine", kind);
+    String filler = "v".repeat(Math.max(0, valueSize - 8));
+    long baseline = settledHeap();
+    StorageEngine store = StorageEngine.create();
+    for (int i = 0; i < keys; i++) {
+      store.put(String.format("user%010d", i), filler + String.format("%08d", i));
+    }
+    if (store instanceof CompactStore) {
+      ((CompactStore) store).flush(); // measure the settled layout, not a memtable mid-merge
+    }
+    double bytesPerEntry = (double) (settledHeap() - baseline) / keys;
+    String[] loaded = new String[keys];
+    for (int i = 0; i < keys; i++) {
+      loaded[i] = String.format("user%010d", i);
+    }
+    return new Targets.Engine() {
+      @Override
+      public String key(int i) {
+        return loaded[i];
+      }
+
+      @Override
+      public String get(String key) {
+        return store.get(key);
+      }
+
+      @Override
+      public void put(String key, String value) {
+        store.put(key, value);
+      }
+
+      @Override
+      public void remove(String key) {
+        store.remove(key);
+      }
+
+      @Override
+      public long scan() {
+        long entries = 0;
+        for (Iterator<Map.Entry<String, String>> scan = store.scan("", true); scan.hasNext(); scan.next()) {
+          entries++;
+        }
+        return entries;
+      }
+
+      @Override
+      public double bytesPerEntry() {
+        return bytesPerEntry;
+      }
+    };
+  }
+
+  private static long settledHeap() throws InterruptedException {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+      Thread.sleep(100);
+    }
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  @Override
+  public Targets.Store store(int keys) throws Exception {
+    LocalCluster single = new LocalCluster(1, BASE_PORT);
+    single.start();
+    Server server = single.servers().get(0);
+    for (int loaded = 0; loaded < keys; ) {
+      HashMap<String, String> page = new HashMap<>();
+      for (int n = loaded; n < Math.min(keys, loaded + Server.MAX_MULTI_KEYS); n++) {
+        page.put(String.format("key%07d", n), "value-" + n);
+      }
+      server.multiPut(page);
+      loaded += page.size();
+    }
+    return new Targets.Store() {
+      @Override
+      public String getAll() throws Exception {
+        return server.getAll();
+      }
+
+      @Override
+      public void shutdown() {
+        single.shutdown();
+      }
+    };
+  }
+
+  @Override
+  public Targets.Cluster cluster(int servers) throws Exception {
+    LocalCluster cluster = new LocalCluster(servers, BASE_PORT + 10);
+    cluster.start();
+    List<Server> running = cluster.servers();
+    return new Targets.Cluster() {
+      @Override
+      public int size() {
+        return running.size();
+      }
+
+      @Override
+      public String put(int server, String key, String value) throws Exception {
+        return running.get(server).put(key, value);
+      }
+
+      @Override
+      public void shutdown() {
+        cluster.shutdown();
+      }
+    };
+  }
+
+  @Override
+  public Targets.Clients clients(int servers) throws Exception {
+    int basePort = BASE_PORT + 20;
+    LocalCluster cluster = new LocalCluster(servers, basePort);
+    cluster.start();
+    String[] hosts = new String[servers];
+    int[] ports = new int[servers];
+    for (int i = 0; i < servers; i++) {
+      hosts[i] = "localhost";
+      ports[i] = basePort + i;
+    }
+    ShardMap shards = ShardMap.connect(hosts, ports, 1);
+    KeyValueRPC[] replicas = shards.replicas(0);
+    SmartClient routed = new SmartClient(shards, false);
+    SmartClient hedged = new SmartClient(shards, true);
+    return new Targets.Clients() {
+      @Override
+      public int size() {
+        return replicas.length;
+      }
+
+      @Override
+      public void putTo(int replica, String key, String value) throws Exception {
+        succeeded(replicas[replica].put(key, value));
+      }
+
+      @Override
+      public String getFrom(int replica, String key) throws Exception {
+        return found(replicas[replica].get(key));
+      }
+
+      @Override
+      public void putRouted(String key, String value) throws Exception {
+        succeeded(routed.put(key, value));
+      }
+
+      @Override
+      public String getHedged(String key) throws Exception {
+        return found(hedged.get(key));
+      }
+
+      @Override
+      public void putAllAsync(int from, int count) {
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int n = from; n < from + count; n++) {
+          results.add(routed.putAsync("key" + n, "value" + n));
+        }
+        for (CompletableFuture<String> result : results) {
+          succeeded(result.join());
+        }
+      }
+
+      @Override
+      public void multiPutAsync(int from, int count) {
+        HashMap<String, String> batch = new HashMap<>();
+        for (int n = from; n < from + count; n++) {
+          batch.put("key" + n, "value" + n);
+        }
+        succeeded(routed.multiPutAsync(batch).join());
+      }
+
+      @Override
+      public String stats() {
+        return "routed " + routed.getStats() + "; hedged " + hedged.getStats();
+      }
+
+      @Override
+      public void shutdown() {
+        routed.shutdown();
+        hedged.shutdown();
+        cluster.shutdown();
+      }
+    };
+  }
+
+  private static void succeeded(String reply) {
+    if (!reply.startsWith("SUCCESS")) {
+      throw new IllegalStateException(reply);
+    }
+  }
+
+  private static String found(String reply) {
+    if (reply.startsWith("ERROR")) {
+      throw new IllegalStateException(reply);
+    }
+    return reply;
+  }
+
+  @Override
+  public byte[] encodePut(String key, String value) {
+    return PaxosCodec.encodeCommands(List.of(Command.put(key, value)));
+  }
+
+  private static void deleteRecursively(File dir) throws IOException {
+    for (File f : dir.listFiles()) {
+      Files.delete(f.toPath());
+    }
+    Files.delete(dir.toPath());
+  }
+}
@@ -0,0 +1,66 @@
+package bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Acceptor.accept and Acceptor.prepare on one thread, and contended by four. Accepts land in a bounded
+// window of slots under one ballot; each prepare takes a new ballot, as competing proposers would, and
+// reports the last 8 accepted slots of the window.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AcceptorBenchmark {
+  private static final int WINDOW = 4096; // slots an acceptor holds between compactions
+
+  private Targets.Acceptor acceptor;
+  private byte[] value;
+  private final AtomicLong ballots = new AtomicLong(1);
+
+  @Setup
+  public void setUp() {
+    Targets.Factory targets = Targets.factory();
+    acceptor = targets.acceptor();
+    value = targets.encodePut("key", "value-0123456789");
+    acceptor.prepare(1, 0);
+    for (long slot = 0; slot < WINDOW; slot++) {
+      acceptor.accept(1, slot, value);
+    }
+  }
+
+  @Benchmark
+  public byte[] accept() {
+    return acceptor.accept(1, ThreadLocalRandom.current().nextInt(WINDOW), value);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public byte[] acceptContended() {
+    return acceptor.accept(1, ThreadLocalRandom.current().nextInt(WINDOW), value);
+  }
+
+  @Benchmark
+  public byte[] prepare() {
+    return acceptor.prepare(ballots.incrementAndGet(), WINDOW - 8);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public byte[] prepareContended() {
+    return acceptor.prepare(ballots.incrementAndGet(), WINDOW - 8);
+  }
+}
@@ -0,0 +1,92 @@
+package bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Client-side cost against an in-process five-server group over real RMI stubs, from 8 client threads:
+// writes sent to a random replica against writes SmartClient routes to the leader, and plain reads from a
+// random replica against hedged reads. Then bulk ingest from one caller, 100 keys per op: async puts all in
+// flight at once, against one async multiPut. Each trial ends by printing the SmartClients' counters.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(8)
+public class ClientBenchmark {
+  private static final int KEYS = 10000;
+  private static final int BULK = 100;
+
+  @Param({"5"})
+  public int servers;
+
+  private Targets.Clients clients;
+  private final AtomicInteger bulkKeys = new AtomicInteger(KEYS);
+
+  @Setup
+  public void setUp() throws Exception {
+    clients = Targets.factory().clients(servers);
+    for (int from = 0; from < KEYS; from += BULK) {
+      clients.multiPutAsync(from, BULK); // reads find every key
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.out.printf("%n%s%n", clients.stats());
+    clients.shutdown();
+  }
+
+  @Benchmark
+  public void putRandomReplica() throws Exception {
+    int n = ThreadLocalRandom.current().nextInt(KEYS);
+    clients.putTo(ThreadLocalRandom.current().nextInt(clients.size()), "key" + n, "value" + n);
+  }
+
+  @Benchmark
+  public void putViaLeader() throws Exception {
+    int n = ThreadLocalRandom.current().nextInt(KEYS);
+    clients.putRouted("key" + n, "value" + n);
+  }
+
+  @Benchmark
+  public String getRandomReplica() throws Exception {
+    return clients.getFrom(ThreadLocalRandom.current().nextInt(clients.size()),
+        "key" + ThreadLocalRandom.current().nextInt(KEYS));
+  }
+
+  @Benchmark
+  public String getHedged() throws Exception {
+    return clients.getHedged("key" + ThreadLocalRandom.current().nextInt(KEYS));
+  }
+
+  @Benchmark
+  @Threads(1)
+  @OperationsPerInvocation(BULK)
+  public void ingestPutAsync() {
+    clients.putAllAsync(bulkKeys.getAndAdd(BULK), BULK);
+  }
+
+  @Benchmark
+  @Threads(1)
+  @OperationsPerInvocation(BULK)
+  public void ingestMultiPutAsync() {
+    clients.multiPutAsync(bulkKeys.getAndAdd(BULK), BULK);
+  }
+}
@@ -0,0 +1,68 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+// End-to-end puts on an in-process five-server group from 16 client threads, each sending its writes to
+// the replicas in turn: throughput, and latency percentiles (p0.50, p0.99) from sampled calls. The peer
+// transport follows -Dpaxos.transport, e.g. -jvmArgsAppend -Dpaxos.transport=tcp.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(16)
+public class ClusterBenchmark {
+  private static final int KEYS = 100000;
+
+  @Param({"5"})
+  public int servers;
+
+  private Targets.Cluster cluster;
+
+  @Setup
+  public void setUp() throws Exception {
+    cluster = Targets.factory().cluster(servers);
+  }
+
+  @TearDown
+  public void tearDown() {
+    cluster.shutdown();
+  }
+
+  @State(Scope.Thread)
+  public static class Client {
+    int thread;
+    long next;
+
+    @Setup
+    public void setUp(ThreadParams params) {
+      thread = params.getThreadIndex();
+    }
+  }
+
+  @Benchmark
+  public String put(Client client) throws Exception {
+    long n = client.next++;
+    String reply = cluster.put((int) ((client.thread + n) % cluster.size()), "key" + (n * 16 + client.thread) % KEYS,
+        "value" + n);
+    if (!reply.equals("SUCCESS")) {
+      throw new IllegalStateException(reply); // a failed write must not count as a fast one
+    }
+    return reply;
+  }
+}
@@ -0,0 +1,50 @@
+package bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// A log slot's value on its way through a replica: encoding a batch of puts, decoding it, and applying it
+// to the store (Server.applyTo, which decodes and executes each command).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+  @Param({"1", "16"})
+  public int batchSize;
+
+  private Targets.Commands commands;
+
+  @Setup
+  public void setUp() {
+    commands = Targets.factory().commands(batchSize);
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    return commands.encode();
+  }
+
+  @Benchmark
+  public List<?> decode() {
+    return commands.decode();
+  }
+
+  @Benchmark
+  public boolean apply() {
+    return commands.apply();
+  }
+}
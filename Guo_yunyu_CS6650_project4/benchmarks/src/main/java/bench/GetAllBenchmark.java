@@ -0,0 +1,45 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// getAll on a one-server group at several store sizes. It pages through the store, so its cost should
+// grow linearly with the number of keys.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetAllBenchmark {
+  @Param({"1000", "10000", "100000"})
+  public int keys;
+
+  private Targets.Store store;
+
+  @Setup
+  public void setUp() throws Exception {
+    store = Targets.factory().store(keys);
+  }
+
+  @TearDown
+  public void tearDown() {
+    store.shutdown();
+  }
+
+  @Benchmark
+  public String getAll() throws Exception {
+    return store.getAll();
+  }
+}
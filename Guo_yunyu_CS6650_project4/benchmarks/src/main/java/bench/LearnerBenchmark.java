@@ -0,0 +1,53 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Learner.learn: one op decides a new slot, takes a late duplicate learn for it, and releases it as if
+// applied. On one thread, and with four threads deciding slots at once.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LearnerBenchmark {
+  private Targets.Learner learner;
+  private byte[] value;
+  private final AtomicLong slots = new AtomicLong();
+
+  @Setup
+  public void setUp() {
+    Targets.Factory targets = Targets.factory();
+    learner = targets.learner();
+    value = targets.encodePut("key", "value-0123456789");
+  }
+
+  @Benchmark
+  public void learn() {
+    decide(slots.getAndIncrement());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void learnContended() {
+    decide(slots.getAndIncrement());
+  }
+
+  private void decide(long slot) {
+    learner.learn(slot, value);
+    learner.learn(slot, value);
+    learner.release(slot);
+  }
+}
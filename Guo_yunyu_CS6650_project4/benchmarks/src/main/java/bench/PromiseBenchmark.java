@@ -0,0 +1,45 @@
+package bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// PaxosCodec's promise, the largest message phase 1 sends: encoding the accepted slots an acceptor reports
+// and decoding them on the proposer, with none of them and with the 8 a short recovery would carry.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PromiseBenchmark {
+  @Param({"0", "8"})
+  public int slots;
+
+  private Targets.Promise promise;
+
+  @Setup
+  public void setUp() {
+    promise = Targets.factory().promise(slots);
+  }
+
+  @Benchmark
+  public byte[] encode() {
+    return promise.encode();
+  }
+
+  @Benchmark
+  public Map<?, ?> decode() {
+    return promise.decode();
+  }
+}
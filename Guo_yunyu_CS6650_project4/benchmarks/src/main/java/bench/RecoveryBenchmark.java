@@ -0,0 +1,50 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// What a restart costs as the log grows: replaying a write-ahead log of accepted and decided slots, and
+// loading a snapshot of as many keys. Each measurement is one pass over the files.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RecoveryBenchmark {
+  @Param({"10000", "100000", "1000000"})
+  public int slots;
+
+  private Targets.Recovery recovery;
+
+  @Setup
+  public void setUp() throws Exception {
+    recovery = Targets.factory().recovery(slots);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    recovery.delete();
+  }
+
+  @Benchmark
+  public long replay() throws Exception {
+    return recovery.replay();
+  }
+
+  @Benchmark
+  public int loadSnapshot() throws Exception {
+    return recovery.loadSnapshot();
+  }
+}
@@ -0,0 +1,80 @@
+package bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The storage engines under a replica's load: one writer overwriting random keys as the apply thread
+// would, every tenth write a delete, while two readers get random keys; and a full scan. Setup loads the
+// keys and prints the heap each entry retains. Add -prof gc for the collections the mixed load causes.
+// Both engines' forks run with -Xmx2g; a collector passed with -jvmArgsAppend applies to both alike.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class StoreBenchmark {
+  @Param({"skiplist", "compact"})
+  public String engine;
+
+  @Param({"1000000"})
+  public int keys;
+
+  @Param({"16"})
+  public int valueSize;
+
+  private Targets.Engine store;
+  private String filler;
+
+  @Setup
+  public void setUp() throws Exception {
+    store = Targets.factory().engine(engine, keys, valueSize);
+    filler = "v".repeat(Math.max(0, valueSize - 8));
+    System.out.printf("%n%s: %.1f bytes retained per entry (data %d)%n", engine, store.bytesPerEntry(),
+        store.key(0).length() + valueSize);
+  }
+
+  @State(Scope.Thread)
+  public static class Writer {
+    long writes;
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public void write(Writer writer) {
+    String key = store.key(ThreadLocalRandom.current().nextInt(keys));
+    if (writer.writes++ % 10 == 9) {
+      store.remove(key); // and put back by a later write, like a delete-heavy workload
+    } else {
+      store.put(key, filler + String.format("%08d", writer.writes));
+    }
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(2)
+  public String read() {
+    return store.get(store.key(ThreadLocalRandom.current().nextInt(keys)));
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public long scan() {
+    return store.scan();
+  }
+}
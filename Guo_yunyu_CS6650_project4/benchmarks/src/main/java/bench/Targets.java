@@ -0,0 +1,159 @@
+package bench;
+
+import java.util.List;
+import java.util.Map;
+
+// What the benchmarks measure, as seen from a named package. JMH only generates code for benchmarks in a
+// named package, and no named package can import the store's classes, which are in the default package.
+// So each benchmark drives the store through one of these interfaces, implemented by BenchmarkTargets in
+// the default package and looked up by name once per trial. Each interface has one implementation, so the
+// JIT inlines the calls through it.
+public final class Targets {
+  private Targets() {
+  }
+
+  public interface Factory {
+    Acceptor acceptor();
+
+    Learner learner();
+
+    // A batch of batchSize puts, as the batcher would propose it
+    Commands commands(int batchSize);
+
+    // A promise reporting `slots` accepted slots, as an acceptor answers a prepare
+    Promise promise(int slots);
+
+    // A write-ahead log in a new temporary directory, with group commit or with one fsync per sync
+    Wal wal(boolean groupCommit) throws Exception;
+
+    // A data directory holding a log of `slots` accepted and decided slots, and a snapshot of as many keys
+    Recovery recovery(int slots) throws Exception;
+
+    // A storage engine of the given paxos.store.engine kind, loaded with `keys` keys and valueSize-byte values
+    Engine engine(String kind, int keys, int valueSize) throws Exception;
+
+    // A one-server group holding `keys` keys
+    Store store(int keys) throws Exception;
+
+    // An in-process group of `servers` replicas, started and with a leader
+    Cluster cluster(int servers) throws Exception;
+
+    // Clients of an in-process group of `servers` replicas over real RMI stubs
+    Clients clients(int servers) throws Exception;
+
+    byte[] encodePut(String key, String value);
+  }
+
+  public interface Acceptor {
+    byte[] prepare(long ballot, long fromSlot);
+
+    byte[] accept(long ballot, long slot, byte[] value);
+  }
+
+  public interface Learner {
+    void learn(long slot, byte[] value);
+
+    void release(long slot);
+  }
+
+  public interface Commands {
+    byte[] encode();
+
+    List<?> decode();
+
+    // Applies the encoded batch to a store, as a replica does with each decided slot
+    boolean apply();
+  }
+
+  public interface Promise {
+    byte[] encode();
+
+    Map<?, ?> decode();
+  }
+
+  public interface Wal {
+    // Appends an accept record and returns once it is durable
+    void syncedAccept(long slot, byte[] value) throws Exception;
+
+    long fsyncs();
+
+    // Closes the log and deletes its directory
+    void close() throws Exception;
+  }
+
+  public interface Recovery {
+    // Replays the log, returning the number of records read
+    long replay() throws Exception;
+
+    // Reads the snapshot, returning the number of keys in it
+    int loadSnapshot() throws Exception;
+
+    void delete() throws Exception;
+  }
+
+  public interface Engine {
+    // The i-th loaded key
+    String key(int i);
+
+    String get(String key);
+
+    void put(String key, String value);
+
+    void remove(String key);
+
+    // Iterates over every entry, returning how many there were
+    long scan();
+
+    // Heap the engine retained per entry once loaded, measured after full GCs
+    double bytesPerEntry();
+  }
+
+  public interface Store {
+    String getAll() throws Exception;
+
+    void shutdown();
+  }
+
+  public interface Cluster {
+    int size();
+
+    String put(int server, String key, String value) throws Exception;
+
+    void shutdown();
+  }
+
+  // Replies other than SUCCESS are thrown as IllegalStateException, so a failed call never counts as a fast one
+  public interface Clients {
+    int size();
+
+    // Straight to one replica's stub, as the old Client did; a follower forwards writes to the leader
+    void putTo(int replica, String key, String value) throws Exception;
+
+    String getFrom(int replica, String key) throws Exception;
+
+    // Through a SmartClient, which sends writes to the leader
+    void putRouted(String key, String value) throws Exception;
+
+    // Through a SmartClient that hedges its reads
+    String getHedged(String key) throws Exception;
+
+    // count keys from `from` on, through putAsync with every put in flight at once
+    void putAllAsync(int from, int count);
+
+    // count keys from `from` on, as one multiPutAsync
+    void multiPutAsync(int from, int count);
+
+    // Routing and hedging counters of both SmartClients
+    String stats();
+
+    void shutdown();
+  }
+
+  public static Factory factory() {
+    try {
+      return (Factory) Class.forName("BenchmarkTargets").getConstructor().newInstance();
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("BenchmarkTargets is missing from the benchmark jar", e);
+    }
+  }
+}
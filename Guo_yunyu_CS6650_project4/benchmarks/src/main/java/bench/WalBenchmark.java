@@ -0,0 +1,56 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// WriteAheadLog: accept records appended and synced by 32 threads at once, as concurrent accept rounds do,
+// with one fsync per sync and with group commit, where one fsync covers every record appended while the
+// previous one ran. Each trial ends by printing how many records an fsync covered on average.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(32)
+public class WalBenchmark {
+  @Param({"false", "true"})
+  public boolean groupCommit;
+
+  @Param({"256"})
+  public int valueBytes;
+
+  private Targets.Wal wal;
+  private byte[] value;
+  private final AtomicLong slots = new AtomicLong();
+
+  @Setup
+  public void setUp() throws Exception {
+    wal = Targets.factory().wal(groupCommit);
+    value = new byte[valueBytes];
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    System.out.printf("%n%.1f records per fsync%n", (double) slots.get() / Math.max(1, wal.fsyncs()));
+    wal.close();
+  }
+
+  @Benchmark
+  public void syncedAccept() throws Exception {
+    wal.syncedAccept(slots.getAndIncrement(), value);
+  }
+}
@@ -0,0 +1,10 @@
+// The highest-numbered proposal an acceptor has accepted in a slot
+public class AcceptedEntry {
+  final long proposal;
+  final byte[] value;
+
+  public AcceptedEntry(long proposal, byte[] value) {
+    this.proposal = proposal;
+    this.value = value;
+  }
+}
@@ -1,66 +1,181 @@
-import java.util.Random;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+public class Acceptor {
+  private static final int STRIPES = 64; // power of two
+  // A proposer this many slots behind what this replica has applied is sent to catch up rather than
+  // promised: as leader it would re-propose every slot in between, one accept round at a time, and
+  // nothing proposed after them could apply until it had
+  private static final long MAX_PREPARE_LAG = Long.getLong("paxos.catchup.maxPrepareLag", 64);
 
-public class Acceptor extends Thread {
   private Server server;
-  private long highestPrepare = -1;
-  private long acceptedProposal = -1;
-  private String acceptedValue = null;
-  private Random random = new Random();
-  private volatile boolean running = true;
+  // One promised ballot covers every slot (Multi-Paxos); accepted state is kept per slot
+  private final AtomicLong highestPrepare = new AtomicLong(-1);
+  private final ConcurrentSkipListMap<Long, AcceptedEntry> accepted = new ConcurrentSkipListMap<>();
+  // accepted state for slots up to here has been dropped; this server has applied them
+  private volatile long compactedThrough = -1;
+  // Accepts for different slots run in parallel under the read lock, serialized per slot by a
+  // stripe; a prepare takes the write lock so its promise is a consistent cut that no
+  // lower-ballot accept can slip in behind. A stable leader rarely prepares, so the write lock
+  // is almost never taken.
+  private final StampedLock ballotLock = new StampedLock(); // not reentrant; nothing here re-enters
+  private final Object[] stripes = new Object[STRIPES];
+  // Promises and accepts are logged and synced before the reply leaves; null runs without durability
+  private WriteAheadLog wal;
 
   public Acceptor(Server server) {
     this.server = server;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Object();
+    }
+  }
+
+  // A promise carries every accepted slot >= fromSlot, see PaxosCodec.encodePromise
+  public byte[] prepare(long proposalNumber, long fromSlot) {
+    long promised = highestPrepare.get();
+    if (proposalNumber <= promised) {
+      return PaxosCodec.reject(promised); // the common case for a stale proposer, answered without the lock
+    }
+    // read before the lock: checkpoints take the apply lock and then this one
+    long applied = server == null ? -1 : server.getFirstUnappliedSlot() - 1;
+    byte[] reply;
+    long position;
+    long stamp = ballotLock.writeLock();
+    try {
+      if (proposalNumber <= highestPrepare.get()) {
+        return PaxosCodec.reject(highestPrepare.get());
+      }
+      if (fromSlot <= compactedThrough) {
+        // the proposer would miss values we no longer report and could fill decided slots with no-ops
+        return PaxosCodec.lagging(compactedThrough);
+      }
+      if (applied - fromSlot >= MAX_PREPARE_LAG) {
+        return PaxosCodec.lagging(applied);
+      }
+      highestPrepare.set(proposalNumber);
+      reply = PaxosCodec.encodePromise(accepted.tailMap(fromSlot, true));
+      position = log(WriteAheadLog.PROMISE, WriteAheadLog.promise(proposalNumber));
+    } finally {
+      ballotLock.unlockWrite(stamp);
+    }
+    // waiting outside the lock lets concurrent promises/accepts share one fsync
+    sync(position);
+    return reply;
   }
 
-  @Override
-  public void run() {
-    while (running) {
-      // Simulate random failures
-      if (random.nextDouble() < 0.01) { // 1% chance of failure
-        running = false; // Simulate thread termination
-        try {
-          Thread.sleep(5000); // Sleep for a while before restarting
-        } catch (InterruptedException e) {
-          Thread.currentThread().interrupt();
+  public byte[] accept(long proposalNumber, long slot, byte[] value) {
+    long position;
+    long stamp = ballotLock.readLock();
+    try {
+      // the stripe keeps the log order of accepts for one slot the same as their order in memory
+      synchronized (stripes[(int) slot & (STRIPES - 1)]) {
+        if (!raisePromise(proposalNumber)) {
+          return PaxosCodec.reject(highestPrepare.get());
         }
-        restart(); // Restart the acceptor thread
+        accepted.put(slot, new AcceptedEntry(proposalNumber, value));
+        position = log(WriteAheadLog.ACCEPT, WriteAheadLog.accept(slot, proposalNumber, value));
       }
-      try {
-        Thread.sleep(100); // Small delay to prevent busy waiting
-      } catch (InterruptedException e) {
-        Thread.currentThread().interrupt();
+    } finally {
+      ballotLock.unlockRead(stamp);
+    }
+    sync(position);
+    return PaxosCodec.accepted();
+  }
+
+  // An accept at ballot b is an implicit promise of b: fails if a higher ballot was seen first
+  private boolean raisePromise(long proposalNumber) {
+    while (true) {
+      long current = highestPrepare.get();
+      if (proposalNumber < current) {
+        return false;
+      }
+      if (proposalNumber == current || highestPrepare.compareAndSet(current, proposalNumber)) {
+        return true;
       }
     }
   }
 
-  private void restart() {
-    Acceptor newAcceptor = new Acceptor(server);
-    newAcceptor.start(); // Start a new thread as a replacement
+  private long log(byte type, byte[] payload) {
+    if (wal == null) {
+      return -1;
+    }
+    try {
+      return wal.append(type, payload);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to log acceptor state", e);
+    }
+  }
+
+  private void sync(long position) {
+    if (wal == null) {
+      return;
+    }
+    try {
+      wal.sync(position);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to sync acceptor state", e);
+    }
+  }
+
+  // Set once during recovery, before any prepare or accept arrives
+  public void setLog(WriteAheadLog wal) {
+    this.wal = wal;
   }
 
-  public synchronized String prepare(long proposalNumber) {
-    if (proposalNumber > highestPrepare) {
-      highestPrepare = proposalNumber;
-      if (acceptedProposal != -1) {
-        return "PROMISE," + acceptedProposal + "," + acceptedValue;
-      } else {
-        return "PROMISE";
+  // Recovery: replayed from the log before the server is reachable
+  public void restorePromise(long ballot) {
+    highestPrepare.accumulateAndGet(ballot, Math::max);
+  }
+
+  public void restoreAccepted(long slot, long ballot, byte[] value) {
+    highestPrepare.accumulateAndGet(ballot, Math::max);
+    accepted.put(slot, new AcceptedEntry(ballot, value));
+  }
+
+  public void compact(long throughSlot) {
+    long stamp = ballotLock.writeLock();
+    try {
+      if (throughSlot > compactedThrough) {
+        accepted.headMap(throughSlot, true).clear();
+        compactedThrough = throughSlot;
       }
+    } finally {
+      ballotLock.unlockWrite(stamp);
     }
-    return "REJECT";
   }
 
-  public synchronized String accept(long proposalNumber, String value) {
-    if (proposalNumber >= highestPrepare) {
-      highestPrepare = proposalNumber;
-      acceptedProposal = proposalNumber;
-      acceptedValue = value;
-      return "ACCEPTED";
+  // Starts a new log segment that begins with the current promise and every accepted slot after
+  // snapshotSlot, so older segments can be deleted once the snapshot is on disk. Returns the segment number.
+  // The write lock keeps accepts out so no record lands in the old segment after the checkpoint is cut.
+  public long rotateLog(long snapshotSlot) throws IOException {
+    long stamp = ballotLock.writeLock();
+    try {
+      List<byte[]> checkpoint = new ArrayList<>();
+      checkpoint.add(WriteAheadLog.checkpointRecord(WriteAheadLog.PROMISE,
+          WriteAheadLog.promise(highestPrepare.get())));
+      for (Map.Entry<Long, AcceptedEntry> entry : accepted.tailMap(snapshotSlot, false).entrySet()) {
+        checkpoint.add(WriteAheadLog.checkpointRecord(WriteAheadLog.ACCEPT,
+            WriteAheadLog.accept(entry.getKey(), entry.getValue().proposal, entry.getValue().value)));
+      }
+      return wal.rotate(checkpoint);
+    } finally {
+      ballotLock.unlockWrite(stamp);
     }
-    return "REJECT";
   }
 
-  public void shutdown() {
-    running = false;
+  // ReadIndex heartbeat: the ballot is still current here if nothing higher has been promised
+  public byte[] confirmLeader(long ballot) {
+    long promised = highestPrepare.get();
+    return ballot >= promised ? PaxosCodec.accepted() : PaxosCodec.reject(promised);
+  }
+
+  public long getHighestPrepare() {
+    return highestPrepare.get();
   }
 }
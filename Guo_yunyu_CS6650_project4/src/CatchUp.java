@@ -0,0 +1,156 @@
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// Brings this replica up to date when it falls behind: learn messages it missed, or slots decided while
+// it was down. Peers are only polled on evidence of lag: a slot reported decided past the ones applied
+// here (a learn, or a leader's read index) while applying has stalled, or a peer answering a prepare
+// with LAGGING. An idle group is left alone; the one exception is a single poll at startup, since a
+// restarted replica cannot know how far the others got. Missing slots are pulled from the most advanced
+// peer while it still retains them; otherwise the peer's store is streamed in pages and the log after it
+// replayed.
+public class CatchUp extends Thread {
+  private static final Logger logger = Logger.getLogger(CatchUp.class.getName());
+  private static final long INTERVAL_MS = Long.getLong("paxos.catchup.intervalMs", 500);
+  private static final int BATCH = Integer.getInteger("paxos.catchup.batch", 500);
+
+  private final Server server;
+  private final Object wakeup = new Object();
+  private boolean requested = true; // the startup poll
+  private volatile boolean running = true;
+  private long lastSeenApplied = -2;
+  // the highest slot a peer has told us is decided, other than through learn
+  private final AtomicLong reportedDecided = new AtomicLong(-1);
+
+  public CatchUp(Server server) {
+    super("catch-up");
+    setDaemon(true);
+    this.server = server;
+  }
+
+  public void request() {
+    synchronized (wakeup) {
+      requested = true;
+      Clock.signalAll(wakeup);
+    }
+  }
+
+  public void reportDecided(long slot) {
+    reportedDecided.accumulateAndGet(slot, Math::max);
+  }
+
+  public void shutdown() {
+    running = false;
+    interrupt();
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      boolean forced;
+      synchronized (wakeup) {
+        if (!requested) {
+          try {
+            Clock.await(wakeup, INTERVAL_MS);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        forced = requested;
+        requested = false;
+      }
+      try {
+        check(forced);
+      } catch (Exception e) {
+        logger.warning("Catch-up round failed: " + e.getMessage());
+      }
+    }
+  }
+
+  private void check(boolean forced) throws RemoteException {
+    long applied = server.getFirstUnappliedSlot() - 1;
+    boolean stalled = applied == lastSeenApplied;
+    lastSeenApplied = applied;
+    long decided = Math.max(server.getHighestDecided(), reportedDecided.get());
+    if (!forced && (!stalled || decided <= applied)) {
+      return; // applying normally, or nothing decided that we lack
+    }
+
+    // Ask every peer how far it has applied and catch up from the furthest
+    KeyValueRPC best = null;
+    long bestApplied = applied;
+    for (KeyValueRPC peer : server.getPeers()) {
+      try {
+        long peerApplied = PaxosCodec.logLastApplied(peer.fetchLog(applied + 1, 0));
+        if (peerApplied > bestApplied) {
+          best = peer;
+          bestApplied = peerApplied;
+        }
+      } catch (RemoteException e) {
+        logger.fine("Peer unavailable for catch-up: " + e.getMessage());
+      }
+    }
+    if (best == null) {
+      return;
+    }
+    logger.info("Behind by " + (bestApplied - applied) + " slots, catching up");
+    fetchEntries(best);
+  }
+
+  private void fetchEntries(KeyValueRPC peer) throws RemoteException {
+    while (running) {
+      long from = server.getFirstUnappliedSlot();
+      byte[] reply = peer.fetchLog(from, BATCH);
+      if (PaxosCodec.status(reply) == PaxosCodec.COMPACTED) {
+        installSnapshot(peer);
+        return;
+      }
+      Map<Long, byte[]> entries = PaxosCodec.decodeLogEntries(reply);
+      if (entries.isEmpty()) {
+        return;
+      }
+      server.applyCaughtUp(entries);
+      long next = server.getFirstUnappliedSlot();
+      if (next <= from || next > PaxosCodec.logLastApplied(reply)) {
+        return; // no progress this round, or caught up with the peer
+      }
+    }
+  }
+
+  // The store is copied page by page while the peer keeps applying, so the copy is fuzzy. Replaying the
+  // peer's log from the slot it had applied before the first page makes it exact, because every logged
+  // command is a blind put or delete, or an idempotent membership change.
+  private void installSnapshot(KeyValueRPC peer) throws RemoteException {
+    long start = System.currentTimeMillis();
+    long from = PaxosCodec.logLastApplied(peer.fetchLog(0, 0)) + 1;
+    StorageEngine copy = StorageEngine.create();
+    String token = null;
+    do {
+      ScanPage page = peer.fetchSnapshot(token, BATCH);
+      copy.putAll(page.getEntries());
+      token = page.getNextToken();
+    } while (token != null && running);
+
+    while (running) {
+      byte[] reply = peer.fetchLog(from, BATCH);
+      if (PaxosCodec.status(reply) == PaxosCodec.COMPACTED) {
+        logger.warning("Peer compacted past slot " + from + " during snapshot transfer, retrying later");
+        return;
+      }
+      Map<Long, byte[]> entries = PaxosCodec.decodeLogEntries(reply);
+      for (Map.Entry<Long, byte[]> entry : entries.entrySet()) {
+        Server.applyTo(copy, entry.getValue());
+        from = entry.getKey() + 1;
+      }
+      if (entries.isEmpty() || from > PaxosCodec.logLastApplied(reply)) {
+        break;
+      }
+    }
+    if (running) {
+      server.installSnapshot(copy, from - 1);
+      logger.info("Installed snapshot of " + copy.size() + " keys through slot " + (from - 1) + " in "
+          + (System.currentTimeMillis() - start) + " ms");
+    }
+  }
+}
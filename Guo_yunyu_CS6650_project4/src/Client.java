@@ -1,36 +1,36 @@
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class Client {
 
-  private KeyValueRPC[] servers;
-  private Random random = new Random();
+  // every replica of every shard; keys are routed to the group that owns them
+  private ShardMap shards;
+  // sends writes to each shard's leader and optionally hedges reads; it retries a failed replica
+  // elsewhere with backoff, so commands are not retried here
+  private SmartClient smartClient;
   private BufferedReader input;
-  private static final int MAX_RETRIES = 3;
-  private static final int RETRY_DELAY = 1000; // 1 sec
+  private static final int SCAN_PAGE_SIZE = 100;
 
   public Client(String[] addresses, int[] ports) {
-    if (addresses.length != 5 || ports.length != 5) {
-      throw new IllegalArgumentException("Exactly 5 server addresses and ports must be provided");
+    if (addresses.length == 0 || addresses.length != ports.length) {
+      throw new IllegalArgumentException("At least one server address and port must be provided");
     }
 
-    servers = new KeyValueRPC[5];
-    for (int i = 0; i < 5; i++) {
-      try {
-        Registry registry = LocateRegistry.getRegistry(addresses[i], ports[i]);
-        servers[i] = (KeyValueRPC) registry.lookup("KeyValueRPC");
-        log("Connected to server at " + addresses[i] + ":" + ports[i]);
-      } catch (Exception e) {
-        log("Client exception when connecting to server: " + addresses[i] + ":" + ports[i]);
-        e.printStackTrace();
-        System.exit(1);
-      }
+    try {
+      shards = ShardMap.connect(addresses, ports, ShardMap.SHARDS);
+      smartClient = new SmartClient(shards);
+      log("Connected to " + addresses.length + " servers with " + ShardMap.SHARDS + " shard(s) each");
+    } catch (Exception e) {
+      log("Client exception when connecting to servers: " + e.getMessage());
+      e.printStackTrace();
+      System.exit(1);
     }
 
     input = new BufferedReader(new InputStreamReader(System.in));
@@ -42,34 +42,16 @@ public class Client {
       e.printStackTrace();
     }
 
-    // Pre-populate key-value store with retries
+    // Pre-populate key-value store
     System.out.println("Pre-populating key-value store...");
     for (int i = 1; i <= 5; i++) {
-      boolean success = false;
-      int retries = 0;
-      while (!success && retries < 3) {
-        try {
-          sendCommandWithRetry("PUT key" + i + " value" + i);
-          success = true;
-        } catch (Exception e) {
-          retries++;
-          log("Failed to pre-populate key" + i + ". Retrying... (Attempt " + retries + ")");
-          try {
-            Thread.sleep(1000 * retries);
-          } catch (InterruptedException ie) {
-            Thread.currentThread().interrupt();
-          }
-        }
-      }
-      if (!success) {
-        log("Failed to pre-populate key" + i + " after 3 attempts.");
-      }
+      execute("PUT key" + i + " value" + i);
     }
 
     // Verify pre-population
     System.out.println("Verifying pre-populated data...");
     for (int i = 1; i <= 5; i++) {
-      sendCommandWithRetry("GET key" + i);
+      execute("GET key" + i);
     }
 
     // Start reading interactive command loop
@@ -77,38 +59,29 @@ public class Client {
     while (!line.equalsIgnoreCase("QUIT")) {
       try {
         System.out.println(
-            "Enter a command: PUT key value, GET key, DELETE key, GETALL or 'QUIT' to quit: ");
+            "Enter a command: PUT key value, GET key [linearizable], DELETE key, MPUT k1 v1 k2 v2 ..., MGET k1 k2 ..., "
+                + "MDELETE k1 k2 ..., GETALL, SCAN prefix, MEMBERS, ADDMEMBER host:port, REMOVEMEMBER host:port "
+                + "or 'QUIT' to quit: ");
         line = input.readLine();
         if (!line.equalsIgnoreCase("QUIT")) {
-          sendCommandWithRetry(line);
+          execute(line);
         }
       } catch (Exception e) {
         log("Error reading command: " + e.getMessage());
       }
     }
 
+    log("Routing: " + smartClient.getStats());
+    smartClient.shutdown();
     System.out.println("Client shutting down...");
   }
 
-  private void sendCommandWithRetry(String command) {
-    int retries = 0;
-    while (retries < MAX_RETRIES) {
-      try {
-        sendCommand(command); // Success, exit the retry loop
-        return;
-      } catch (Exception e) {
-        log("Error executing command (attempt " + (retries + 1) + "): " + e.getMessage());
-        retries++;
-        if (retries < MAX_RETRIES) {
-          try {
-            Thread.sleep(RETRY_DELAY);
-          } catch (InterruptedException e1) {
-            Thread.currentThread().interrupt();
-          }
-        }
-      }
+  private void execute(String command) {
+    try {
+      sendCommand(command);
+    } catch (Exception e) {
+      log("Failed to execute command " + command + ": " + e.getMessage());
     }
-    log("Failed to execute command after " + MAX_RETRIES + " attempts: " + command);
   }
 
   private void sendCommand(String command) throws RemoteException {
@@ -118,7 +91,7 @@ public class Client {
       return;
     }
 
-    KeyValueRPC server = servers[random.nextInt(5)];
+    // GETALL and SCAN visit every shard; the other commands are routed by SmartClient
     String response = "";
 
     switch (parts[0].toUpperCase()) {
@@ -127,37 +100,119 @@ public class Client {
           log("Invalid PUT command. Usage: PUT key value");
           return;
         }
-        response = server.put(parts[1], parts[2]);
+        response = smartClient.put(parts[1], parts[2]);
         break;
       case "GET":
+        if (parts.length == 3 && parts[2].equalsIgnoreCase(Server.READ_LINEARIZABLE)) {
+          response = smartClient.get(parts[1], Server.READ_LINEARIZABLE);
+          break;
+        }
         if (parts.length != 2) {
-          log("Invalid GET command. Usage: GET key");
+          log("Invalid GET command. Usage: GET key [linearizable]");
           return;
         }
-        response = server.get(parts[1]);
+        response = smartClient.get(parts[1]);
         break;
       case "DELETE":
         if (parts.length != 2) {
           log("Invalid DELETE command. Usage: DELETE key");
           return;
         }
-        response = server.delete(parts[1]);
+        response = smartClient.delete(parts[1]);
+        break;
+      case "MPUT":
+        if (parts.length < 3 || parts.length % 2 != 1) {
+          log("Invalid MPUT command. Usage: MPUT key1 value1 key2 value2 ...");
+          return;
+        }
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 1; i < parts.length; i += 2) {
+          entries.put(parts[i], parts[i + 1]);
+        }
+        response = smartClient.multiPut(entries);
+        break;
+      case "MGET":
+        if (parts.length < 2) {
+          log("Invalid MGET command. Usage: MGET key1 key2 ...");
+          return;
+        }
+        response = smartClient.multiGet(new ArrayList<>(Arrays.asList(parts).subList(1, parts.length)), Server.READ_LOCAL)
+            .toString();
+        break;
+      case "MDELETE":
+        if (parts.length < 2) {
+          log("Invalid MDELETE command. Usage: MDELETE key1 key2 ...");
+          return;
+        }
+        response = smartClient.multiDelete(new ArrayList<>(Arrays.asList(parts).subList(1, parts.length)));
         break;
       case "GETALL":
-        response = server.getAll();
+        response = scan("");
+        break;
+      case "SCAN":
+        if (parts.length != 2) {
+          log("Invalid SCAN command. Usage: SCAN prefix");
+          return;
+        }
+        response = scan(parts[1]);
+        break;
+      case "MEMBERS":
+        response = members();
+        break;
+      case "ADDMEMBER":
+      case "REMOVEMEMBER":
+        if (parts.length != 2 || parts[1].lastIndexOf(':') <= 0) {
+          log("Invalid " + parts[0].toUpperCase() + " command. Usage: " + parts[0].toUpperCase() + " host:port");
+          return;
+        }
+        response = changeMembership(parts[0].equalsIgnoreCase("ADDMEMBER"), parts[1]);
         break;
       default:
         log("Unknown command: " + parts[0]);
         return;
     }
     log("Received from server: " + response);
+  }
 
-    // Add a small delay after each operation to allow for Paxos consensus
-    try {
-      Thread.sleep(500);
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();
+  // Prints matching entries a page at a time, so neither side holds the whole keyspace.
+  // Each shard is scanned in turn; keys are ordered within a shard, not across shards.
+  private String scan(String prefix) throws RemoteException {
+    int total = 0;
+    for (int shard = 0; shard < shards.shardCount(); shard++) {
+      String token = null;
+      do {
+        ScanPage page = smartClient.scan(shard, prefix, token, SCAN_PAGE_SIZE);
+        for (Map.Entry<String, String> entry : page.getEntries().entrySet()) {
+          System.out.println(entry.getKey() + " " + entry.getValue());
+        }
+        total += page.getEntries().size();
+        token = page.getNextToken();
+      } while (token != null);
+    }
+    return "Scanned " + total + " keys";
+  }
+
+  private String members() throws RemoteException {
+    StringBuilder members = new StringBuilder();
+    for (int shard = 0; shard < shards.shardCount(); shard++) {
+      members.append(shard == 0 ? "" : "; ").append("shard ").append(shard).append(": ")
+          .append(smartClient.getMembers(shard));
+    }
+    return members.toString();
+  }
+
+  // host:port names a node by its base port, as on the command line; each shard's group changes in turn
+  private String changeMembership(boolean add, String node) throws RemoteException {
+    int colon = node.lastIndexOf(':');
+    String host = node.substring(0, colon);
+    int basePort = Integer.parseInt(node.substring(colon + 1));
+    StringBuilder results = new StringBuilder();
+    for (int shard = 0; shard < shards.shardCount(); shard++) {
+      String member = host + ":" + ShardMap.portOf(basePort, shard);
+      results.append(shard == 0 ? "" : "; ").append("shard ").append(shard).append(": ")
+          .append(smartClient.changeMembership(shard, add, member));
     }
+    return results.toString();
   }
 
   private static void log(String message) {
@@ -167,14 +222,14 @@ public class Client {
   }
 
   public static void main(String args[]) {
-    if (args.length != 10) {
-      log("Usage: java Client <host1> <port1> <host2> <port2> <host3> <port3> <host4> <port4> <host5> <port5>");
+    if (args.length == 0 || args.length % 2 != 0) {
+      log("Usage: java [-Dpaxos.shards=N] Client <host1> <port1> [<host2> <port2> ...]");
       System.exit(1);
     }
 
-    String[] hosts = new String[5];
-    int[] ports = new int[5];
-    for (int i = 0; i < 5; i++) {
+    String[] hosts = new String[args.length / 2];
+    int[] ports = new int[args.length / 2];
+    for (int i = 0; i < hosts.length; i++) {
       hosts[i] = args[i * 2];
       try {
         ports[i] = Integer.parseInt(args[i * 2 + 1]);
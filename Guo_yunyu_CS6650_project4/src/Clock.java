@@ -0,0 +1,95 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.random.RandomGenerator;
+
+// Time, randomness and blocking for the server's own threads. Normally these are just the system clock,
+// ThreadLocalRandom, Thread.sleep and monitor waits. While a DeterministicScheduler runs (ClusterSimulator),
+// its threads get virtual time, the seeded random stream, and waits that hand control to the scheduler,
+// which is what lets a seed reproduce a simulated run exactly. So server code never sleeps, waits or reads
+// the clock except through here, and never blocks while holding a monitor other than the one it waits on.
+public final class Clock {
+  private static volatile DeterministicScheduler simulation;
+
+  private Clock() {
+  }
+
+  static void simulate(DeterministicScheduler scheduler) {
+    simulation = scheduler;
+  }
+
+  static DeterministicScheduler simulation() {
+    return simulation;
+  }
+
+  // The scheduler, if the calling thread is one of its threads
+  private static DeterministicScheduler scheduler() {
+    DeterministicScheduler scheduler = simulation;
+    return scheduler != null && scheduler.runsCurrentThread() ? scheduler : null;
+  }
+
+  public static long nanoTime() {
+    DeterministicScheduler scheduler = simulation;
+    return scheduler != null ? scheduler.now() : System.nanoTime();
+  }
+
+  // For deadlines and elapsed times; not wall-clock time under a simulation
+  public static long currentTimeMillis() {
+    DeterministicScheduler scheduler = simulation;
+    return scheduler != null ? scheduler.now() / 1000000 : System.currentTimeMillis();
+  }
+
+  public static RandomGenerator random() {
+    DeterministicScheduler scheduler = scheduler();
+    return scheduler != null ? scheduler.random() : ThreadLocalRandom.current();
+  }
+
+  public static void sleep(long millis) throws InterruptedException {
+    sleepNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  public static void sleepNanos(long nanos) throws InterruptedException {
+    DeterministicScheduler scheduler = scheduler();
+    if (scheduler != null) {
+      scheduler.sleep(nanos);
+    } else if (nanos > 0) {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+    }
+  }
+
+  // monitor.wait(timeoutMs), 0 meaning no timeout; the caller holds monitor and rechecks its condition
+  public static void await(Object monitor, long timeoutMs) throws InterruptedException {
+    DeterministicScheduler scheduler = scheduler();
+    if (scheduler != null) {
+      scheduler.await(monitor, timeoutMs);
+    } else {
+      monitor.wait(timeoutMs);
+    }
+  }
+
+  // monitor.notifyAll(), for waiters in await(); the caller holds monitor
+  public static void signalAll(Object monitor) {
+    DeterministicScheduler scheduler = scheduler();
+    if (scheduler != null) {
+      scheduler.signalAll(monitor);
+    } else {
+      monitor.notifyAll();
+    }
+  }
+
+  // future.get(timeoutMs), 0 meaning no timeout
+  public static <T> T get(CompletableFuture<T> future, long timeoutMs)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    DeterministicScheduler scheduler = scheduler();
+    if (scheduler != null) {
+      scheduler.awaitDone(future, timeoutMs);
+      if (!future.isDone()) {
+        throw new TimeoutException();
+      }
+      return future.get();
+    }
+    return timeoutMs > 0 ? future.get(timeoutMs, TimeUnit.MILLISECONDS) : future.get();
+  }
+}
@@ -0,0 +1,275 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Fault and performance runs on a simulated network. An in-process group of sim.servers replicas, all of
+// whose peer traffic goes through one SimNetwork seeded by sim.seed, takes puts and linearizable gets from
+// sim.clients clients on a few hot keys through a series of phases: steady, lossy (drops and reordering),
+// leader isolated, a minority partitioned off, and healed. Each phase reports throughput and latency, and
+// the run the elections, rejected rounds and handoffs that dueling proposers cost, summed over the replicas.
+// At the end every replica must hold the same store and the recorded history must be linearizable
+// (LinearizabilityChecker). Everything runs under a DeterministicScheduler seeded by sim.seed, so a seed
+// reproduces a run exactly, down to the trace hash printed at the end: the faults, what the clients do,
+// and how every client, server and network thread interleaves. Times are virtual. Messages, including
+// each leg between a client and its replica, take sim.delayMs plus jitter, and timers run as configured,
+// but computation takes no time at all, so throughput here measures the protocol (round trips, batching,
+// elections, timeouts), not what the code costs to run.
+// Usage: java [-Dsim.seed=1] [-Dsim.servers=5] [-Dsim.clients=8] [-Dsim.keys=8] [-Dsim.readRatio=0.5]
+//             [-Dsim.phaseSeconds=4] [-Dsim.dropRate=0.05] [-Dsim.reorderRate=0.1] ClusterSimulator [basePort]
+public class ClusterSimulator {
+  private static final long SEED = Long.getLong("sim.seed", 1);
+  private static final int SERVERS = Integer.getInteger("sim.servers", 5);
+  private static final int CLIENTS = Integer.getInteger("sim.clients", 8);
+  private static final int KEYS = Integer.getInteger("sim.keys", 8);
+  private static final double READ_RATIO = Double.parseDouble(System.getProperty("sim.readRatio", "0.5"));
+  private static final long PHASE_SECONDS = Long.getLong("sim.phaseSeconds", 4);
+  private static final long DELAY_MS = Long.getLong("sim.delayMs", 1);
+  private static final long JITTER_MS = Long.getLong("sim.jitterMs", 2);
+  private static final double DROP_RATE = Double.parseDouble(System.getProperty("sim.dropRate", "0.05"));
+  private static final double REORDER_RATE = Double.parseDouble(System.getProperty("sim.reorderRate", "0.1"));
+  private static final long REQUEST_TIMEOUT_MS = Long.getLong("sim.requestTimeoutMs", 10000);
+  private static final long CONVERGE_TIMEOUT_MS = 15000;
+
+  public static void main(String[] args) throws Exception {
+    int basePort = args.length > 0 ? Integer.parseInt(args[0]) : 7201;
+    System.setProperty("paxos.transport", "sim");
+    Logger.getLogger("").setLevel(Level.OFF);
+    LocalCluster.useTemporaryDataDir();
+    SimNetwork network = new SimNetwork(SEED);
+    network.configure(DELAY_MS, JITTER_MS, 0, 0);
+    SimNetwork.install(network);
+    LocalCluster cluster = new LocalCluster(SERVERS, basePort);
+    LinearizabilityChecker history = new LinearizabilityChecker();
+    List<Phase> phases = new ArrayList<>();
+    boolean[] converged = new boolean[1];
+    DeterministicScheduler scheduler = new DeterministicScheduler(SEED);
+    scheduler.run(() -> {
+      try {
+        cluster.start();
+        simulate(network, cluster.servers(), history, phases);
+        converged[0] = converged(cluster.servers());
+      } catch (Exception e) {
+        throw new IllegalStateException(e);
+      }
+    });
+
+    long elections = 0;
+    long rejects = 0;
+    long retries = 0;
+    long handoffs = 0;
+    for (Server server : cluster.servers()) {
+      Map<String, Number> metrics = server.getMetrics().snapshot();
+      elections += metrics.get("Elections").longValue();
+      rejects += metrics.get("RejectsReceived").longValue();
+      retries += metrics.get("ProposeRetries").longValue();
+      handoffs += metrics.get("Handoffs").longValue();
+    }
+    System.out.printf("%d servers, %d clients on %d keys, seed %d%n", SERVERS, CLIENTS, KEYS, SEED);
+    for (Phase phase : phases) {
+      System.out.println(phase.describe(PHASE_SECONDS));
+    }
+    System.out.printf("contention %d elections, %d rejects received, %d propose retries, %d handoffs%n",
+        elections, rejects, retries, handoffs);
+    System.out.println("network    " + network.describe());
+    System.out.printf("schedule   %d steps over %.1f s, trace %016x%n", scheduler.steps(), scheduler.now() / 1e9,
+        scheduler.trace());
+
+    boolean ok = check("replicas converged", converged[0]);
+    long start = System.nanoTime();
+    LinearizabilityChecker.Result result = history.check();
+    for (String line : result.violations) {
+      System.out.println("     " + line);
+    }
+    for (String line : result.undecided) {
+      System.out.println("     " + line);
+    }
+    ok &= check(String.format("%d operations linearizable (checked in %d ms)", history.size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)), result.linearizable());
+    cluster.shutdown();
+    System.out.println(ok ? "PASS" : "FAIL");
+    System.exit(ok ? 0 : 1);
+  }
+
+  // The clients and the phases, on the scheduler's threads
+  private static void simulate(SimNetwork network, List<Server> servers, LinearizabilityChecker history,
+      List<Phase> phases) throws Exception {
+    SplittableRandom faults = new SplittableRandom(SEED);
+    AtomicBoolean stop = new AtomicBoolean();
+    Phase[] current = {new Phase("startup")};
+    // requests run here so a client can give up on one stuck behind a partition
+    ExecutorService requests = Threads.perTask("request");
+    ExecutorService clientThreads = Threads.perTask("client");
+    List<CompletableFuture<Void>> clients = new ArrayList<>();
+    for (int c = 0; c < CLIENTS; c++) {
+      int client = c;
+      clients.add(CompletableFuture.runAsync(() -> {
+        SplittableRandom random = new SplittableRandom(SEED * 31 + client);
+        // each client sits with one replica, so a partition cuts off the clients on its minority side
+        Server server = servers.get(client % servers.size());
+        for (long n = 0; !stop.get(); n++) {
+          String key = "k" + random.nextInt(KEYS);
+          boolean write = random.nextDouble() >= READ_RATIO;
+          String value = "c" + client + "-" + n;
+          long toServer = DELAY_MS + random.nextLong(JITTER_MS + 1);
+          long toClient = DELAY_MS + random.nextLong(JITTER_MS + 1);
+          long invoked = Clock.nanoTime();
+          CompletableFuture<String> request = CompletableFuture.supplyAsync(() -> {
+            try {
+              Clock.sleep(toServer);
+              String reply = write ? server.put(key, value) : server.get(key, Server.READ_LINEARIZABLE);
+              Clock.sleep(toClient);
+              return reply;
+            } catch (Exception e) {
+              return "ERROR: " + e;
+            }
+          }, requests);
+          String result;
+          try {
+            result = Clock.get(request, REQUEST_TIMEOUT_MS);
+          } catch (Exception e) {
+            result = "ERROR: " + e;
+          }
+          long returned = Clock.nanoTime();
+          boolean ok = write ? result.equals("SUCCESS")
+              : !result.startsWith("ERROR") || result.equals("ERROR: key not found");
+          if (write) {
+            history.put(key, value, invoked, returned, ok);
+          } else if (ok) {
+            history.get(key, result.startsWith("ERROR") ? null : result, invoked, returned);
+          }
+          current[0].record(write, ok, (returned - invoked) / 1000); // counted in the phase it finished in
+        }
+      }, clientThreads));
+    }
+
+    phases.add(run(current, "steady", () -> {
+      network.configure(DELAY_MS, JITTER_MS, 0, 0);
+      return DELAY_MS + "-" + (DELAY_MS + JITTER_MS) + " ms per message";
+    }));
+    phases.add(run(current, "lossy", () -> {
+      network.configure(DELAY_MS, JITTER_MS, DROP_RATE, REORDER_RATE);
+      return String.format("%.0f%% dropped, %.0f%% reordered", DROP_RATE * 100, REORDER_RATE * 100);
+    }));
+    phases.add(run(current, "leader isolated", () -> {
+      network.configure(DELAY_MS, JITTER_MS, 0, 0);
+      Server leader = leader(servers);
+      network.partition(Set.of(leader.getPort()));
+      return "server " + leader.getServerId() + " cut off";
+    }));
+    phases.add(run(current, "minority partitioned", () -> {
+      network.heal();
+      Set<Integer> minority = new HashSet<>();
+      Set<Integer> ids = new HashSet<>();
+      while (minority.size() < (servers.size() - 1) / 2) {
+        Server server = servers.get(faults.nextInt(servers.size()));
+        minority.add(server.getPort());
+        ids.add(server.getServerId());
+      }
+      network.partition(minority);
+      return "servers " + ids + " cut off";
+    }));
+    phases.add(run(current, "healed", () -> {
+      network.heal();
+      return null;
+    }));
+    stop.set(true);
+    for (CompletableFuture<Void> client : clients) {
+      Clock.get(client, 0);
+    }
+  }
+
+  // Applies one phase's faults, then lets the clients run through it
+  private static Phase run(Phase[] current, String name, FaultAction faults) throws Exception {
+    Phase phase = new Phase(name);
+    phase.detail = faults.apply();
+    current[0] = phase;
+    Clock.sleep(PHASE_SECONDS * 1000);
+    return phase;
+  }
+
+  private static Server leader(List<Server> servers) throws Exception {
+    for (Server server : servers) {
+      if (server.getLeaderId() == server.getServerId()) {
+        return server;
+      }
+    }
+    return servers.get(0);
+  }
+
+  private static boolean converged(List<Server> servers) throws Exception {
+    long deadline = Clock.currentTimeMillis() + CONVERGE_TIMEOUT_MS;
+    while (true) {
+      Map<String, String> expected = storeOf(servers.get(0));
+      boolean same = true;
+      for (Server server : servers) {
+        same &= expected.equals(storeOf(server));
+      }
+      if (same || Clock.currentTimeMillis() > deadline) {
+        return same;
+      }
+      Clock.sleep(500);
+    }
+  }
+
+  private static boolean check(String what, boolean passed) {
+    System.out.println((passed ? "ok   " : "FAIL ") + what);
+    return passed;
+  }
+
+  private static Map<String, String> storeOf(Server server) throws Exception {
+    Map<String, String> store = new HashMap<>();
+    for (String line : server.getAll().split("\n")) {
+      if (!line.isEmpty()) {
+        String[] parts = line.split(" ", 2);
+        store.put(parts[0], parts[1]);
+      }
+    }
+    return store;
+  }
+
+  private interface FaultAction {
+    // returns what was done, for the report, or null
+    String apply() throws Exception;
+  }
+
+  // Client results within one phase
+  private static class Phase {
+    final String name;
+    String detail;
+    final LatencyHistogram latency = new LatencyHistogram();
+    final AtomicLong writes = new AtomicLong();
+    final AtomicLong reads = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+
+    Phase(String name) {
+      this.name = name;
+    }
+
+    void record(boolean write, boolean ok, long micros) {
+      if (!ok) {
+        failures.incrementAndGet();
+        return;
+      }
+      (write ? writes : reads).incrementAndGet();
+      latency.record(micros);
+    }
+
+    String describe(long seconds) {
+      return String.format("%-21s %5.0f writes/s %5.0f reads/s %4d failed  ms p50 %6.2f p99 %7.2f max %7.2f%s",
+          name, writes.get() / (double) seconds, reads.get() / (double) seconds, failures.get(),
+          latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(99) / 1000.0,
+          latency.getMax() / 1000.0, detail != null ? "  (" + detail + ")" : "");
+    }
+  }
+}
@@ -0,0 +1,42 @@
+// One PUT/DELETE or membership change; a log value holds a batch of them, see PaxosCodec
+public class Command {
+  static final byte PUT = 1;
+  static final byte DELETE = 2;
+  // the key is a replica's "host:port"; see Membership
+  static final byte ADD_MEMBER = 3;
+  static final byte REMOVE_MEMBER = 4;
+
+  byte op;
+  String key;
+  String value;
+
+  public Command(byte op, String key, String value) {
+    this.op = op;
+    this.key = key;
+    this.value = value;
+  }
+
+  public static Command put(String key, String value) {
+    return new Command(PUT, key, value);
+  }
+
+  public static Command delete(String key) {
+    return new Command(DELETE, key, null);
+  }
+
+  public static Command addMember(String address) {
+    return new Command(ADD_MEMBER, address, null);
+  }
+
+  public static Command removeMember(String address) {
+    return new Command(REMOVE_MEMBER, address, null);
+  }
+
+  @Override
+  public String toString() {
+    if (op == ADD_MEMBER || op == REMOVE_MEMBER) {
+      return (op == ADD_MEMBER ? "ADD_MEMBER " : "REMOVE_MEMBER ") + key;
+    }
+    return op == PUT ? "PUT " + key + " " + value : "DELETE " + key;
+  }
+}
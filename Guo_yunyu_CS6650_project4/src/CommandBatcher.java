@@ -0,0 +1,179 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// Collects PUT/DELETE commands that arrive close together and proposes them as one log value.
+// Commands submitted together (a multi-key write) are never split across batches.
+public class CommandBatcher extends Thread {
+  private static final Logger logger = Logger.getLogger(CommandBatcher.class.getName());
+
+  private final Server server;
+  private final long windowMs;
+  private final int maxBatchSize;
+  // Pipelining: up to pipelineDepth batches may be proposed at once, each in its own slot
+  private final int pipelineDepth;
+  // at most pipelineDepth tasks at a time, each waiting on its accept round
+  private final ExecutorService proposalExecutor = Threads.perTask("batch-proposal");
+  // the queue and the number of batches being proposed, guarded by lock
+  private final Object lock = new Object();
+  private final ArrayDeque<PendingCommand> queue = new ArrayDeque<>();
+  private int proposing;
+  // Backpressure: commands queued or in flight, capped so an overloaded leader turns writes away
+  // at once instead of queueing them past every client's timeout
+  private final Semaphore queuedCommands;
+  private final int maxQueued;
+  private final AtomicLong rejected = new AtomicLong();
+  private volatile boolean running = true;
+
+  // batch size and queueing delay metrics
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong batchedCommands = new AtomicLong();
+  private final AtomicLong maxBatch = new AtomicLong();
+  private final AtomicLong totalQueueDelayMicros = new AtomicLong();
+  private final AtomicLong maxQueueDelayMicros = new AtomicLong();
+  private static final int STATS_LOG_INTERVAL = 100; // batches
+
+  public CommandBatcher(Server server, long windowMs, int maxBatchSize, int pipelineDepth, int maxQueued) {
+    super("command-batcher");
+    setDaemon(true);
+    this.server = server;
+    this.windowMs = windowMs;
+    this.maxBatchSize = maxBatchSize;
+    this.pipelineDepth = pipelineDepth;
+    this.maxQueued = maxQueued;
+    this.queuedCommands = new Semaphore(maxQueued);
+  }
+
+  // forwarded commands came from another replica's handoff and are never handed off again
+  public CompletableFuture<String> submit(List<Command> commands, boolean forwarded) {
+    if (!queuedCommands.tryAcquire(commands.size())) {
+      rejected.incrementAndGet();
+      return CompletableFuture.completedFuture(
+          "ERROR: Server overloaded, " + maxQueued + " commands already waiting; retry later");
+    }
+    PendingCommand pending = new PendingCommand(commands, forwarded);
+    synchronized (lock) {
+      queue.add(pending);
+      Clock.signalAll(lock);
+    }
+    return pending.result;
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        List<PendingCommand> batch = new ArrayList<>();
+        synchronized (lock) {
+          // While the window is full, commands keep queueing and the next batch grows
+          while (proposing >= pipelineDepth || queue.isEmpty()) {
+            Clock.await(lock, 0);
+          }
+          proposing++;
+          PendingCommand first = queue.poll();
+          batch.add(first);
+          int size = first.commands.size();
+          // keep collecting until the window closes or the batch is full; the last group may overfill it
+          long deadline = Clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMs);
+          while (size < maxBatchSize) {
+            PendingCommand next = queue.poll();
+            if (next == null) {
+              long remaining = deadline - Clock.nanoTime();
+              if (remaining <= 0) {
+                break;
+              }
+              Clock.await(lock, Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+              continue;
+            }
+            batch.add(next);
+            size += next.commands.size();
+          }
+        }
+        proposalExecutor.execute(() -> {
+          try {
+            proposeBatch(batch);
+          } finally {
+            synchronized (lock) {
+              proposing--;
+              Clock.signalAll(lock);
+            }
+          }
+        });
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        running = false;
+      }
+    }
+  }
+
+  private void proposeBatch(List<PendingCommand> batch) {
+    long now = Clock.nanoTime();
+    List<Command> commands = new ArrayList<>();
+    boolean mayHandOff = true;
+    for (PendingCommand pending : batch) {
+      mayHandOff &= !pending.forwarded;
+      long delayMicros = TimeUnit.NANOSECONDS.toMicros(now - pending.enqueuedAt);
+      totalQueueDelayMicros.addAndGet(delayMicros * pending.commands.size());
+      maxQueueDelayMicros.accumulateAndGet(delayMicros, Math::max);
+      commands.addAll(pending.commands);
+    }
+    batchedCommands.addAndGet(commands.size());
+    maxBatch.accumulateAndGet(commands.size(), Math::max);
+    if (batches.incrementAndGet() % STATS_LOG_INTERVAL == 0) {
+      logger.info("Batching stats: " + getStats());
+    }
+
+    String result;
+    try {
+      result = server.proposeValue(PaxosCodec.encodeCommands(commands), mayHandOff);
+    } catch (Exception e) {
+      result = "ERROR: " + e.getMessage();
+    }
+    queuedCommands.release(commands.size());
+    for (PendingCommand pending : batch) {
+      pending.result.complete(result);
+    }
+  }
+
+  public String getStats() {
+    long count = batches.get();
+    long commands = batchedCommands.get();
+    return "batches=" + count
+        + " commands=" + commands
+        + " avgBatchSize=" + (count == 0 ? 0 : (double) commands / count)
+        + " maxBatchSize=" + maxBatch.get()
+        + " avgQueueDelayUs=" + (commands == 0 ? 0 : totalQueueDelayMicros.get() / commands)
+        + " maxQueueDelayUs=" + maxQueueDelayMicros.get()
+        + " queued=" + getQueued()
+        + " rejected=" + rejected.get();
+  }
+
+  // commands accepted but not yet answered
+  public int getQueued() {
+    return maxQueued - queuedCommands.availablePermits();
+  }
+
+  public void shutdown() {
+    running = false;
+    interrupt();
+    proposalExecutor.shutdown();
+  }
+
+  private static class PendingCommand {
+    final List<Command> commands;
+    final boolean forwarded;
+    final long enqueuedAt = Clock.nanoTime();
+    final CompletableFuture<String> result = new CompletableFuture<>();
+
+    PendingCommand(List<Command> commands, boolean forwarded) {
+      this.commands = commands;
+      this.forwarded = forwarded;
+    }
+  }
+}
@@ -0,0 +1,508 @@
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+// Storage engine for many small keys. Almost every entry lives in an immutable sorted run: keys and
+// values packed as UTF-8 into 16 MB byte[] slabs, found by binary search over one long[] of record
+// positions. That is about 8 bytes of overhead per entry and a handful of objects in total, instead of
+// a skip list node, index nodes, two Strings and two arrays per entry for the collector to trace.
+// New writes go to a small skip-list memtable; once it holds an eighth of the run (at least
+// paxos.store.memtableEntries) it is frozen and merged with the run on a background thread while a
+// fresh memtable takes writes. Deletes of keys that are in the run are kept as tombstones until then.
+// A hash index would not do here: scans and catch-up page through the store in key order.
+// Keys are ordered by code point, which is the UTF-8 byte order and differs from String.compareTo only
+// for characters outside the Basic Multilingual Plane. Lone surrogates do not survive UTF-8 encoding.
+public class CompactStore implements StorageEngine {
+  private static final Logger logger = Logger.getLogger(CompactStore.class.getName());
+  private static final int MIN_MEMTABLE = Integer.getInteger("paxos.store.memtableEntries", 65536);
+  static final Comparator<String> ORDER = CompactStore::compareCodePoints;
+  // compared by identity; no stored value is this instance
+  private static final String TOMBSTONE = new String("");
+  private static final ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+    Thread thread = new Thread(r, "store-merge");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private volatile State state;
+  // writer-side bookkeeping, guarded by this
+  private int size;
+  private int activeEntries;
+  private boolean merging;
+
+  public CompactStore() {
+    this(new State(Run.EMPTY, null, memtable()), 0);
+  }
+
+  private CompactStore(State state, int size) {
+    this.state = state;
+    this.size = size;
+  }
+
+  private static ConcurrentSkipListMap<String, String> memtable() {
+    return new ConcurrentSkipListMap<>(ORDER);
+  }
+
+  @Override
+  public String get(String key) {
+    State current = state;
+    String value = current.active.get(key);
+    if (value == null) {
+      return below(current, key);
+    }
+    return value == TOMBSTONE ? null : value;
+  }
+
+  // The value under the memtable: in the frozen memtable being merged, else in the run
+  private static String below(State current, String key) {
+    if (current.frozen != null) {
+      String value = current.frozen.get(key);
+      if (value != null) {
+        return value == TOMBSTONE ? null : value;
+      }
+    }
+    return current.run.get(key);
+  }
+
+  @Override
+  public synchronized void put(String key, String value) {
+    State current = state;
+    String previous = current.active.put(key, value);
+    if (previous == null) {
+      activeEntries++;
+      if (below(current, key) == null) {
+        size++;
+      }
+    } else if (previous == TOMBSTONE) {
+      size++;
+    }
+    maybeFreeze();
+  }
+
+  @Override
+  public synchronized void remove(String key) {
+    State current = state;
+    String previous = current.active.get(key);
+    String underneath = below(current, key);
+    if (previous == null ? underneath == null : previous == TOMBSTONE) {
+      return;
+    }
+    size--;
+    if (underneath == null) {
+      current.active.remove(key);
+      activeEntries--;
+    } else {
+      if (previous == null) {
+        activeEntries++;
+      }
+      current.active.put(key, TOMBSTONE);
+      maybeFreeze();
+    }
+  }
+
+  @Override
+  public synchronized int size() {
+    return size;
+  }
+
+  private void maybeFreeze() {
+    State current = state;
+    if (merging || activeEntries < Math.max(MIN_MEMTABLE, current.run.size() / 8)) {
+      return;
+    }
+    merging = true;
+    NavigableMap<String, String> frozen = current.active;
+    state = new State(current.run, frozen, memtable());
+    activeEntries = 0;
+    merger.execute(() -> merge(current.run, frozen));
+  }
+
+  private void merge(Run run, NavigableMap<String, String> frozen) {
+    Run merged;
+    try {
+      merged = Run.merge(run, frozen);
+    } catch (RuntimeException | OutOfMemoryError e) {
+      logger.severe("Store merge failed, memtable keeps growing: " + e);
+      synchronized (this) {
+        // fold the frozen entries back under the live memtable so the next merge retries them
+        ConcurrentSkipListMap<String, String> active = memtable();
+        active.putAll(frozen);
+        active.putAll(state.active);
+        state = new State(run, null, active);
+        activeEntries = active.size();
+        merging = false;
+      }
+      return;
+    }
+    synchronized (this) {
+      state = new State(merged, null, state.active);
+      merging = false;
+      maybeFreeze();
+    }
+  }
+
+  // Merges the memtable into the run and waits for it; for measuring the settled layout
+  synchronized void flush() throws InterruptedException {
+    while (merging || activeEntries > 0) {
+      if (!merging) {
+        merging = true;
+        State current = state;
+        NavigableMap<String, String> frozen = current.active;
+        state = new State(current.run, frozen, memtable());
+        activeEntries = 0;
+        merger.execute(() -> merge(current.run, frozen));
+      }
+      wait(10);
+    }
+  }
+
+  @Override
+  public Iterator<Map.Entry<String, String>> scan(String from, boolean inclusive) {
+    State current = state;
+    NavigableMap<String, String> frozen = current.frozen == null
+        ? Collections.emptyNavigableMap() : current.frozen.tailMap(from, inclusive);
+    return new MergingIterator(current.active.tailMap(from, inclusive).entrySet().iterator(),
+        frozen.entrySet().iterator(), current.run.iterator(current.run.lowerBound(from, inclusive)));
+  }
+
+  // The run is immutable and shared; only the memtables, at most an eighth of it, are copied
+  @Override
+  public synchronized StorageEngine snapshot() {
+    State current = state;
+    ConcurrentSkipListMap<String, String> active = memtable();
+    if (current.frozen != null) {
+      active.putAll(current.frozen);
+    }
+    active.putAll(current.active);
+    CompactStore copy = new CompactStore(new State(current.run, null, active), size);
+    copy.activeEntries = active.size();
+    return copy;
+  }
+
+  static boolean isTombstone(String value) {
+    return value == TOMBSTONE;
+  }
+
+  static int compareCodePoints(String a, String b) {
+    int n = Math.min(a.length(), b.length());
+    for (int i = 0; i < n; i++) {
+      char x = a.charAt(i);
+      char y = b.charAt(i);
+      if (x != y) {
+        return codePointOrder(x) - codePointOrder(y);
+      }
+    }
+    return a.length() - b.length();
+  }
+
+  // Moves surrogates above U+E000..U+FFFF, so UTF-16 units sort the way their code points do
+  private static int codePointOrder(char c) {
+    if (c < 0xD800) {
+      return c;
+    }
+    return c >= 0xE000 ? c - 0x800 : c + 0x2000;
+  }
+
+  private static class State {
+    final Run run;
+    final NavigableMap<String, String> frozen; // being merged into the run, or null
+    final ConcurrentSkipListMap<String, String> active;
+
+    State(Run run, NavigableMap<String, String> frozen, ConcurrentSkipListMap<String, String> active) {
+      this.run = run;
+      this.frozen = frozen;
+      this.active = active;
+    }
+  }
+
+  // Three sorted sources, newest first; on equal keys the newest wins and tombstones hide the key
+  private static class MergingIterator implements Iterator<Map.Entry<String, String>> {
+    private final List<Iterator<Map.Entry<String, String>>> sources;
+    // the next entry of each source, null once it is exhausted
+    private final List<Map.Entry<String, String>> heads = new ArrayList<>();
+    private Map.Entry<String, String> next;
+
+    MergingIterator(Iterator<Map.Entry<String, String>> active, Iterator<Map.Entry<String, String>> frozen,
+        Iterator<Map.Entry<String, String>> run) {
+      sources = List.of(active, frozen, run);
+      for (Iterator<Map.Entry<String, String>> source : sources) {
+        heads.add(source.hasNext() ? source.next() : null);
+      }
+      next = compute();
+    }
+
+    private void advance(int i) {
+      Iterator<Map.Entry<String, String>> source = sources.get(i);
+      heads.set(i, source.hasNext() ? source.next() : null);
+    }
+
+    private Map.Entry<String, String> compute() {
+      while (true) {
+        int newest = -1;
+        for (int i = 0; i < heads.size(); i++) {
+          Map.Entry<String, String> head = heads.get(i);
+          if (head != null && (newest < 0 || ORDER.compare(head.getKey(), heads.get(newest).getKey()) < 0)) {
+            newest = i;
+          }
+        }
+        if (newest < 0) {
+          return null;
+        }
+        Map.Entry<String, String> entry = heads.get(newest);
+        for (int i = heads.size() - 1; i >= newest; i--) {
+          Map.Entry<String, String> head = heads.get(i);
+          if (head != null && head.getKey().equals(entry.getKey())) {
+            advance(i);
+          }
+        }
+        if (entry.getValue() != TOMBSTONE) {
+          return new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, String> next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, String> result = next;
+      next = compute();
+      return result;
+    }
+  }
+}
+
+// Immutable sorted entries packed into slabs. Record: [varint keyLen][key][varint valueLen][value];
+// a position is the slab number in the high 32 bits and the offset in the low 32.
+class Run {
+  private static final int SLAB_SIZE = Integer.getInteger("paxos.store.slabBytes", 1 << 24);
+  static final Run EMPTY = new Run(new byte[0][], new long[0], 0);
+
+  private final byte[][] slabs;
+  private final long[] positions;
+  private final int count;
+
+  private Run(byte[][] slabs, long[] positions, int count) {
+    this.slabs = slabs;
+    this.positions = positions;
+    this.count = count;
+  }
+
+  int size() {
+    return count;
+  }
+
+  String get(String key) {
+    int index = find(key.getBytes(StandardCharsets.UTF_8));
+    return index < 0 ? null : value(index);
+  }
+
+  // Index of the first entry after key (or at it, when inclusive)
+  int lowerBound(String key, boolean inclusive) {
+    int index = find(key.getBytes(StandardCharsets.UTF_8));
+    if (index >= 0) {
+      return inclusive ? index : index + 1;
+    }
+    return -index - 1;
+  }
+
+  // Binary search; -(insertion point) - 1 when absent, as Arrays.binarySearch
+  private int find(byte[] key) {
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareKey(mid, key);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  private int compareKey(int index, byte[] key) {
+    byte[] slab = slabs[(int) (positions[index] >>> 32)];
+    int offset = (int) positions[index];
+    int length = readVarint(slab, offset);
+    offset += varintSize(length);
+    return Arrays.compareUnsigned(slab, offset, offset + length, key, 0, key.length);
+  }
+
+  String key(int index) {
+    byte[] slab = slabs[(int) (positions[index] >>> 32)];
+    int offset = (int) positions[index];
+    int length = readVarint(slab, offset);
+    return new String(slab, offset + varintSize(length), length, StandardCharsets.UTF_8);
+  }
+
+  String value(int index) {
+    byte[] slab = slabs[(int) (positions[index] >>> 32)];
+    int offset = (int) positions[index];
+    int keyLength = readVarint(slab, offset);
+    offset += varintSize(keyLength) + keyLength;
+    int length = readVarint(slab, offset);
+    return new String(slab, offset + varintSize(length), length, StandardCharsets.UTF_8);
+  }
+
+  private int recordLength(int index) {
+    byte[] slab = slabs[(int) (positions[index] >>> 32)];
+    int start = (int) positions[index];
+    int offset = start;
+    int keyLength = readVarint(slab, offset);
+    offset += varintSize(keyLength) + keyLength;
+    int length = readVarint(slab, offset);
+    return offset + varintSize(length) + length - start;
+  }
+
+  Iterator<Map.Entry<String, String>> iterator(int from) {
+    return new Iterator<Map.Entry<String, String>>() {
+      private int index = from;
+
+      @Override
+      public boolean hasNext() {
+        return index < count;
+      }
+
+      @Override
+      public Map.Entry<String, String> next() {
+        if (index >= count) {
+          throw new NoSuchElementException();
+        }
+        int i = index++;
+        return new AbstractMap.SimpleImmutableEntry<>(key(i), value(i));
+      }
+    };
+  }
+
+  // Newer entries override the run and tombstones drop the key. Run records are copied as bytes without being decoded.
+  static Run merge(Run run, NavigableMap<String, String> newer) {
+    Builder builder = new Builder(run.count + newer.size());
+    Iterator<Map.Entry<String, String>> updates = newer.entrySet().iterator();
+    Map.Entry<String, String> update = updates.hasNext() ? updates.next() : null;
+    byte[] updateKey = update == null ? null : update.getKey().getBytes(StandardCharsets.UTF_8);
+    int index = 0;
+    while (index < run.count || update != null) {
+      int cmp = index == run.count ? 1 : update == null ? -1 : run.compareKey(index, updateKey);
+      if (cmp < 0) {
+        builder.copy(run, index++);
+        continue;
+      }
+      if (cmp == 0) {
+        index++; // overwritten or deleted
+      }
+      if (!CompactStore.isTombstone(update.getValue())) {
+        builder.add(updateKey, update.getValue().getBytes(StandardCharsets.UTF_8));
+      }
+      update = updates.hasNext() ? updates.next() : null;
+      updateKey = update == null ? null : update.getKey().getBytes(StandardCharsets.UTF_8);
+    }
+    return builder.build();
+  }
+
+  static int readVarint(byte[] bytes, int offset) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = bytes[offset++];
+      value |= (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  static int varintSize(int value) {
+    int size = 1;
+    while ((value >>>= 7) != 0) {
+      size++;
+    }
+    return size;
+  }
+
+  private static class Builder {
+    private byte[][] slabs = new byte[4][];
+    private int slabCount = 0;
+    private byte[] slab;
+    private int offset;
+    private long[] positions;
+    private int count;
+
+    Builder(int capacity) {
+      positions = new long[capacity];
+    }
+
+    void add(byte[] key, byte[] value) {
+      int length = varintSize(key.length) + key.length + varintSize(value.length) + value.length;
+      reserve(length);
+      positions[count++] = ((long) (slabCount - 1) << 32) | offset;
+      offset = writeVarint(slab, offset, key.length);
+      System.arraycopy(key, 0, slab, offset, key.length);
+      offset = writeVarint(slab, offset + key.length, value.length);
+      System.arraycopy(value, 0, slab, offset, value.length);
+      offset += value.length;
+    }
+
+    void copy(Run run, int index) {
+      int length = run.recordLength(index);
+      reserve(length);
+      positions[count++] = ((long) (slabCount - 1) << 32) | offset;
+      System.arraycopy(run.slabs[(int) (run.positions[index] >>> 32)], (int) run.positions[index], slab, offset, length);
+      offset += length;
+    }
+
+    // Starts a new slab when the record does not fit; an oversized record gets a slab of its own
+    private void reserve(int length) {
+      if (slab != null && offset + length <= slab.length) {
+        return;
+      }
+      trimLast();
+      if (slabCount == slabs.length) {
+        slabs = Arrays.copyOf(slabs, slabCount * 2);
+      }
+      slab = new byte[Math.max(SLAB_SIZE, length)];
+      slabs[slabCount++] = slab;
+      offset = 0;
+    }
+
+    private void trimLast() {
+      if (slab != null && offset < slab.length) {
+        slabs[slabCount - 1] = Arrays.copyOf(slab, offset);
+      }
+    }
+
+    private static int writeVarint(byte[] bytes, int offset, int value) {
+      while ((value & ~0x7F) != 0) {
+        bytes[offset++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      bytes[offset++] = (byte) value;
+      return offset;
+    }
+
+    Run build() {
+      trimLast();
+      return new Run(Arrays.copyOf(slabs, slabCount), count == positions.length ? positions : Arrays.copyOf(positions, count), count);
+    }
+  }
+}
@@ -0,0 +1,152 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Crash/restart check for the write-ahead log, snapshots and catch-up. Runs an in-process cluster, writes
+// under load, then (1) restarts one replica, (2) keeps one down through a short and then a long stretch of
+// writes, so it catches up from log entries and then from a snapshot, and (3) restarts every replica.
+// Recovered stores must match what they held before and every replica must converge. Replicas are stopped without taking a
+// snapshot; the log is written with unbuffered channel writes, so what reaches disk is what a killed
+// process would leave behind.
+// Defaults to the TCP transport; with RMI a restarted replica is reached again once the failure detector
+// has replaced its stale stubs.
+// Usage: java CrashRestartHarness [writes] [clientThreads] [basePort]
+public class CrashRestartHarness {
+  private static final int SERVERS = 5;
+  private static final long CONVERGE_TIMEOUT_MS = 15000;
+
+  public static void main(String[] args) throws Exception {
+    int writes = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+    int basePort = args.length > 2 ? Integer.parseInt(args[2]) : 7001;
+    if (System.getProperty("paxos.transport") == null) {
+      System.setProperty("paxos.transport", "tcp");
+    }
+    // small intervals exercise snapshots, segment rotation and compaction within a short run
+    if (System.getProperty("paxos.snapshot.interval") == null) {
+      System.setProperty("paxos.snapshot.interval", "100");
+    }
+    if (System.getProperty("paxos.log.retain") == null) {
+      System.setProperty("paxos.log.retain", "50");
+    }
+    Logger.getLogger("").setLevel(Level.WARNING);
+    LocalCluster.useTemporaryDataDir();
+    System.out.println("Data directory: " + System.getProperty("paxos.dataDir"));
+
+    LocalCluster cluster = new LocalCluster(SERVERS, basePort);
+    cluster.start();
+    boolean ok = true;
+
+    write(cluster, 0, writes, threads);
+    ok &= checkConverged(cluster, "after initial load");
+
+    Map<String, String> before = storeOf(cluster.servers().get(0));
+    long start = System.currentTimeMillis();
+    Server restarted = cluster.restart(0);
+    System.out.println("Restarted server 1 in " + (System.currentTimeMillis() - start) + " ms");
+    ok &= check("server 1 recovered its store", before.equals(storeOf(restarted)));
+
+    write(cluster, writes, writes / 2, threads);
+    ok &= checkConverged(cluster, "after writes following single restart");
+
+    int next = writes + writes / 2;
+    cluster.stop(1);
+    write(cluster, next, 20, threads);
+    next += 20;
+    cluster.restart(1);
+    ok &= checkConverged(cluster, "after server 2 caught up on a few missed slots");
+
+    cluster.stop(1);
+    write(cluster, next, writes, threads);
+    next += writes;
+    cluster.restart(1);
+    ok &= checkConverged(cluster, "after server 2 caught up past the compacted log");
+
+    List<Map<String, String>> stores = new ArrayList<>();
+    for (Server server : cluster.servers()) {
+      stores.add(storeOf(server));
+    }
+    start = System.currentTimeMillis();
+    cluster.shutdown();
+    cluster = new LocalCluster(SERVERS, basePort);
+    cluster.start();
+    System.out.println("Restarted all servers in " + (System.currentTimeMillis() - start) + " ms");
+    for (int i = 0; i < SERVERS; i++) {
+      ok &= check("server " + (i + 1) + " recovered its store after full restart",
+          stores.get(i).equals(storeOf(cluster.servers().get(i))));
+    }
+
+    write(cluster, next, writes / 2, threads);
+    ok &= checkConverged(cluster, "after writes following full restart");
+
+    cluster.shutdown();
+    System.out.println(ok ? "PASS" : "FAIL");
+    System.exit(ok ? 0 : 1);
+  }
+
+  // Unique keys plus an overwrite and a delete every few writes, spread across the running replicas
+  private static void write(LocalCluster cluster, int from, int count, int threads) throws Exception {
+    List<Server> servers = cluster.running();
+    ExecutorService clients = Executors.newFixedThreadPool(threads);
+    List<Future<String>> results = new ArrayList<>();
+    for (int i = from; i < from + count; i++) {
+      int n = i;
+      results.add(clients.submit(() -> {
+        Server server = servers.get(n % servers.size());
+        String result = server.put("key" + n, "value" + n);
+        if (n % 7 == 0) {
+          result = server.put("key" + (n / 2), "overwritten" + n);
+        } else if (n % 11 == 0) {
+          result = server.delete("key" + (n - 1));
+        }
+        return result;
+      }));
+    }
+    int failures = 0;
+    for (Future<String> result : results) {
+      if (!result.get().startsWith("SUCCESS")) {
+        failures++;
+      }
+    }
+    clients.shutdown();
+    System.out.println("Wrote " + count + " keys, " + failures + " failed requests");
+  }
+
+  // Lagging replicas catch up in the background, so allow them a while
+  private static boolean checkConverged(LocalCluster cluster, String when) throws Exception {
+    long deadline = System.currentTimeMillis() + CONVERGE_TIMEOUT_MS;
+    while (true) {
+      Thread.sleep(500);
+      Map<String, String> expected = storeOf(cluster.servers().get(0));
+      boolean same = true;
+      for (Server server : cluster.servers()) {
+        same &= expected.equals(storeOf(server));
+      }
+      if (same || System.currentTimeMillis() > deadline) {
+        return check("replicas converged " + when + " (" + expected.size() + " keys)", same);
+      }
+    }
+  }
+
+  private static boolean check(String what, boolean passed) {
+    System.out.println((passed ? "ok   " : "FAIL ") + what);
+    return passed;
+  }
+
+  private static Map<String, String> storeOf(Server server) throws Exception {
+    Map<String, String> store = new HashMap<>();
+    for (String line : server.getAll().split("\n")) {
+      if (!line.isEmpty()) {
+        String[] parts = line.split(" ", 2);
+        store.put(parts[0], parts[1]);
+      }
+    }
+    return store;
+  }
+}
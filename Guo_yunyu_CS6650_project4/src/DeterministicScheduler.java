@@ -0,0 +1,481 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.StringJoiner;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.random.RandomGenerator;
+
+// Seeded, single-threaded scheduler over a virtual clock, for simulated runs that a seed reproduces
+// exactly (ClusterSimulator). The servers keep their threads, but while run() is in progress every thread
+// they start through Threads is a simulated thread, and only one of them executes at a time. A thread
+// runs until it blocks through Clock (sleep, await, get); the scheduler then hands control to a thread
+// that is ready, picked with the seeded random stream, and when none is ready it advances the clock to
+// the earliest deadline any thread waits for. Each handover is one step of the run. So time passes only
+// in sleeps and timeouts (message delays, batch windows, backoff, heartbeat intervals), never while code
+// runs, and the order of steps depends on nothing but the seed. A simulated thread that blocks any other
+// way, or holds a monitor while it blocks other than the one it awaits, stops the run; after
+// sim.watchdogMs of real time with no step the run fails with that thread's stack.
+public final class DeterministicScheduler {
+  private static final long WATCHDOG_MS = Long.getLong("sim.watchdogMs", 30000);
+  private static final long NEVER = Long.MAX_VALUE;
+
+  private final SplittableRandom order; // which ready thread runs next
+  private final SplittableRandom random; // Clock.random() for the code being run
+  private final List<SimThread> ready = new ArrayList<>();
+  private final PriorityQueue<SimThread> timers = new PriorityQueue<>((a, b) -> a.deadline != b.deadline
+      ? Long.compare(a.deadline, b.deadline) : Integer.compare(a.id, b.id));
+  // monitor or future -> threads waiting on it, in the order they started waiting
+  private final Map<Object, List<SimThread>> waiters = new IdentityHashMap<>();
+  private final List<SimThread> live = new ArrayList<>();
+  private final ThreadLocal<SimThread> self = new ThreadLocal<>();
+  private volatile long now;
+  private volatile long steps;
+  private long trace = 17;
+  private int nextId;
+  private SimThread current;
+  private SimThread main;
+  private boolean finished;
+  private String failure;
+  private Throwable thrown; // by the task given to run()
+
+  public DeterministicScheduler(long seed) {
+    SplittableRandom seeds = new SplittableRandom(seed);
+    this.order = seeds.split();
+    this.random = seeds.split();
+  }
+
+  // Runs task as the first simulated thread, returning when it returns and rethrowing what it throws.
+  // Threads still alive then stay parked for good.
+  public void run(Runnable task) throws InterruptedException {
+    Clock.simulate(this);
+    try {
+      SimThread first;
+      synchronized (this) {
+        main = spawn(task, "sim-main");
+        first = pickNext();
+      }
+      grant(first);
+      synchronized (this) {
+        long seen = -1;
+        while (!finished) {
+          if (steps == seen) {
+            fail("no step for " + WATCHDOG_MS + " ms: " + current.name + " is blocked outside the scheduler"
+                + stackOf(current));
+            break;
+          }
+          seen = steps;
+          wait(WATCHDOG_MS);
+        }
+      }
+    } finally {
+      Clock.simulate(null);
+    }
+    if (thrown instanceof RuntimeException) {
+      throw (RuntimeException) thrown;
+    }
+    if (thrown instanceof Error) {
+      throw (Error) thrown;
+    }
+    if (failure != null) {
+      throw new IllegalStateException(failure);
+    }
+  }
+
+  public long now() {
+    return now;
+  }
+
+  public long steps() {
+    return steps;
+  }
+
+  // A hash of every step's thread and time; equal for two runs only if they were scheduled the same way
+  public synchronized long trace() {
+    return trace;
+  }
+
+  RandomGenerator random() {
+    return random;
+  }
+
+  boolean runsCurrentThread() {
+    return self.get() != null;
+  }
+
+  // A new simulated thread, ready to run; it first runs when picked
+  SimThread spawn(Runnable task, String name) {
+    SimThread thread;
+    synchronized (this) {
+      thread = new SimThread(nextId++, name);
+      live.add(thread);
+      ready.add(thread);
+    }
+    Thread carrier = new Thread(() -> {
+      self.set(thread);
+      park(thread);
+      try {
+        task.run();
+      } catch (Throwable e) {
+        if (thread == main) {
+          thrown = e;
+        } else {
+          Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+        }
+      } finally {
+        exit(thread);
+      }
+    }, name);
+    carrier.setDaemon(true);
+    thread.carrier = carrier;
+    carrier.start();
+    return thread;
+  }
+
+  void sleep(long nanos) throws InterruptedException {
+    SimThread me = enter();
+    synchronized (this) {
+      if (nanos > 0) {
+        schedule(me, now + nanos);
+      } else {
+        ready.add(me); // a yield: any other ready thread may go first
+      }
+    }
+    block(me, me);
+    leave(me);
+  }
+
+  // The caller holds monitor; it is released while waiting, as by monitor.wait()
+  void await(Object monitor, long timeoutMs) throws InterruptedException {
+    SimThread me = enter();
+    synchronized (this) {
+      waitOn(me, monitor, timeoutMs);
+    }
+    block(me, monitor);
+    leave(me);
+  }
+
+  synchronized void signalAll(Object monitor) {
+    List<SimThread> waiting = waiters.remove(monitor);
+    if (waiting == null) {
+      return;
+    }
+    for (SimThread thread : waiting) {
+      thread.waitingOn = null;
+      unschedule(thread);
+      ready.add(thread);
+    }
+  }
+
+  // Returns once the future is done, or after timeoutMs if it is not
+  void awaitDone(CompletableFuture<?> future, long timeoutMs) throws InterruptedException {
+    SimThread me = enter();
+    if (future.isDone()) {
+      return;
+    }
+    synchronized (this) {
+      waitOn(me, future, timeoutMs);
+    }
+    // runs on whichever simulated thread completes the future
+    future.whenComplete((result, error) -> signalAll(future));
+    block(me, me);
+    leave(me);
+  }
+
+  // Makes a waiting thread ready, to throw InterruptedException from the wait
+  synchronized void interrupt(SimThread thread) {
+    thread.interrupted = true;
+    if (thread.waitingOn != null || thread.deadline != NEVER) {
+      stopWaiting(thread);
+      unschedule(thread);
+      ready.add(thread);
+    }
+  }
+
+  // Executors.newCachedThreadPool stand-in: every task is a new simulated thread
+  ExecutorService perTask(String name) {
+    return new SimExecutor(name, false);
+  }
+
+  // Executors.newSingleThreadExecutor stand-in: tasks run one after another, in order
+  ExecutorService serial(String name) {
+    return new SimExecutor(name, true);
+  }
+
+  private SimThread enter() throws InterruptedException {
+    SimThread me = self.get();
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+    return me;
+  }
+
+  private void leave(SimThread me) throws InterruptedException {
+    if (me.interrupted || Thread.interrupted()) {
+      me.interrupted = false;
+      throw new InterruptedException();
+    }
+  }
+
+  // Callers hold this
+  private void waitOn(SimThread me, Object target, long timeoutMs) {
+    waiters.computeIfAbsent(target, k -> new ArrayList<>()).add(me);
+    me.waitingOn = target;
+    if (timeoutMs > 0) {
+      schedule(me, now + TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+    }
+  }
+
+  // Callers hold this
+  private void stopWaiting(SimThread thread) {
+    if (thread.waitingOn == null) {
+      return;
+    }
+    List<SimThread> waiting = waiters.get(thread.waitingOn);
+    waiting.remove(thread);
+    if (waiting.isEmpty()) {
+      waiters.remove(thread.waitingOn);
+    }
+    thread.waitingOn = null;
+  }
+
+  // Callers hold this
+  private void schedule(SimThread thread, long deadline) {
+    thread.deadline = deadline;
+    timers.add(thread);
+  }
+
+  // Callers hold this
+  private void unschedule(SimThread thread) {
+    if (thread.deadline != NEVER) {
+      timers.remove(thread);
+      thread.deadline = NEVER;
+    }
+  }
+
+  // The calling thread has recorded what it waits for: hand over to the next thread and park on `on`
+  // until picked again
+  private void block(SimThread me, Object on) {
+    SimThread next;
+    synchronized (this) {
+      me.parkedOn = on;
+      next = pickNext();
+    }
+    if (next == me) {
+      return;
+    }
+    if (next != null) {
+      grant(next);
+    }
+    park(me);
+  }
+
+  private void exit(SimThread thread) {
+    SimThread next;
+    synchronized (this) {
+      live.remove(thread);
+      if (thread == main) {
+        finished = true;
+        notifyAll();
+        return;
+      }
+      next = pickNext();
+    }
+    if (next != null) {
+      grant(next);
+    }
+  }
+
+  // The thread to run next: one of the ready threads, or if there are none, every thread whose deadline
+  // is the earliest, once the clock has moved to it. Callers hold this.
+  private SimThread pickNext() {
+    if (ready.isEmpty()) {
+      SimThread first = timers.peek();
+      if (first == null) {
+        fail("deadlock: every simulated thread waits without a timeout\n" + describe());
+        return null;
+      }
+      now = Math.max(now, first.deadline);
+      while (!timers.isEmpty() && timers.peek().deadline <= now) {
+        SimThread expired = timers.poll();
+        expired.deadline = NEVER;
+        stopWaiting(expired);
+        ready.add(expired);
+      }
+    }
+    SimThread next = ready.remove(ready.size() == 1 ? 0 : order.nextInt(ready.size()));
+    current = next;
+    steps++;
+    trace = (trace * 1000003) ^ (next.id * 0x9E3779B97F4A7C15L + now);
+    return next;
+  }
+
+  // A thread parks on its own SimThread, or inside await() on the monitor it waits for, which wait()
+  // releases; so a parked thread holds no monitor another thread could need
+  private static void grant(SimThread next) {
+    Object on = next.parkedOn;
+    synchronized (on) {
+      next.granted = true;
+      on.notifyAll();
+    }
+  }
+
+  private static void park(SimThread me) {
+    Object on = me.parkedOn;
+    boolean interrupted = false;
+    synchronized (on) {
+      while (!me.granted) {
+        try {
+          on.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      me.granted = false;
+    }
+    if (interrupted) {
+      me.interrupted = true;
+    }
+  }
+
+  // Callers hold this
+  private void fail(String why) {
+    if (failure == null) {
+      failure = why;
+    }
+    finished = true;
+    notifyAll();
+  }
+
+  // Callers hold this
+  private String describe() {
+    StringJoiner states = new StringJoiner("\n");
+    for (SimThread thread : live) {
+      states.add("  " + thread.name + (thread.waitingOn != null ? " waiting on " + thread.waitingOn : "")
+          + (thread.deadline != NEVER ? " until " + thread.deadline : "") + stackOf(thread));
+    }
+    return states.toString();
+  }
+
+  private static String stackOf(SimThread thread) {
+    StringBuilder stack = new StringBuilder();
+    for (StackTraceElement frame : thread.carrier.getStackTrace()) {
+      stack.append("\n      at ").append(frame);
+    }
+    return stack.toString();
+  }
+
+  static final class SimThread {
+    final int id;
+    final String name;
+    Thread carrier;
+    // what it parks on while not running, and whether it has been picked to run; granted is guarded by
+    // parkedOn
+    Object parkedOn = this;
+    boolean granted;
+    Object waitingOn;
+    long deadline = NEVER;
+    volatile boolean interrupted;
+
+    SimThread(int id, String name) {
+      this.id = id;
+      this.name = name;
+    }
+  }
+
+  private final class SimExecutor extends AbstractExecutorService {
+    private final String name;
+    private final boolean serial;
+    private final ArrayDeque<Runnable> queued = new ArrayDeque<>();
+    private final List<SimThread> running = new ArrayList<>();
+    private int started;
+    private boolean shutdown;
+
+    SimExecutor(String name, boolean serial) {
+      this.name = name;
+      this.serial = serial;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+      synchronized (DeterministicScheduler.this) {
+        if (shutdown) {
+          throw new RejectedExecutionException(name + " has been shut down");
+        }
+        if (serial && !running.isEmpty()) {
+          queued.add(task);
+        } else {
+          start(task);
+        }
+      }
+    }
+
+    // Callers hold the scheduler
+    private void start(Runnable task) {
+      SimThread[] thread = new SimThread[1];
+      thread[0] = spawn(() -> {
+        try {
+          task.run();
+        } finally {
+          finished(thread[0]);
+        }
+      }, name + "-" + started++);
+      running.add(thread[0]);
+    }
+
+    private void finished(SimThread thread) {
+      synchronized (DeterministicScheduler.this) {
+        running.remove(thread);
+        if (!queued.isEmpty()) {
+          start(queued.poll());
+        }
+      }
+    }
+
+    @Override
+    public void shutdown() {
+      synchronized (DeterministicScheduler.this) {
+        shutdown = true;
+      }
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      synchronized (DeterministicScheduler.this) {
+        shutdown = true;
+        for (SimThread thread : running) {
+          interrupt(thread);
+        }
+        List<Runnable> dropped = new ArrayList<>(queued);
+        queued.clear();
+        return dropped;
+      }
+    }
+
+    @Override
+    public boolean isShutdown() {
+      synchronized (DeterministicScheduler.this) {
+        return shutdown;
+      }
+    }
+
+    @Override
+    public boolean isTerminated() {
+      synchronized (DeterministicScheduler.this) {
+        return shutdown && running.isEmpty() && queued.isEmpty();
+      }
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      throw new UnsupportedOperationException("awaitTermination is not simulated");
+    }
+  }
+}
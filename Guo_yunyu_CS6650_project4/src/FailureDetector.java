@@ -0,0 +1,220 @@
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Logger;
+
+// Heartbeat failure detector for the other members of the group, phi accrual style (Hayashibara et al.).
+// Every paxos.fd.intervalMs each member is pinged. The gaps between successful replies give a per-peer
+// mean and deviation, and phi = -log10(P(no reply for this long)) rises the longer a peer is silent
+// compared with how it usually behaves. A peer is suspected while phi is above paxos.fd.phiThreshold;
+// the proposer leaves suspected peers out of its rounds. A failed heartbeat is just a missing reply, so
+// one lost ping does not make a peer suspected. Only a failure showing the connection itself is gone
+// (refused, or a stub the peer no longer exports) makes us look the peer up again, with backoff, which
+// replaces the stub of a restarted peer and connects one that was not up when this server started.
+// Paxos messages a peer sends us count as replies too, though only heartbeats feed the gap statistics.
+public class FailureDetector extends Thread {
+  private static final Logger logger = Logger.getLogger(FailureDetector.class.getName());
+  private static final long INTERVAL_MS = Long.getLong("paxos.fd.intervalMs", 100);
+  private static final double PHI_THRESHOLD = Double.parseDouble(System.getProperty("paxos.fd.phiThreshold", "8"));
+  private static final long MIN_STD_DEV_MS = Long.getLong("paxos.fd.minStdDevMs", 25);
+  private static final long RECONNECT_MIN_MS = Long.getLong("paxos.fd.reconnectMinMs", 100);
+  private static final long RECONNECT_MAX_MS = Long.getLong("paxos.fd.reconnectMaxMs", 5000);
+
+  private final Server server;
+  private final Map<String, PeerHealth> peers = new ConcurrentHashMap<>();
+  // one heartbeat per peer at a time, so a peer that hangs only holds up its own
+  private final ExecutorService heartbeats = Threads.perTask("heartbeat");
+  private volatile boolean running = true;
+
+  public FailureDetector(Server server) {
+    super("failure-detector");
+    setDaemon(true);
+    this.server = server;
+  }
+
+  public void shutdown() {
+    running = false;
+    interrupt();
+    heartbeats.shutdownNow();
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      for (String member : server.getMembership().members()) {
+        if (member.equals(server.getAddress())) {
+          continue;
+        }
+        PeerHealth health = peers.computeIfAbsent(member, k -> new PeerHealth());
+        if (health.startHeartbeat()) {
+          heartbeats.execute(() -> heartbeat(member, health));
+        }
+      }
+      peers.keySet().retainAll(server.getMembership().members());
+      try {
+        Clock.sleep(INTERVAL_MS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private void heartbeat(String member, PeerHealth health) {
+    try {
+      KeyValueRPC peer = server.getConnection(member);
+      if (peer == null || health.stale) {
+        if (Clock.nanoTime() < health.reconnectAtNanos) {
+          return;
+        }
+        if (!server.reconnect(member)) {
+          health.reconnectFailed();
+          return;
+        }
+        logger.info("Reconnected to " + member);
+        health.reconnected();
+        peer = server.getConnection(member);
+      }
+      peer.ping();
+      health.heartbeat(Clock.nanoTime());
+    } catch (RemoteException e) {
+      if (!health.failing && running) {
+        logger.warning("Heartbeat to " + member + " failed: " + e.getMessage());
+      }
+      health.failing = true;
+      if (connectionBroken(e)) {
+        health.stale = true;
+      }
+      server.getMetrics().heartbeatFailures.increment();
+    } finally {
+      health.inFlight = false;
+    }
+  }
+
+  // Reconnecting tears down the connection every other call to this peer is using, so it is only worth it
+  // when that connection cannot work any more; timeouts and errors from the peer leave it in place
+  private static boolean connectionBroken(RemoteException e) {
+    return e instanceof ConnectException || e instanceof ConnectIOException || e instanceof NoSuchObjectException;
+  }
+
+  public boolean isSuspected(String member) {
+    PeerHealth health = peers.get(member);
+    return health != null && health.suspected(Clock.nanoTime());
+  }
+
+  public void heardFrom(String member) {
+    PeerHealth health = peers.get(member);
+    if (health != null) {
+      health.messageReceived(Clock.nanoTime());
+    }
+  }
+
+  public int suspectedCount() {
+    int suspected = 0;
+    long now = Clock.nanoTime();
+    for (PeerHealth health : peers.values()) {
+      if (health.suspected(now)) {
+        suspected++;
+      }
+    }
+    return suspected;
+  }
+
+  public String describe() {
+    StringJoiner peerStates = new StringJoiner(", ");
+    long now = Clock.nanoTime();
+    peers.forEach((member, health) -> peerStates.add(String.format("%s %s phi %.1f", member,
+        health.suspected(now) ? "suspected" : "alive", health.phi(now))));
+    return peerStates.toString();
+  }
+
+  // Heartbeat history of one peer: the last WINDOW gaps between replies, kept as running sums. Until
+  // there are gaps, phi assumes replies every INTERVAL_MS counted from when we started watching the peer,
+  // so one that never answers becomes suspected like one that stopped answering.
+  static class PeerHealth {
+    private static final int WINDOW = 100;
+    private final long[] gapsMs = new long[WINDOW];
+    private int count;
+    private int next;
+    private double sum;
+    private double sumOfSquares;
+    private long lastHeartbeatNanos = Clock.nanoTime();
+    // the last message of any kind from the peer; silence is measured from whichever is later
+    private long lastMessageNanos = Long.MIN_VALUE;
+    private boolean heardFrom;
+    volatile boolean inFlight;
+    // the last heartbeat failed; only used to log the first failure of a run
+    volatile boolean failing;
+    // the connection is broken and is replaced on the next heartbeat
+    volatile boolean stale;
+    volatile long reconnectAtNanos;
+    private long reconnectBackoffMs = RECONNECT_MIN_MS;
+
+    boolean startHeartbeat() {
+      if (inFlight) {
+        return false;
+      }
+      inFlight = true;
+      return true;
+    }
+
+    synchronized void heartbeat(long now) {
+      failing = false;
+      if (heardFrom) {
+        long gap = (now - lastHeartbeatNanos) / 1000000;
+        if (count == WINDOW) {
+          sum -= gapsMs[next];
+          sumOfSquares -= (double) gapsMs[next] * gapsMs[next];
+        } else {
+          count++;
+        }
+        gapsMs[next] = gap;
+        sum += gap;
+        sumOfSquares += (double) gap * gap;
+        next = (next + 1) % WINDOW;
+      }
+      heardFrom = true;
+      lastHeartbeatNanos = now;
+    }
+
+    synchronized void messageReceived(long now) {
+      lastMessageNanos = Math.max(lastMessageNanos, now);
+    }
+
+    // A restarted peer starts a new history: the gap spanning its downtime says nothing about it
+    synchronized void reconnected() {
+      stale = false;
+      count = 0;
+      next = 0;
+      sum = 0;
+      sumOfSquares = 0;
+      heardFrom = false;
+      lastHeartbeatNanos = Clock.nanoTime();
+      reconnectBackoffMs = RECONNECT_MIN_MS;
+    }
+
+    synchronized void reconnectFailed() {
+      stale = true;
+      reconnectAtNanos = Clock.nanoTime() + reconnectBackoffMs * 1000000;
+      reconnectBackoffMs = Math.min(RECONNECT_MAX_MS, reconnectBackoffMs * 2);
+    }
+
+    synchronized boolean suspected(long now) {
+      return phi(now) > PHI_THRESHOLD;
+    }
+
+    // Normal approximation of the gap distribution, using the logistic form of its tail
+    synchronized double phi(long now) {
+      double mean = count == 0 ? INTERVAL_MS : sum / count;
+      double deviation = count == 0 ? MIN_STD_DEV_MS
+          : Math.max(MIN_STD_DEV_MS, Math.sqrt(Math.max(0, sumOfSquares / count - mean * mean)));
+      double y = ((now - Math.max(lastHeartbeatNanos, lastMessageNanos)) / 1e6 - mean) / deviation;
+      double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+      return y > 0 ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+    }
+  }
+}
@@ -1,16 +1,45 @@
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
 
 public interface KeyValueRPC extends Remote {
   String put(String key, String value) throws RemoteException;
   String get(String key) throws RemoteException;
+  // readMode is Server.READ_LOCAL (possibly stale) or Server.READ_LINEARIZABLE
+  String get(String key, String readMode) throws RemoteException;
   String delete(String key) throws RemoteException;
+  // Multi-key operations; every key must belong to the server's shard. Writes are applied atomically.
+  String multiPut(Map<String, String> entries) throws RemoteException;
+  Map<String, String> multiGet(List<String> keys, String readMode) throws RemoteException;
+  String multiDelete(List<String> keys) throws RemoteException;
   String getAll() throws RemoteException;
+  // One page of keys in order; prefix "" matches every key, a null continuationToken starts from the first
+  ScanPage scan(String prefix, String continuationToken, int pageSize) throws RemoteException;
 
-  //Paxos methods
-  String prepare(long proposalNumber) throws RemoteException;
-  String accept(long proposalNumber, String value) throws RemoteException;
-  void learn(long proposalNumber, String value) throws RemoteException;
+  //Paxos methods, messages and log values are encoded by PaxosCodec
+  byte[] prepare(long proposalNumber, long fromSlot) throws RemoteException;
+  byte[] accept(long proposalNumber, long slot, byte[] value) throws RemoteException;
+  void learn(long slot, byte[] value) throws RemoteException;
   String ping() throws RemoteException;
 
+  //Multi-Paxos leader forwarding
+  String forward(byte[] command) throws RemoteException;
+  int getServerId() throws RemoteException;
+  // this replica's view of its group's leader, -1 if unknown
+  int getLeaderId() throws RemoteException;
+
+  //ReadIndex linearizable reads
+  byte[] confirmLeader(long ballot) throws RemoteException;
+  long readIndex() throws RemoteException;
+
+  //Catch-up for lagging replicas: applied log entries (PaxosCodec.encodeLogEntries) or store pages
+  byte[] fetchLog(long fromSlot, int maxEntries) throws RemoteException;
+  ScanPage fetchSnapshot(String continuationToken, int maxEntries) throws RemoteException;
+
+  //Membership of this replica's group; changes are decided through the log and addresses are "host:port"
+  String addMember(String address) throws RemoteException;
+  String removeMember(String address) throws RemoteException;
+  String getMembers() throws RemoteException;
+
 }
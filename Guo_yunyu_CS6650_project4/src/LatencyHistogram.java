@@ -0,0 +1,145 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear latency histogram in the style of HdrHistogram: values below 128 get their own bucket,
+// and each power of two above that is split into 64 linear sub-buckets, so any recorded value is
+// reported within 1/64 (about 1.6%) of itself from 1 up to Long.MAX_VALUE in a fixed ~30 KB of counts.
+// Units are whatever the caller records (LoadGenerator uses microseconds). Safe to record from many
+// threads at once.
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int HALF = SUB_BUCKETS / 2;
+  private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS + 1) * HALF;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value) {
+    long v = Math.max(0, value);
+    counts.incrementAndGet(indexOf(v));
+    total.incrementAndGet();
+    sum.addAndGet(v);
+    max.accumulateAndGet(v, Math::max);
+  }
+
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      long count = other.counts.get(i);
+      if (count > 0) {
+        counts.addAndGet(i, count);
+      }
+    }
+    total.addAndGet(other.total.get());
+    sum.addAndGet(other.sum.get());
+    max.accumulateAndGet(other.max.get(), Math::max);
+  }
+
+  private static int indexOf(long v) {
+    if (v < SUB_BUCKETS) {
+      return (int) v;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(v) - (SUB_BUCKET_BITS - 1); // v >> shift is in [HALF, SUB_BUCKETS)
+    return SUB_BUCKETS + (shift - 1) * HALF + (int) ((v >> shift) - HALF);
+  }
+
+  // Largest value that lands in the bucket, as HdrHistogram reports percentiles
+  private static long highestValueAt(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = (index - SUB_BUCKETS) / HALF + 1;
+    long top = (index - SUB_BUCKETS) % HALF + HALF;
+    return ((top + 1) << shift) - 1;
+  }
+
+  public long getCount() {
+    return total.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long count = total.get();
+    return count == 0 ? 0 : (double) sum.get() / count;
+  }
+
+  // percentile in [0, 100]
+  public long getValueAtPercentile(double percentile) {
+    long count = total.get();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highestValueAt(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  // One summary line: p50/p90/p99/p99.9/p99.99/max, each divided by scale (1000 turns us into ms)
+  public String summary(double scale) {
+    return String.format("p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  p99.99 %.2f  max %.2f",
+        getValueAtPercentile(50) / scale, getValueAtPercentile(90) / scale, getValueAtPercentile(99) / scale,
+        getValueAtPercentile(99.9) / scale, getValueAtPercentile(99.99) / scale, getMax() / scale);
+  }
+
+  // HdrHistogram's percentile distribution text (.hgrm), which its plotting tools read: percentile
+  // steps halve the remaining distance to 100% in 5 ticks each, down to the last recorded value
+  public void outputPercentileDistribution(PrintStream out, double scale) {
+    out.println("       Value     Percentile TotalCount 1/(1-Percentile)");
+    out.println();
+    long count = total.get();
+    if (count > 0) {
+      for (double percentile = 0; ; ) {
+        long value = getValueAtPercentile(percentile);
+        long countAtValue = countAtOrBelow(value);
+        out.printf("%12.3f %2.12f %10d %14.2f%n", value / scale, percentile / 100, countAtValue,
+            1 / (1 - percentile / 100));
+        if (countAtValue >= count) {
+          break;
+        }
+        double halfDistance = Math.pow(2, Math.floor(Math.log(100 / (100 - percentile)) / Math.log(2)) + 1);
+        percentile += 100 / (halfDistance * 5);
+      }
+      out.printf("%12.3f %2.12f %10d%n", getMax() / scale, 1.0, count);
+    }
+    out.printf("#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", getMean() / scale, stdDeviation() / scale);
+    out.printf("#[Max     = %12.3f, Total count    = %12d]%n", getMax() / scale, count);
+    out.printf("#[Buckets = %12d, SubBuckets     = %12d]%n", BUCKETS / HALF, SUB_BUCKETS);
+  }
+
+  private long countAtOrBelow(long value) {
+    long seen = 0;
+    for (int i = 0; i <= indexOf(value); i++) {
+      seen += counts.get(i);
+    }
+    return seen;
+  }
+
+  private double stdDeviation() {
+    long count = total.get();
+    if (count == 0) {
+      return 0;
+    }
+    double mean = getMean();
+    double squares = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      long c = counts.get(i);
+      if (c > 0) {
+        double delta = highestValueAt(i) - mean;
+        squares += delta * delta * c;
+      }
+    }
+    return Math.sqrt(squares / count);
+  }
+}
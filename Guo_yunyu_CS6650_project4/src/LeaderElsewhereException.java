@@ -0,0 +1,14 @@
+import java.rmi.RemoteException;
+
+// Thrown instead of competing with a proposer whose higher ballot has just beaten ours; the caller
+// forwards the value to that ballot's owner
+public class LeaderElsewhereException extends RemoteException {
+  private static final long serialVersionUID = 1L;
+
+  final long ballot;
+
+  LeaderElsewhereException(long ballot) {
+    super("Deferring to the proposer of ballot " + ballot);
+    this.ballot = ballot;
+  }
+}
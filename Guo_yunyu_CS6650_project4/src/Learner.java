@@ -1,41 +1,106 @@
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class Learner extends Thread {
+public class Learner {
   private Server server;
-  private Map<Long, Map<String, Integer>> learnedValues = new ConcurrentHashMap<>();
-  private int quorum;
+  // The value chosen for each slot. A proposer sends learn only after it has counted an accept quorum
+  // of the slot's configuration, so a single learn decides the slot; no quorum is counted here, and the
+  // learner needs no view of the membership. Nothing here takes a lock.
+  private Map<Long, byte[]> decisions = new ConcurrentHashMap<>();
+  // completed and removed the moment a slot is decided, so callers never poll; several callers may share one
+  private Map<Long, CompletableFuture<byte[]>> waiters = new ConcurrentHashMap<>();
+  // every slot up to here has been applied and its state dropped
+  private volatile long releasedThrough = -1;
+  private final AtomicLong highestDecided = new AtomicLong(-1);
 
-  public Learner(Server server, int quorum){
+  private static final int CONSENSUS_TIMEOUT_MS = 10000; // 10 seconds
+
+  public Learner(Server server){
     this.server = server;
-    this.quorum = quorum;
   }
 
-  @Override
-  public void run(){
-    // The learner doesn't need to continuously run
-    // It will be triggered by accept messages
+  public void learn(long slot, byte[] value){
+    if (slot <= releasedThrough || decisions.containsKey(slot)) {
+      return; // late or duplicate learn for a slot that is already decided
+    }
+    decide(slot, value);
+  }
+
+  // A slot fetched from a peer that has already applied it, see CatchUp
+  public void learnDecided(long slot, byte[] value) {
+    if (slot <= releasedThrough || decisions.containsKey(slot)) {
+      return;
+    }
+    decide(slot, value);
+  }
+
+  private void decide(long slot, byte[] value) {
+    if (decisions.putIfAbsent(slot, value) != null) {
+      return; // decided by a catch-up fetch or another learn at the same moment
+    }
+    if (slot <= releasedThrough) {
+      decisions.remove(slot); // a snapshot covering this slot was installed meanwhile
+    }
+    highestDecided.accumulateAndGet(slot, Math::max);
+    CompletableFuture<byte[]> waiter = waiters.remove(slot);
+    if (waiter != null) {
+      waiter.complete(value);
+    }
+  }
+
+  public long getHighestDecided() {
+    return highestDecided.get();
+  }
+
+  public byte[] getDecision(long slot) {
+    return decisions.get(slot);
   }
 
-  public synchronized void learn(long proposalNumber, String value){
-    learnedValues.computeIfAbsent(proposalNumber,k -> new ConcurrentHashMap<>())
-        .merge(value, 1, Integer::sum);
+  // Called once a slot has been applied to the store; its learner state is no longer needed
+  public void release(long slot) {
+    releasedThrough = slot;
+    decisions.remove(slot);
+  }
+
+  // After a snapshot install every slot up to here counts as applied at once
+  public void releaseThrough(long slot) {
+    releasedThrough = Math.max(releasedThrough, slot);
+    highestDecided.accumulateAndGet(slot, Math::max);
+    decisions.keySet().removeIf(s -> s <= slot);
+    waiters.entrySet().removeIf(waiter -> {
+      if (waiter.getKey() > slot) {
+        return false;
+      }
+      waiter.getValue().complete(null);
+      return true;
+    });
   }
 
   public boolean waitForConsensus(ProposalId proposalId) throws InterruptedException {
-    long startTime = System.currentTimeMillis();
-    while (System.currentTimeMillis() - startTime < 10000) {// Wait for up to 10 seconds
-      Map<String, Integer> proposalLearned = learnedValues.get(proposalId.number);
-      if (proposalLearned != null) {
-        for (Map.Entry<String, Integer> entry : proposalLearned.entrySet()) {
-          if (entry.getValue() >= quorum) {
-            return true;
-          }
-        }
+    long slot = proposalId.slot;
+    CompletableFuture<byte[]> future = waiters.computeIfAbsent(slot, k -> new CompletableFuture<>());
+    // The slot may have been decided, or even applied, before we registered
+    if (decisions.containsKey(slot) || slot <= releasedThrough) {
+      future.complete(decisions.get(slot));
+    }
+    try {
+      Clock.get(future, CONSENSUS_TIMEOUT_MS);
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    } catch (ExecutionException e) {
+      return false;
+    } finally {
+      // decide() removes the future it completes. One completed above is removed here, and only that
+      // one: after a timeout, other callers may still be waiting on the same future.
+      if (future.isDone()) {
+        waiters.remove(slot, future);
       }
-      Thread.sleep(100);
     }
-    return false;
   }
 
 
@@ -0,0 +1,167 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+// Checks a recorded history of puts and gets against a linearizable key-value store: the Wing & Gong
+// search for an order of the operations that respects real time and register semantics, with Lowe's
+// memoization of (operations done, value) states. Each key is a register on its own, and a history is
+// linearizable iff every key's sub-history is, so keys are checked separately.
+// A put that failed or timed out may still have been decided, so it may take effect anywhere after its
+// invocation or not at all. Every value written must be unique.
+public class LinearizabilityChecker {
+  private static final int MAX_STATES = Integer.getInteger("paxos.check.maxStates", 200000); // per key
+
+  private final List<Operation> history = new ArrayList<>();
+
+  // A put; `completed` is false when the client could not tell whether it took effect
+  public synchronized void put(String key, String value, long invokedNanos, long returnedNanos, boolean completed) {
+    history.add(new Operation(key, true, value, invokedNanos, completed ? returnedNanos : Long.MAX_VALUE));
+  }
+
+  // A successful get; value is null for a key that was not found
+  public synchronized void get(String key, String value, long invokedNanos, long returnedNanos) {
+    history.add(new Operation(key, false, value, invokedNanos, returnedNanos));
+  }
+
+  public synchronized int size() {
+    return history.size();
+  }
+
+  // The keys with no linearization, and those whose search gave up after MAX_STATES states
+  public synchronized Result check() {
+    Map<String, List<Operation>> byKey = new LinkedHashMap<>();
+    for (Operation op : history) {
+      byKey.computeIfAbsent(op.key, k -> new ArrayList<>()).add(op);
+    }
+    Result result = new Result();
+    for (Map.Entry<String, List<Operation>> entry : byKey.entrySet()) {
+      checkKey(entry.getKey(), entry.getValue(), result);
+    }
+    return result;
+  }
+
+  private static void checkKey(String key, List<Operation> all, Result result) {
+    // an unfinished put nobody read can always be left out, which keeps the search narrow
+    Set<String> read = new HashSet<>();
+    for (Operation op : all) {
+      if (!op.write) {
+        read.add(op.value);
+      }
+    }
+    List<Operation> list = new ArrayList<>();
+    for (Operation op : all) {
+      if (!op.write || op.returned != Long.MAX_VALUE || read.contains(op.value)) {
+        list.add(op);
+      }
+    }
+    list.sort(Comparator.comparingLong(op -> op.invoked));
+    Operation[] ops = list.toArray(new Operation[0]);
+    int mustFinish = 0;
+    for (Operation op : ops) {
+      if (op.returned != Long.MAX_VALUE) {
+        mustFinish++;
+      }
+    }
+
+    Set<State> visited = new HashSet<>();
+    Deque<State> pending = new ArrayDeque<>();
+    pending.push(new State(new BitSet(ops.length), null, 0));
+    int furthest = 0;
+    while (!pending.isEmpty()) {
+      State state = pending.pop();
+      if (state.finished == mustFinish) {
+        return;
+      }
+      if (!visited.add(state)) {
+        continue;
+      }
+      if (visited.size() > MAX_STATES) {
+        result.undecided.add("key " + key + ": gave up after " + MAX_STATES + " states (" + ops.length + " operations)");
+        return;
+      }
+      furthest = Math.max(furthest, state.finished);
+      // candidates: not done yet, and invoked before every other not-done operation returned
+      int first = state.done.nextClearBit(0);
+      long deadline = Long.MAX_VALUE;
+      int end = first;
+      for (; end < ops.length && ops[end].invoked <= deadline; end++) {
+        if (!state.done.get(end)) {
+          deadline = Math.min(deadline, ops[end].returned);
+        }
+      }
+      // pushed last to first so the earliest invoked is tried first
+      for (int i = end - 1; i >= first; i--) {
+        Operation op = ops[i];
+        if (state.done.get(i) || op.invoked > deadline) {
+          continue;
+        }
+        if (!op.write && !Objects.equals(op.value, state.value)) {
+          continue;
+        }
+        BitSet done = (BitSet) state.done.clone();
+        done.set(i);
+        pending.push(new State(done, op.write ? op.value : state.value,
+            state.finished + (op.returned != Long.MAX_VALUE ? 1 : 0)));
+      }
+    }
+    result.violations.add("key " + key + ": no linearization of " + ops.length + " operations, at most " + furthest
+        + " of the " + mustFinish + " that returned could be ordered");
+  }
+
+  public static class Result {
+    public final List<String> violations = new ArrayList<>();
+    public final List<String> undecided = new ArrayList<>();
+
+    public boolean linearizable() {
+      return violations.isEmpty() && undecided.isEmpty();
+    }
+  }
+
+  private static class Operation {
+    final String key;
+    final boolean write;
+    final String value;
+    final long invoked;
+    final long returned; // Long.MAX_VALUE for a put whose outcome is unknown
+
+    Operation(String key, boolean write, String value, long invoked, long returned) {
+      this.key = key;
+      this.write = write;
+      this.value = value;
+      this.invoked = invoked;
+      this.returned = returned;
+    }
+  }
+
+  // A point in the search: which operations are ordered so far and the register value they leave
+  private static class State {
+    final BitSet done;
+    final String value;
+    final int finished; // completed operations among done
+
+    State(BitSet done, String value, int finished) {
+      this.done = done;
+      this.value = value;
+      this.finished = finished;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof State && done.equals(((State) other).done)
+          && Objects.equals(value, ((State) other).value);
+    }
+
+    @Override
+    public int hashCode() {
+      return done.hashCode() * 31 + Objects.hashCode(value);
+    }
+  }
+}
@@ -0,0 +1,319 @@
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Load generator built on SmartClient, for capacity planning and replaying incidents.
+// Closed loop (load.rate=0): load.threads workers each issue their next request as soon as the last one
+// returns. Open loop (load.rate=N ops/s): requests are scheduled at fixed intervals whatever the cluster
+// does, and latency is measured from each request's scheduled time, so a stall shows up as the queue of
+// requests behind it rather than disappearing from the numbers (coordinated omission).
+// Keys are drawn uniformly or from a scrambled Zipfian over load.keys keys; load.readRatio of requests are
+// GETs (in load.readMode), the rest PUTs of load.valueSize-byte values. Prints a throughput/latency line
+// every load.reportSec, then per-operation percentiles; load.histogramFile gets the full distribution in
+// HdrHistogram's .hgrm format. With load.seed set, the sequence of operations repeats from run to run.
+// Usage: java [-Dload.rate=5000] [-Dload.distribution=zipfian] ... LoadGenerator <host1> <port1> [<host2> <port2> ...]
+public class LoadGenerator {
+  private static final String DISTRIBUTION = System.getProperty("load.distribution", "uniform");
+  private static final double ZIPF_THETA = Double.parseDouble(System.getProperty("load.zipfTheta", "0.99"));
+  private static final int KEYS = Integer.getInteger("load.keys", 100000);
+  private static final double READ_RATIO = Double.parseDouble(System.getProperty("load.readRatio", "0.9"));
+  private static final String READ_MODE = System.getProperty("load.readMode", Server.READ_LOCAL);
+  private static final int VALUE_SIZE = Integer.getInteger("load.valueSize", 100);
+  private static final int THREADS = Integer.getInteger("load.threads", 16);
+  private static final double RATE = Double.parseDouble(System.getProperty("load.rate", "0"));
+  private static final long DURATION_SEC = Long.getLong("load.durationSec", 30);
+  private static final long WARMUP_SEC = Long.getLong("load.warmupSec", 5);
+  private static final long REPORT_SEC = Long.getLong("load.reportSec", 1);
+  private static final boolean PRELOAD = Boolean.parseBoolean(System.getProperty("load.preload", "true"));
+  private static final String HISTOGRAM_FILE = System.getProperty("load.histogramFile");
+  private static final Long SEED = Long.getLong("load.seed");
+  // open loop: requests scheduled but not yet started beyond this are dropped and counted
+  private static final int MAX_BACKLOG = Integer.getInteger("load.maxBacklog", 100000);
+  private static final int PRELOAD_BATCH = 500;
+
+  private final SmartClient client;
+  private final KeyChooser keys;
+  private final String value;
+
+  private final AtomicBoolean measuring = new AtomicBoolean();
+  private final AtomicBoolean running = new AtomicBoolean(true);
+  private final LatencyHistogram reads = new LatencyHistogram();
+  private final LatencyHistogram writes = new LatencyHistogram();
+  private final AtomicReference<LatencyHistogram> interval = new AtomicReference<>(new LatencyHistogram());
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong backlog = new AtomicLong();
+  private long measuredFrom;
+  private long measuredUntil;
+
+  public LoadGenerator(SmartClient client) {
+    this.client = client;
+    this.keys = DISTRIBUTION.equalsIgnoreCase("zipfian") ? new ZipfianChooser(KEYS, ZIPF_THETA) : new UniformChooser(KEYS);
+    StringBuilder filler = new StringBuilder(VALUE_SIZE);
+    for (int i = 0; i < VALUE_SIZE; i++) {
+      filler.append((char) ('a' + i % 26));
+    }
+    this.value = filler.toString();
+  }
+
+  private static String key(long index) {
+    return "key" + index;
+  }
+
+  // Every key exists before the run, so reads measure hits rather than misses
+  private void preload() throws Exception {
+    long start = System.currentTimeMillis();
+    List<CompletableFuture<String>> pending = new ArrayList<>();
+    for (int i = 0; i < KEYS; i += PRELOAD_BATCH) {
+      HashMap<String, String> batch = new HashMap<>();
+      for (int n = i; n < Math.min(KEYS, i + PRELOAD_BATCH); n++) {
+        batch.put(key(n), value);
+      }
+      pending.add(client.multiPutAsync(batch));
+    }
+    for (CompletableFuture<String> result : pending) {
+      result.join();
+    }
+    log("Preloaded " + KEYS + " keys in " + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  // One request; latency runs from intendedStart, which the open loop sets to the scheduled time
+  private void execute(boolean read, long keyIndex, long intendedStart) {
+    String reply;
+    try {
+      reply = read ? client.get(key(keyIndex), READ_MODE) : client.put(key(keyIndex), value);
+    } catch (Exception e) {
+      reply = "ERROR: " + e.getMessage();
+    }
+    long micros = (System.nanoTime() - intendedStart) / 1000;
+    if (!measuring.get()) {
+      return;
+    }
+    if (reply.equals("ERROR: key not found")) {
+      misses.incrementAndGet();
+    } else if (reply.startsWith("ERROR") || reply.startsWith("FAILURE")) {
+      errors.incrementAndGet();
+    }
+    (read ? reads : writes).record(micros);
+    interval.get().record(micros);
+  }
+
+  private void runClosedLoop() throws InterruptedException {
+    List<Thread> workers = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      Random random = SEED == null ? new Random() : new Random(SEED + t);
+      Thread worker = new Thread(() -> {
+        while (running.get()) {
+          execute(random.nextDouble() < READ_RATIO, keys.next(random), System.nanoTime());
+        }
+      }, "load-worker-" + t);
+      worker.setDaemon(true);
+      workers.add(worker);
+      worker.start();
+    }
+    report();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+  }
+
+  private void runOpenLoop() throws InterruptedException {
+    ExecutorService workers = Executors.newFixedThreadPool(THREADS, runnable -> {
+      Thread thread = new Thread(runnable, "load-worker");
+      thread.setDaemon(true);
+      return thread;
+    });
+    Thread dispatcher = new Thread(() -> {
+      Random random = SEED == null ? new Random() : new Random(SEED);
+      long intervalNanos = (long) (1e9 / RATE);
+      long next = System.nanoTime();
+      while (running.get()) {
+        long wait = next - System.nanoTime();
+        if (wait > 0) {
+          LockSupport.parkNanos(wait);
+          continue;
+        }
+        boolean read = random.nextDouble() < READ_RATIO;
+        long keyIndex = keys.next(random);
+        long scheduled = next;
+        next += intervalNanos;
+        if (backlog.get() >= MAX_BACKLOG) {
+          if (measuring.get()) {
+            dropped.incrementAndGet();
+          }
+          continue;
+        }
+        backlog.incrementAndGet();
+        workers.execute(() -> {
+          backlog.decrementAndGet();
+          execute(read, keyIndex, scheduled);
+        });
+      }
+    }, "load-dispatcher");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+    report();
+    dispatcher.join();
+    workers.shutdown();
+  }
+
+  // Throughput timeline; nothing from the warmup is printed or counted
+  private void report() throws InterruptedException {
+    long start = System.currentTimeMillis();
+    long warmupEnd = start + WARMUP_SEC * 1000;
+    long end = warmupEnd + DURATION_SEC * 1000;
+    System.out.println("    time      ops/s   errors  backlog    p50 ms    p99 ms    max ms");
+    while (System.currentTimeMillis() < end) {
+      Thread.sleep(REPORT_SEC * 1000);
+      long now = System.currentTimeMillis();
+      if (!measuring.get() && now >= warmupEnd) {
+        measuring.set(true);
+        measuredFrom = now;
+        interval.set(new LatencyHistogram());
+        log("Warmup done, measuring for " + DURATION_SEC + " s");
+        continue;
+      }
+      LatencyHistogram last = interval.getAndSet(new LatencyHistogram());
+      if (measuring.get()) {
+        System.out.printf("%7.1fs %10.0f %8d %8d %9.2f %9.2f %9.2f%n", (now - warmupEnd) / 1000.0,
+            last.getCount() / (double) REPORT_SEC, errors.get(), backlog.get(), last.getValueAtPercentile(50) / 1000.0,
+            last.getValueAtPercentile(99) / 1000.0, last.getMax() / 1000.0);
+      }
+    }
+    running.set(false);
+    measuredUntil = System.currentTimeMillis();
+  }
+
+  private void summarize() throws FileNotFoundException {
+    LatencyHistogram all = new LatencyHistogram();
+    all.add(reads);
+    all.add(writes);
+    System.out.printf("Mode: %s, keys: %d %s, read ratio %.2f (%s), value %d bytes, threads %d%n",
+        RATE > 0 ? "open loop at " + (long) RATE + " ops/s" : "closed loop", KEYS, DISTRIBUTION, READ_RATIO,
+        READ_MODE, VALUE_SIZE, THREADS);
+    double seconds = Math.max(1, measuredUntil - measuredFrom) / 1000.0;
+    System.out.printf("Throughput: %.0f ops/s over %.1f s; errors %d, read misses %d, dropped %d%n",
+        all.getCount() / seconds, seconds, errors.get(), misses.get(), dropped.get());
+    System.out.println("Latency (ms)");
+    System.out.println("  reads   n=" + reads.getCount() + "  " + reads.summary(1000));
+    System.out.println("  writes  n=" + writes.getCount() + "  " + writes.summary(1000));
+    System.out.println("  all     n=" + all.getCount() + "  " + all.summary(1000));
+    System.out.println("Client: " + client.getStats());
+    if (HISTOGRAM_FILE != null) {
+      try (PrintStream out = new PrintStream(HISTOGRAM_FILE)) {
+        all.outputPercentileDistribution(out, 1000);
+      }
+      log("Wrote latency distribution (ms) to " + HISTOGRAM_FILE);
+    }
+  }
+
+  private static void log(String message) {
+    System.out.println(message);
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2 || args.length % 2 != 0) {
+      log("Usage: java [-Dload.*=...] LoadGenerator <host1> <port1> [<host2> <port2> ...]");
+      System.exit(1);
+    }
+    Logger.getLogger("").setLevel(Level.WARNING);
+    String[] hosts = new String[args.length / 2];
+    int[] ports = new int[args.length / 2];
+    for (int i = 0; i < hosts.length; i++) {
+      hosts[i] = args[i * 2];
+      ports[i] = Integer.parseInt(args[i * 2 + 1]);
+    }
+    SmartClient client = new SmartClient(ShardMap.connect(hosts, ports, ShardMap.SHARDS));
+    LoadGenerator generator = new LoadGenerator(client);
+    if (PRELOAD) {
+      generator.preload();
+    }
+    if (RATE > 0) {
+      generator.runOpenLoop();
+    } else {
+      generator.runClosedLoop();
+    }
+    generator.summarize();
+    client.shutdown();
+    System.exit(0);
+  }
+}
+
+interface KeyChooser {
+  long next(Random random);
+}
+
+class UniformChooser implements KeyChooser {
+  private final int keys;
+
+  UniformChooser(int keys) {
+    this.keys = keys;
+  }
+
+  public long next(Random random) {
+    return random.nextInt(keys);
+  }
+}
+
+// Zipfian over ranks 0..n-1 (Gray et al., "Quickly Generating Billion-Record Synthetic Databases", as in
+// YCSB). Ranks are scrambled through a hash so the hot keys are spread over shards rather than being
+// key0, key1, ...
+class ZipfianChooser implements KeyChooser {
+  private final long items;
+  private final double theta;
+  private final double zetan;
+  private final double alpha;
+  private final double eta;
+
+  ZipfianChooser(long items, double theta) {
+    if (theta <= 0 || theta == 1) {
+      throw new IllegalArgumentException("Zipfian theta must be positive and not 1: " + theta);
+    }
+    this.items = items;
+    this.theta = theta;
+    double sum = 0;
+    for (long i = 1; i <= items; i++) {
+      sum += 1 / Math.pow(i, theta);
+    }
+    this.zetan = sum;
+    this.alpha = 1 / (1 - theta);
+    double zeta2 = 1 + Math.pow(0.5, theta);
+    this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetan);
+  }
+
+  public long next(Random random) {
+    double u = random.nextDouble();
+    double uz = u * zetan;
+    long rank;
+    if (uz < 1) {
+      rank = 0;
+    } else if (uz < 1 + Math.pow(0.5, theta)) {
+      rank = 1;
+    } else {
+      rank = Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+    }
+    return Math.floorMod(fnv1a(rank), items);
+  }
+
+  private static long fnv1a(long value) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < 8; i++) {
+      hash ^= (value >>> (i * 8)) & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.rmi.server.ExportException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Runs a whole replica group inside one JVM on localhost, for trying out transports and changes
+// without launching five processes. The peer transport follows -Dpaxos.transport as usual.
+// With several shards, each is its own replica group of `servers` replicas at ShardMap.portOf(basePort, shard)
+// and writes are routed by key.
+// Usage: java [-Dpaxos.transport=tcp] LocalCluster [servers] [writes] [clientThreads] [basePort] [shards]
+public class LocalCluster {
+  private final int size;
+  private final int basePort;
+  private final List<Server> servers = new ArrayList<>();
+  private final Set<Integer> stopped = new HashSet<>();
+
+  private final int shard;
+  private final int shardCount;
+
+  public LocalCluster(int size, int basePort) {
+    this(size, basePort, 0, 1);
+  }
+
+  // One shard's replica group
+  public LocalCluster(int size, int basePort, int shard, int shardCount) {
+    this.size = size;
+    this.basePort = basePort;
+    this.shard = shard;
+    this.shardCount = shardCount;
+  }
+
+  public void start() throws Exception {
+    for (int i = 0; i < size; i++) {
+      servers.add(launch(i, false));
+    }
+    // every server is listening before any of them looks up its peers
+    for (Server server : servers) {
+      server.start();
+    }
+  }
+
+  // Peers are every replica launched so far, including ones added by join()
+  private Server launch(int index, boolean join) throws Exception {
+    int count = Math.max(Math.max(size, servers.size()), index + 1);
+    String[] addresses = new String[count - 1];
+    int[] ports = new int[count - 1];
+    for (int j = 0, k = 0; j < count; j++) {
+      if (j != index) {
+        addresses[k] = "localhost";
+        ports[k++] = basePort + j;
+      }
+    }
+    return Server.launch(basePort + index, addresses, ports, index + 1, shard, shardCount, join);
+  }
+
+  // Starts one more replica outside the group, on the next port; it takes part once addMember(address)
+  // has been decided, see Membership
+  public Server join() throws Exception {
+    Server server = launch(servers.size(), true);
+    servers.add(server);
+    server.start();
+    return server;
+  }
+
+  public static String address(Server server) {
+    return Membership.address("localhost", server.getPort());
+  }
+
+  // Stops one replica; the others carry on without it
+  public void stop(int index) {
+    if (stopped.add(index)) {
+      servers.get(index).shutdown();
+    }
+  }
+
+  // Brings a replica back (stopping it first if needed) on the same port with the same id,
+  // recovering from its data directory
+  public Server restart(int index) throws Exception {
+    stop(index);
+    Server server = null;
+    // the old RMI listener may still hold the port for a moment after unexporting
+    for (int attempt = 0; server == null; attempt++) {
+      try {
+        server = launch(index, false);
+      } catch (ExportException e) {
+        if (attempt == 20) {
+          throw e;
+        }
+        Thread.sleep(100);
+      }
+    }
+    servers.set(index, server);
+    stopped.remove(index);
+    server.start();
+    return server;
+  }
+
+  public List<Server> running() {
+    List<Server> running = new ArrayList<>();
+    for (int i = 0; i < servers.size(); i++) {
+      if (!stopped.contains(i)) {
+        running.add(servers.get(i));
+      }
+    }
+    return running;
+  }
+
+  // Keeps in-process runs from picking up (or leaving behind) state in ./data
+  public static void useTemporaryDataDir() throws IOException {
+    if (System.getProperty("paxos.dataDir") == null) {
+      System.setProperty("paxos.dataDir", Files.createTempDirectory("paxos-cluster").toString());
+    }
+  }
+
+  public List<Server> servers() {
+    return servers;
+  }
+
+  public void shutdown() {
+    for (int i = 0; i < servers.size(); i++) {
+      stop(i);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int size = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    int writes = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+    int threads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+    int basePort = args.length > 3 ? Integer.parseInt(args[3]) : 6001;
+    int shards = args.length > 4 ? Integer.parseInt(args[4]) : ShardMap.SHARDS;
+    Logger.getLogger("").setLevel(Level.WARNING);
+    useTemporaryDataDir();
+
+    List<LocalCluster> groups = new ArrayList<>();
+    for (int shard = 0; shard < shards; shard++) {
+      LocalCluster group = new LocalCluster(size, ShardMap.portOf(basePort, shard), shard, shards);
+      group.start();
+      groups.add(group);
+    }
+
+    ExecutorService clients = Executors.newFixedThreadPool(threads);
+    Map<String, Integer> results = new ConcurrentHashMap<>();
+    List<Future<?>> done = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int i = 0; i < writes; i++) {
+      int n = i;
+      done.add(clients.submit(() -> {
+        String key = "key" + n;
+        List<Server> servers = groups.get(ShardMap.shardOf(key, shards)).servers();
+        String result = servers.get(n % size).put(key, "value" + n);
+        results.merge(result.startsWith("SUCCESS") ? "SUCCESS" : result, 1, Integer::sum);
+        return null;
+      }));
+    }
+    for (Future<?> future : done) {
+      future.get();
+    }
+    long elapsedMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    clients.shutdown();
+
+    System.out.println("Transport: " + System.getProperty("paxos.transport", "rmi") + ", shards: " + shards);
+    System.out.println("Writes: " + writes + " in " + elapsedMs + " ms (" + (writes * 1000L / elapsedMs) + " ops/s)");
+    System.out.println("Results: " + results);
+    Thread.sleep(500); // let trailing learn messages land
+    for (int shard = 0; shard < shards; shard++) {
+      StringBuilder sizes = new StringBuilder();
+      for (Server server : groups.get(shard).servers()) {
+        sizes.append(" ").append(server.getAll().split("\n").length);
+      }
+      System.out.println("Shard " + shard + " store sizes:" + sizes);
+    }
+    for (LocalCluster group : groups) {
+      group.shutdown();
+    }
+    System.exit(0);
+  }
+}
@@ -0,0 +1,81 @@
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+// The replicas of one Paxos group, by "host:port" of their client (RMI) endpoint. A group starts with
+// the replicas named on the command line and changes only through an ADD_MEMBER or REMOVE_MEMBER command
+// decided in the log: the configuration decided in slot i governs every slot after i. The current configuration is kept in
+// the store under STORE_KEY, so snapshots, recovery and catch-up carry it along with the data. Keys under
+// RESERVED_PREFIX are the replicas' own: clients cannot read or write them, and they are left out of
+// scans and key counts.
+//
+// Flexible quorums: -Dpaxos.quorum.phase2=k makes accept rounds wait for k replicas instead of a
+// majority, and prepare rounds for size - k + 1, so any two phases still share a replica. A small k
+// suits a stable leader, which runs phase 2 all the time and phase 1 only on elections. It must be the
+// same on every replica, like paxos.shards.
+public final class Membership {
+  static final String RESERVED_PREFIX = "\u0000"; // sorts before every client key
+  static final String STORE_KEY = RESERVED_PREFIX + "paxos.membership";
+  private static final int PHASE2_QUORUM = Integer.getInteger("paxos.quorum.phase2", 0); // 0 for a majority
+
+  private final Set<String> members;
+
+  Membership(Set<String> members) {
+    this.members = Collections.unmodifiableSet(new TreeSet<>(members));
+  }
+
+  static String address(String host, int port) {
+    return host + ":" + port;
+  }
+
+  Set<String> members() {
+    return members;
+  }
+
+  int size() {
+    return members.size();
+  }
+
+  boolean contains(String address) {
+    return members.contains(address);
+  }
+
+  Membership with(String address) {
+    Set<String> changed = new TreeSet<>(members);
+    changed.add(address);
+    return new Membership(changed);
+  }
+
+  Membership without(String address) {
+    Set<String> changed = new TreeSet<>(members);
+    changed.remove(address);
+    return new Membership(changed);
+  }
+
+  int phase2Quorum() {
+    return PHASE2_QUORUM > 0 ? Math.min(PHASE2_QUORUM, size()) : size() / 2 + 1;
+  }
+
+  int phase1Quorum() {
+    return size() - phase2Quorum() + 1;
+  }
+
+  String encode() {
+    return String.join(",", members);
+  }
+
+  static Membership decode(String encoded) {
+    Set<String> members = new TreeSet<>();
+    for (String member : encoded.split(",")) {
+      if (!member.isEmpty()) {
+        members.add(member);
+      }
+    }
+    return new Membership(members);
+  }
+
+  @Override
+  public String toString() {
+    return members.size() + " replicas " + members + ", quorums " + phase1Quorum() + "/" + phase2Quorum();
+  }
+}
@@ -0,0 +1,156 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Membership changes under load. A three-replica in-process group takes writes the whole time while it
+// (1) grows to five, each new replica started outside the group, added with addMember and caught up,
+// then (2) removes its leader, which is then stopped. Every replica still in the group must agree on the
+// membership and converge on the same store, and writes must keep succeeding throughout. Also reports the
+// accept round latency the leader saw, which -Dpaxos.quorum.phase2=2 should bring down at five replicas.
+// Usage: java [-Dpaxos.quorum.phase2=K] MembershipHarness [basePort]
+public class MembershipHarness {
+  private static final int INITIAL = 3;
+  private static final int FINAL = 5;
+  private static final long CONVERGE_TIMEOUT_MS = 15000;
+
+  public static void main(String[] args) throws Exception {
+    int basePort = args.length > 0 ? Integer.parseInt(args[0]) : 7101;
+    if (System.getProperty("paxos.transport") == null) {
+      System.setProperty("paxos.transport", "tcp");
+    }
+    Logger.getLogger("").setLevel(Level.WARNING);
+    LocalCluster.useTemporaryDataDir();
+    LocalCluster cluster = new LocalCluster(INITIAL, basePort);
+    cluster.start();
+    boolean ok = true;
+
+    AtomicBoolean stop = new AtomicBoolean();
+    AtomicBoolean paused = new AtomicBoolean(); // stores are only compared between writes
+    AtomicLong written = new AtomicLong();
+    AtomicLong failed = new AtomicLong();
+    Thread writer = new Thread(() -> {
+      for (long n = 0; !stop.get(); n++) {
+        List<Server> members = members(cluster);
+        if (members.isEmpty() || paused.get()) {
+          Thread.onSpinWait();
+          continue;
+        }
+        try {
+          String result = members.get((int) (n % members.size())).put("key" + n, "value" + n);
+          (result.startsWith("SUCCESS") ? written : failed).incrementAndGet();
+        } catch (Exception e) {
+          failed.incrementAndGet();
+        }
+      }
+    }, "writer");
+    writer.start();
+    Thread.sleep(1000);
+
+    for (int i = INITIAL; i < FINAL; i++) {
+      Server joined = cluster.join();
+      String result = cluster.servers().get(0).addMember(LocalCluster.address(joined));
+      ok &= check("added server " + (i + 1) + ": " + result, result.startsWith("SUCCESS"));
+      Thread.sleep(1000);
+    }
+    ok &= checkMembership(cluster, FINAL);
+    paused.set(true);
+    ok &= checkConverged(cluster, "after growing to " + FINAL);
+    paused.set(false);
+
+    Server leader = null;
+    for (Server server : members(cluster)) {
+      if (server.getLeaderId() == server.getServerId()) {
+        leader = server;
+      }
+    }
+    if (leader == null) {
+      leader = cluster.servers().get(0);
+    }
+    Server other = members(cluster).get(leader == members(cluster).get(0) ? 1 : 0);
+    String result = other.removeMember(LocalCluster.address(leader));
+    ok &= check("removed leader server " + leader.getServerId() + ": " + result, result.startsWith("SUCCESS"));
+    Thread.sleep(500);
+    cluster.stop(cluster.servers().indexOf(leader));
+    Thread.sleep(2000);
+    stop.set(true);
+    writer.join();
+
+    ok &= checkMembership(cluster, FINAL - 1);
+    ok &= checkConverged(cluster, "after removing the leader");
+    ok &= check(written.get() + " writes succeeded, " + failed.get() + " failed", written.get() > 0);
+
+    for (Server server : cluster.running()) {
+      if (server.getLeaderId() == server.getServerId()) {
+        System.out.println("new leader server " + server.getServerId() + " accept round us "
+            + server.getMetrics().snapshot().get("AcceptP50Micros") + " p50, "
+            + server.getMetrics().snapshot().get("AcceptP99Micros") + " p99, " + server.getMembership());
+      }
+    }
+    cluster.shutdown();
+    System.out.println(ok ? "PASS" : "FAIL");
+    System.exit(ok ? 0 : 1);
+  }
+
+  // The running replicas that are in the group by their own account
+  private static List<Server> members(LocalCluster cluster) {
+    List<Server> members = new ArrayList<>();
+    for (Server server : cluster.running()) {
+      if (server.isMember()) {
+        members.add(server);
+      }
+    }
+    return members;
+  }
+
+  private static boolean checkMembership(LocalCluster cluster, int expected) throws Exception {
+    long deadline = System.currentTimeMillis() + CONVERGE_TIMEOUT_MS;
+    while (true) {
+      boolean agreed = true;
+      for (Server server : members(cluster)) {
+        agreed &= server.getMembership().size() == expected;
+      }
+      if ((agreed && members(cluster).size() == expected) || System.currentTimeMillis() > deadline) {
+        return check(members(cluster).size() + " members, all seeing " + members(cluster).get(0).getMembers(),
+            agreed && members(cluster).size() == expected);
+      }
+      Thread.sleep(200);
+    }
+  }
+
+  private static boolean checkConverged(LocalCluster cluster, String when) throws Exception {
+    long deadline = System.currentTimeMillis() + CONVERGE_TIMEOUT_MS;
+    while (true) {
+      Thread.sleep(500);
+      List<Server> members = members(cluster);
+      Map<String, String> expected = storeOf(members.get(0));
+      boolean same = true;
+      for (Server server : members) {
+        same &= expected.equals(storeOf(server));
+      }
+      if (same || System.currentTimeMillis() > deadline) {
+        return check("members converged " + when + " (" + expected.size() + " keys)", same);
+      }
+    }
+  }
+
+  private static boolean check(String what, boolean passed) {
+    System.out.println((passed ? "ok   " : "FAIL ") + what);
+    return passed;
+  }
+
+  private static Map<String, String> storeOf(Server server) throws Exception {
+    Map<String, String> store = new HashMap<>();
+    for (String line : server.getAll().split("\n")) {
+      if (!line.isEmpty()) {
+        String[] parts = line.split(" ", 2);
+        store.put(parts[0], parts[1]);
+      }
+    }
+    return store;
+  }
+}
@@ -0,0 +1,193 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Compact binary encoding for Paxos replies and replicated commands.
+// Strings are length-prefixed UTF-8, so keys and values may contain spaces, commas or newlines.
+public class PaxosCodec {
+  // reply status, always the first byte of a prepare/accept reply
+  public static final byte PROMISE = 1;
+  public static final byte REJECT = 2;
+  public static final byte ACCEPTED = 3;
+  public static final byte TIMEOUT = 4;
+  // prepare reply from an acceptor that has compacted slots the proposer has not applied yet
+  public static final byte LAGGING = 5;
+  // fetchLog replies
+  public static final byte ENTRIES = 6;
+  public static final byte COMPACTED = 7;
+
+  private static final byte[] ACCEPTED_REPLY = {ACCEPTED};
+  private static final byte[] TIMEOUT_REPLY = {TIMEOUT};
+  private static final byte[] EMPTY = new byte[0];
+
+  // A log value is a list of commands; the empty list is the no-op used to fill log holes
+  public static final byte[] NOOP = encodeCommands(Collections.emptyList());
+
+  public static byte status(byte[] reply) {
+    return reply.length == 0 ? REJECT : reply[0];
+  }
+
+  // [REJECT][ballot]: the higher ballot the acceptor has promised, so a proposer can skip straight past
+  // it or defer to its owner instead of retrying with a ballot that is bound to lose again
+  public static byte[] reject(long promised) {
+    return ByteBuffer.allocate(1 + 8).put(REJECT).putLong(promised).array();
+  }
+
+  // The ballot a REJECT carries, or -1 for any other reply
+  public static long rejectedBallot(byte[] reply) {
+    return reply.length == 1 + 8 && reply[0] == REJECT ? ByteBuffer.wrap(reply, 1, 8).getLong() : -1;
+  }
+
+  public static byte[] accepted() {
+    return ACCEPTED_REPLY;
+  }
+
+  public static byte[] timeout() {
+    return TIMEOUT_REPLY;
+  }
+
+  // [PROMISE][count] then per slot [slot][ballot][len][value]
+  public static byte[] encodePromise(Map<Long, AcceptedEntry> accepted) {
+    int size = 1 + 4;
+    for (AcceptedEntry entry : accepted.values()) {
+      size += 8 + 8 + 4 + entry.value.length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    buffer.put(PROMISE);
+    buffer.putInt(accepted.size());
+    for (Map.Entry<Long, AcceptedEntry> entry : accepted.entrySet()) {
+      buffer.putLong(entry.getKey());
+      buffer.putLong(entry.getValue().proposal);
+      buffer.putInt(entry.getValue().value.length);
+      buffer.put(entry.getValue().value);
+    }
+    return buffer.array();
+  }
+
+  public static Map<Long, AcceptedEntry> decodePromise(byte[] reply) {
+    ByteBuffer buffer = ByteBuffer.wrap(reply);
+    buffer.get(); // status
+    int count = buffer.getInt();
+    Map<Long, AcceptedEntry> accepted = new TreeMap<>();
+    for (int i = 0; i < count; i++) {
+      long slot = buffer.getLong();
+      long proposal = buffer.getLong();
+      byte[] value = new byte[buffer.getInt()];
+      buffer.get(value);
+      accepted.put(slot, new AcceptedEntry(proposal, value));
+    }
+    return accepted;
+  }
+
+  // [LAGGING][throughSlot]: no promise was made; the proposer must catch up through the slot before leading
+  public static byte[] lagging(long throughSlot) {
+    return ByteBuffer.allocate(1 + 8).put(LAGGING).putLong(throughSlot).array();
+  }
+
+  // [ENTRIES][lastApplied][count] then per slot [slot][len][value]
+  public static byte[] encodeLogEntries(long lastApplied, Map<Long, byte[]> entries) {
+    int size = 1 + 8 + 4;
+    for (byte[] value : entries.values()) {
+      size += 8 + 4 + value.length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    buffer.put(ENTRIES);
+    buffer.putLong(lastApplied);
+    buffer.putInt(entries.size());
+    for (Map.Entry<Long, byte[]> entry : entries.entrySet()) {
+      buffer.putLong(entry.getKey());
+      buffer.putInt(entry.getValue().length);
+      buffer.put(entry.getValue());
+    }
+    return buffer.array();
+  }
+
+  // [COMPACTED][lastApplied]: the requested slots are only available as a snapshot
+  public static byte[] compacted(long lastApplied) {
+    return ByteBuffer.allocate(1 + 8).put(COMPACTED).putLong(lastApplied).array();
+  }
+
+  // The responder's last applied slot, carried by both fetchLog replies
+  public static long logLastApplied(byte[] reply) {
+    return ByteBuffer.wrap(reply, 1, 8).getLong();
+  }
+
+  public static Map<Long, byte[]> decodeLogEntries(byte[] reply) {
+    ByteBuffer buffer = ByteBuffer.wrap(reply);
+    buffer.get(); // status
+    buffer.getLong(); // lastApplied
+    int count = buffer.getInt();
+    Map<Long, byte[]> entries = new TreeMap<>();
+    for (int i = 0; i < count; i++) {
+      long slot = buffer.getLong();
+      byte[] value = new byte[buffer.getInt()];
+      buffer.get(value);
+      entries.put(slot, value);
+    }
+    return entries;
+  }
+
+  // [count] then per command [op][keyLen][key][valueLen][value]
+  public static byte[] encodeCommands(List<Command> commands) {
+    byte[][] strings = new byte[commands.size() * 2][];
+    int size = 4;
+    for (int i = 0; i < commands.size(); i++) {
+      Command command = commands.get(i);
+      strings[2 * i] = command.key.getBytes(StandardCharsets.UTF_8);
+      strings[2 * i + 1] = command.value == null ? EMPTY : command.value.getBytes(StandardCharsets.UTF_8);
+      size += 1 + 4 + strings[2 * i].length + 4 + strings[2 * i + 1].length;
+    }
+    byte[] out = new byte[size];
+    int pos = putInt(out, 0, commands.size());
+    for (int i = 0; i < commands.size(); i++) {
+      out[pos++] = commands.get(i).op;
+      pos = putBytes(out, pos, strings[2 * i]);
+      pos = putBytes(out, pos, strings[2 * i + 1]);
+    }
+    return out;
+  }
+
+  public static List<Command> decodeCommands(byte[] encoded) {
+    ByteBuffer buffer = ByteBuffer.wrap(encoded);
+    int count = buffer.getInt();
+    List<Command> commands = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      byte op = buffer.get();
+      String key = readString(buffer);
+      String value = readString(buffer);
+      commands.add(new Command(op, key, op == Command.PUT ? value : null));
+    }
+    return commands;
+  }
+
+  // A membership change is proposed on its own, as a log value holding a single command
+  public static boolean isMembershipChange(byte[] value) {
+    return value.length > 5 && ByteBuffer.wrap(value).getInt() == 1
+        && (value[4] == Command.ADD_MEMBER || value[4] == Command.REMOVE_MEMBER);
+  }
+
+  private static int putInt(byte[] out, int pos, int value) {
+    out[pos] = (byte) (value >>> 24);
+    out[pos + 1] = (byte) (value >>> 16);
+    out[pos + 2] = (byte) (value >>> 8);
+    out[pos + 3] = (byte) value;
+    return pos + 4;
+  }
+
+  private static int putBytes(byte[] out, int pos, byte[] bytes) {
+    pos = putInt(out, pos, bytes.length);
+    System.arraycopy(bytes, 0, out, pos, bytes.length);
+    return pos + bytes.length;
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return s;
+  }
+}
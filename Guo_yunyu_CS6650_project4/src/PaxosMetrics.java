@@ -0,0 +1,164 @@
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Counters, gauges and per-phase latency histograms for one Server, published over JMX as
+// paxos:type=Server,shard=<shard>,id=<serverId> for jconsole or a JMX exporter to scrape. Recording is
+// a LongAdder increment or a lock-free histogram add, cheap enough for every message. Phase latencies
+// are in microseconds and exposed as <phase>P50Micros/P99Micros/MaxMicros/Count attributes.
+public class PaxosMetrics implements DynamicMBean {
+  private static final Logger logger = Logger.getLogger(PaxosMetrics.class.getName());
+
+  private final Map<String, LongAdder> counters = new LinkedHashMap<>();
+  private final Map<String, LatencyHistogram> phases = new LinkedHashMap<>();
+  private final Map<String, Supplier<Number>> gauges = new LinkedHashMap<>();
+  private ObjectName name;
+
+  // proposer: replies to its prepare/accept/confirmLeader requests, and what became of its rounds
+  final LongAdder promisesReceived = counter("PromisesReceived");
+  final LongAdder acceptedReceived = counter("AcceptedReceived");
+  final LongAdder rejectsReceived = counter("RejectsReceived");
+  final LongAdder laggingReceived = counter("LaggingReceived");
+  final LongAdder rpcFailures = counter("RpcFailures");
+  final LongAdder rpcTimeouts = counter("RpcTimeouts");
+  final LongAdder proposeRetries = counter("ProposeRetries");
+  final LongAdder elections = counter("Elections");
+  final LongAdder stepDowns = counter("StepDowns");
+  final LongAdder handoffs = counter("Handoffs"); // values forwarded to a proposer that outbid us
+  final LongAdder membershipChanges = counter("MembershipChanges");
+  final LongAdder heartbeatFailures = counter("HeartbeatFailures");
+  final LongAdder peerReconnects = counter("PeerReconnects"); // stubs replaced after a failed heartbeat
+  final LongAdder requestsRejected = counter("RequestsRejected"); // past paxos.requests.maxWaiting
+  // acceptor: replies this server gave
+  final LongAdder promisesGiven = counter("PromisesGiven");
+  final LongAdder acceptsGiven = counter("AcceptsGiven");
+  final LongAdder rejectsGiven = counter("RejectsGiven");
+  // learner and state machine
+  final LongAdder learnMessages = counter("LearnMessages");
+  final LongAdder slotsApplied = counter("SlotsApplied");
+
+  final LatencyHistogram prepare = phase("Prepare"); // phase 1 until a quorum has answered
+  final LatencyHistogram accept = phase("Accept");   // phase 2 until a quorum has answered
+  final LatencyHistogram learn = phase("Learn");     // accept quorum until the slot is decided here
+  final LatencyHistogram apply = phase("Apply");     // applying one decided slot to the store
+  final LatencyHistogram propose = phase("Propose"); // proposeValue end to end, retries included
+
+  private LongAdder counter(String name) {
+    LongAdder counter = new LongAdder();
+    counters.put(name, counter);
+    return counter;
+  }
+
+  private LatencyHistogram phase(String name) {
+    LatencyHistogram histogram = new LatencyHistogram();
+    phases.put(name, histogram);
+    return histogram;
+  }
+
+  // Read when scraped, so it may take a lock or walk a structure
+  public void gauge(String name, Supplier<Number> value) {
+    gauges.put(name, value);
+  }
+
+  public static long micros(long startNanos) {
+    return (Clock.nanoTime() - startNanos) / 1000;
+  }
+
+  public void register(int shard, int serverId) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      name = new ObjectName("paxos:type=Server,shard=" + shard + ",id=" + serverId);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name); // a replica restarted in the same JVM replaces its old bean
+      }
+      server.registerMBean(this, name);
+    } catch (Exception e) {
+      logger.warning("Failed to register metrics MBean: " + e.getMessage());
+    }
+  }
+
+  public void unregister() {
+    try {
+      if (name != null) {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      }
+    } catch (Exception e) {
+      logger.fine("Metrics MBean already unregistered: " + e.getMessage());
+    }
+  }
+
+  // Every metric by attribute name
+  public Map<String, Number> snapshot() {
+    Map<String, Number> values = new LinkedHashMap<>();
+    counters.forEach((name, counter) -> values.put(name, counter.sum()));
+    gauges.forEach((name, gauge) -> values.put(name, gauge.get()));
+    phases.forEach((name, histogram) -> {
+      values.put(name + "Count", histogram.getCount());
+      values.put(name + "P50Micros", histogram.getValueAtPercentile(50));
+      values.put(name + "P99Micros", histogram.getValueAtPercentile(99));
+      values.put(name + "MaxMicros", histogram.getMax());
+    });
+    return values;
+  }
+
+  @Override
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    Number value = snapshot().get(attribute);
+    if (value == null) {
+      throw new AttributeNotFoundException(attribute);
+    }
+    return value;
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] attributes) {
+    Map<String, Number> values = snapshot();
+    AttributeList list = new AttributeList();
+    for (String attribute : attributes) {
+      if (values.containsKey(attribute)) {
+        list.add(new Attribute(attribute, values.get(attribute)));
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature) {
+    throw new UnsupportedOperationException("No operations: " + actionName);
+  }
+
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    Map<String, Number> values = snapshot();
+    MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+    int i = 0;
+    for (Map.Entry<String, Number> entry : values.entrySet()) {
+      attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(),
+          entry.getKey(), true, false, false);
+    }
+    return new MBeanInfo(getClass().getName(), "Paxos replica metrics", attributes, null,
+        new MBeanOperationInfo[0], null);
+  }
+}
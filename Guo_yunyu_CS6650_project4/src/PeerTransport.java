@@ -0,0 +1,49 @@
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+
+// How replicas reach each other for Paxos traffic. RMI is the default; set -Dpaxos.transport=tcp
+// for the length-prefixed, multiplexed TCP transport, or sim for the in-process SimNetwork.
+public interface PeerTransport {
+  KeyValueRPC connect(String host, int port) throws Exception;
+
+  // Make the local server reachable to peers connecting through this transport
+  void listen(KeyValueRPC local, int port) throws Exception;
+
+  // Release a connection that has been replaced by a new one
+  void disconnect(KeyValueRPC peer);
+
+  void shutdown();
+
+  static PeerTransport fromSystemProperty() {
+    String name = System.getProperty("paxos.transport", "rmi");
+    if (name.equalsIgnoreCase("tcp")) {
+      return new TcpTransport();
+    }
+    if (name.equalsIgnoreCase("sim")) {
+      return SimNetwork.installed().transport();
+    }
+    return new RmiTransport();
+  }
+}
+
+class RmiTransport implements PeerTransport {
+  @Override
+  public KeyValueRPC connect(String host, int port) throws Exception {
+    Registry registry = LocateRegistry.getRegistry(host, port);
+    return (KeyValueRPC) registry.lookup("KeyValueRPC");
+  }
+
+  @Override
+  public void listen(KeyValueRPC local, int port) {
+    // The server is already exported and bound in its RMI registry
+  }
+
+  @Override
+  public void disconnect(KeyValueRPC peer) {
+    // stubs hold no connection of their own; RMI reuses and reaps its sockets
+  }
+
+  @Override
+  public void shutdown() {
+  }
+}
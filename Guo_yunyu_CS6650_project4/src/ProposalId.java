@@ -0,0 +1,12 @@
+// The ballot and slot a value was accepted in
+public class ProposalId {
+  long number;
+  long slot;
+  byte[] value;
+
+  public ProposalId(long number, long slot, byte[] value) {
+    this.number = number;
+    this.slot = slot;
+    this.value = value;
+  }
+}
@@ -1,141 +1,596 @@
 import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class Proposer extends Thread {
+public class Proposer {
   private static final Logger logger = Logger.getLogger(Proposer.class.getName());
+  private final SampledLog messageLog = new SampledLog(logger);
   private Server server;
+  private final PaxosMetrics metrics;
   private long nextProposalNumber;
-  private List<KeyValueRPC> otherServers;
-  private static final int MAX_RETRIES = 3;
+  // Proposal numbers are serverId + k * BALLOT_STRIDE, independent of the group's size, so they stay
+  // unique and their owner recoverable as replicas come and go; server ids must be below the stride
+  static final int BALLOT_STRIDE = 256;
+  private static final int MAX_RETRIES = Integer.getInteger("paxos.propose.retries", 5);
+  // Retry backoff is full jitter: uniform in [0, min(max, base * 2^attempt)), where base is a few
+  // smoothed accept round trips, so proposers that collided spread out instead of retrying in step
+  private static final long BACKOFF_MIN_MICROS = Long.getLong("paxos.backoff.minMs", 5) * 1000;
+  private static final long BACKOFF_MAX_MICROS = Long.getLong("paxos.backoff.maxMs", 1000) * 1000;
+  private static final int BACKOFF_ROUND_TRIPS = 4;
+  // A ballot heard of in a REJECT this recently belongs to a proposer that is probably still leading
+  private static final long HANDOFF_WINDOW_NANOS = Long.getLong("paxos.handoff.windowMs", 2000) * 1000000;
+  // How long a proposer with an unresolved slot waits for the winning proposer to decide it before
+  // contending; the winner's phase 1 recovers the slot if the value could have been chosen there
+  private static final long RESOLVE_WAIT_MS = Long.getLong("paxos.handoff.resolveWaitMs", 500);
+  private long nextSlot = 0;
+  private static final int RPC_TIMEOUT_MS = 2000; // per-phase deadline for peer replies
+  // each call mostly waits on the network; the fan-out per round is bounded by the number of peers
+  private final ExecutorService rpcExecutor = Threads.perTask("proposer-rpc");
 
-  public Proposer(Server server, int serverId, List<KeyValueRPC> otherServers) {
+  // Multi-Paxos: once a prepare quorum is held, every higher proposal number from
+  // this proposer is covered by it and only the accept phase is needed
+  private volatile long leaderBallot = -1;
+  // what the phase 1 of our latest ballot found; published before leaderBallot
+  private volatile Recovery recovery = new Recovery(-1, -1);
+  // set while one proposal runs phase 1, which waits on peers, so electionLock is not held through it
+  private final Object electionLock = new Object();
+  private boolean electing;
+  // accept rounds currently outstanding; several slots may be in flight at once
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final int serverId;
+  // accept round trip, smoothed as TCP does its RTT (gain 1/8); 0 until the first round completes
+  private volatile long smoothedRoundTripMicros;
+  // the highest ballot an acceptor has rejected us with, and when we heard of it
+  private final AtomicLong highestRejectedBallot = new AtomicLong(-1);
+  private volatile long rejectedAtNanos;
+  // The slot of our own membership change while it is being decided, else -1. No slot after it is
+  // handed out until it has been applied, and then only under a ballot prepared in the new
+  // configuration, because the quorums for those slots are the new configuration's.
+  private long reconfigurationSlot = -1;
+
+  public Proposer(Server server, int serverId) {
     this.server = server;
+    this.metrics = server.getMetrics();
     this.nextProposalNumber = serverId;
-    this.otherServers = otherServers;
+    this.serverId = serverId;
+  }
+
+  public boolean isLeader() {
+    return leaderBallot != -1;
+  }
+
+  public synchronized void stepDown() {
+    if (leaderBallot != -1) {
+      logger.info("Stepping down as leader (ballot " + leaderBallot + ")");
+      metrics.stepDowns.increment();
+    }
+    leaderBallot = -1;
+  }
+
+  // Fails any round still waiting on a peer; called once the server stops taking requests
+  public void shutdown() {
+    rpcExecutor.shutdownNow();
+  }
+
+  // With several accept rounds in flight, only a failure under the current ballot ends leadership
+  private synchronized void stepDown(long ballot) {
+    if (leaderBallot == ballot) {
+      stepDown();
+    }
+  }
+
+  // ReadIndex: confirm with a quorum that no higher ballot has been promised, then return the
+  // highest decided slot; every write acknowledged before this call is at or below it
+  public long readIndex() throws RemoteException {
+    long ballot = leaderBallot;
+    if (ballot == -1) {
+      throw new RemoteException("Not the leader");
+    }
+    // recovered slots may have been chosen and acknowledged by the previous leader, so reads wait for them
+    // even before they are decided again here
+    long index = Math.max(server.getHighestDecided(), recovery.throughSlot);
+    // a phase 2 quorum shares a replica with any other proposer's prepare quorum
+    int quorum = server.getMembership().phase2Quorum();
+    int confirmations = fanOut(allAcceptors(quorum), a -> a.confirmLeader(ballot),
+        r -> PaxosCodec.status(r) == PaxosCodec.ACCEPTED, quorum).size();
+    if (confirmations < quorum) {
+      stepDown(ballot);
+      throw new RemoteException("Leadership not confirmed. Received " + confirmations + " confirmations, needed " + quorum);
+    }
+    return index;
+  }
+
+  public int getInFlight() {
+    return inFlight.get();
   }
 
-  @Override
-  public void run() {
-    // The proposer doesn't need to continuously run
-    // It will be triggered by client requests
+  // Called when the local acceptor promises a ballot; a promise to another proposer ends our leadership
+  public void observeBallot(long ballot) {
+    if (isLeader() && ballot > leaderBallot && ballotOwner(ballot) != ballotOwner(serverId)) {
+      stepDown();
+    }
+  }
+
+  // The server id that handed out this ballot
+  public int ballotOwner(long ballot) {
+    return (int) Math.floorMod(ballot, (long) BALLOT_STRIDE);
+  }
+
+  // Called by the server once the membership decided in this slot has been applied. Our ballot was
+  // prepared under the old configuration, so leading on into the new one needs a fresh phase 1.
+  public synchronized void membershipChanged(long slot) {
+    stepDown();
+    if (reconfigurationSlot != -1 && reconfigurationSlot <= slot) {
+      reconfigurationSlot = -1;
+    }
+    Clock.signalAll(this);
+  }
+
+  private synchronized void abandonReconfiguration(long slot) {
+    if (reconfigurationSlot == slot) {
+      reconfigurationSlot = -1;
+      Clock.signalAll(this);
+    }
   }
 
-  public ProposalId propose(String value) throws RemoteException {
+  // With mayHandOff, a proposer that has just been rejected by another proposer's ballot defers to it
+  // (LeaderElsewhereException) rather than starting a competing election
+  public ProposalId propose(byte[] value, boolean mayHandOff) throws RemoteException {
+    // the accept round of an earlier attempt that failed, whose slot may have chosen the value anyway
+    UnresolvedSlotException unresolved = null;
     for (int attempt = 0; attempt < MAX_RETRIES; attempt++) {
+      if (mayHandOff && !isLeader()) {
+        long winning = recentlyWinningBallot();
+        // a slot we tried may hold the value, so it goes to the winner only once that slot holds another
+        if (winning != -1 && unresolved != null) {
+          byte[] decided = awaitDecided(unresolved.slot, RESOLVE_WAIT_MS);
+          if (Arrays.equals(decided, value)) {
+            return new ProposalId(unresolved.ballot, unresolved.slot, value);
+          }
+          if (decided != null) {
+            unresolved = null;
+          }
+        }
+        if (winning != -1 && unresolved == null) {
+          throw new LeaderElsewhereException(winning);
+        }
+      }
       try {
-        return doProposeAttempt(value);
+        return doProposeAttempt(value, unresolved);
       } catch (RemoteException e) {
+        if (e instanceof UnresolvedSlotException) {
+          unresolved = (UnresolvedSlotException) e;
+        }
         logger.warning("Proposal attempt " + (attempt + 1) + " failed: " + e.getMessage());
         if (attempt == MAX_RETRIES - 1) {
           throw e;
         }
+        metrics.proposeRetries.increment();
         try {
-          Thread.sleep(1000 * (attempt + 1)); // Exponential backoff
+          Clock.sleepNanos(TimeUnit.MICROSECONDS.toNanos(backoffMicros(attempt)));
         } catch (InterruptedException ie) {
           Thread.currentThread().interrupt();
+          throw new RemoteException("Interrupted while backing off");
         }
       }
     }
     throw new RemoteException("Failed to propose after " + MAX_RETRIES + " attempts");
   }
 
-  private ProposalId doProposeAttempt(String value) throws RemoteException {
-    long proposalNumber = getNextProposalNumber();
-    int quorum = (otherServers.size() + 1) / 2 + 1; // Include this server in the count
-    logger.info("Starting proposal with number: " + proposalNumber + ", quorum needed: " + quorum);
+  private long backoffMicros(int attempt) {
+    long base = Math.max(BACKOFF_MIN_MICROS, BACKOFF_ROUND_TRIPS * smoothedRoundTripMicros);
+    long ceiling = Math.min(BACKOFF_MAX_MICROS, base << Math.min(attempt, 20));
+    return Clock.random().nextLong(ceiling + 1);
+  }
 
-    // 1: prepare
-    int promises = 0;
-    String highestAcceptedValue = null;
-    long highestAcceptedProposal = -1;
+  // Another proposer's ballot that rejected us within the handoff window, or -1
+  private long recentlyWinningBallot() {
+    long ballot = highestRejectedBallot.get();
+    if (ballot == -1 || Clock.nanoTime() - rejectedAtNanos > HANDOFF_WINDOW_NANOS
+        || ballotOwner(ballot) == ballotOwner(serverId)) {
+      return -1;
+    }
+    return ballot;
+  }
+
+  // A REJECT names the ballot that beat ours: the next ballot skips past it, and a leader that sees a
+  // higher ballot from someone else stops skipping phase 1 at once
+  private void observeRejection(byte[] reply) {
+    long ballot = PaxosCodec.rejectedBallot(reply);
+    if (ballot == -1) {
+      return;
+    }
+    highestRejectedBallot.accumulateAndGet(ballot, Math::max);
+    rejectedAtNanos = Clock.nanoTime();
+    observeBallot(ballot);
+  }
+
+  private ProposalId doProposeAttempt(byte[] value, UnresolvedSlotException unresolved) throws RemoteException {
+    if (!server.isMember()) {
+      throw new RemoteException("Not a member of the current configuration: " + server.getMembership());
+    }
+    if (!isLeader()) {
+      elect();
+    }
 
-    logger.info("Sending prepare requests to " + otherServers.size() + " servers.");
-    for (KeyValueRPC otherServer : otherServers) {
+    long ballot = leaderBallot;
+    if (ballot == -1) {
+      throw new RemoteException("Lost leadership before slot could be assigned");
+    }
+    boolean reconfiguration = PaxosCodec.isMembershipChange(value);
+    long retrySlot = -1;
+    // a membership change keeps to a fresh, fenced slot; applying one twice changes nothing
+    if (unresolved != null && !reconfiguration) {
+      Recovery recovered = recovery;
+      if (recovered.ballot != ballot || ballot <= unresolved.ballot) {
+        throw new RemoteException("Leadership changed before slot " + unresolved.slot + " could be resolved");
+      }
+      if (unresolved.slot > recovered.throughSlot) {
+        retrySlot = unresolved.slot;
+      } else if (chosenEarlier(unresolved.slot, value)) {
+        return new ProposalId(ballot, unresolved.slot, value);
+      }
+    }
+    long slot = retrySlot != -1 ? retrySlot : allocateSlot(ballot, reconfiguration);
+    messageLog.fine(() -> "Leader skipping prepare for slot " + slot + " with ballot " + ballot);
+    try {
+      return acceptAndLearn(ballot, slot, value, server.getMembership());
+    } catch (RemoteException e) {
+      if (reconfiguration) {
+        abandonReconfiguration(slot);
+      }
+      throw new UnresolvedSlotException(slot, ballot, e);
+    }
+  }
+
+  // A failed accept round may still have reached a quorum, and then the value is chosen in its slot;
+  // proposing it again in a new slot would apply it twice. Any later ballot's prepare quorum overlaps
+  // that accept quorum, so phase 1 under our current ballot recovered the slot if anything there could
+  // have been chosen, or the slot was applied here before it. A slot past what phase 1 recovered was not
+  // chosen, but a minority may hold the value, and a later leader's phase 1 would recover it from them:
+  // the retry takes that same slot, which this ballot's phase 1 found free.
+  private boolean chosenEarlier(long slot, byte[] value) throws RemoteException {
+    byte[] decided = awaitDecided(slot, Server.APPLY_TIMEOUT_MS);
+    if (decided == null) {
+      throw new RemoteException("Outcome of slot " + slot + " from an earlier attempt is not known yet");
+    }
+    return Arrays.equals(decided, value);
+  }
+
+  // The value applied here for a slot, or null if it was not applied within timeoutMs
+  private byte[] awaitDecided(long slot, long timeoutMs) throws RemoteException {
+    try {
+      return server.awaitDecidedValue(slot, timeoutMs);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted waiting for slot " + slot);
+    }
+  }
+
+  // Only one in-flight proposal runs phase 1; the others wait for it and reuse its ballot
+  private void elect() throws RemoteException {
+    synchronized (electionLock) {
       try {
-        String response = otherServer.prepare(proposalNumber);
-        logger.info("Received prepare response from server: " + response);
-        if (response.startsWith("PROMISE")) {
-          promises++;
-          String[] parts = response.split(",");
-          if (parts.length == 3) {
-            long acceptedProposal = Long.parseLong(parts[1]);
-            if (acceptedProposal > highestAcceptedProposal) {
-              highestAcceptedProposal = acceptedProposal;
-              highestAcceptedValue = parts[2];
-            }
-          }
+        while (electing) {
+          Clock.await(electionLock, 0);
         }
-      } catch (RemoteException e) {
-        logger.warning("Failed to send prepare request to server: " + e.getMessage());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RemoteException("Interrupted waiting for an election");
+      }
+      if (isLeader()) {
+        return;
       }
+      electing = true;
+    }
+    try {
+      becomeLeader();
+    } finally {
+      synchronized (electionLock) {
+        electing = false;
+        Clock.signalAll(electionLock);
+      }
+    }
+  }
+
+  private void becomeLeader() throws RemoteException {
+    long proposalNumber = getNextProposalNumber();
+    // The configuration that governs fromSlot, so both must come from the same applied state
+    Membership membership = server.getMembership();
+    long fromSlot = server.getFirstUnappliedSlot();
+    if (server.getMembership() != membership) {
+      throw new RemoteException("Membership changed while starting an election");
     }
+    int quorum = membership.phase1Quorum();
+    logger.fine("Starting proposal with number: " + proposalNumber + " from slot " + fromSlot + ", quorum needed: " + quorum);
+
+    // 1: prepare, covering every slot from the first one this server has not applied
+    int promises = 0;
+    Map<Long, AcceptedEntry> highestAccepted = new HashMap<>();
 
-    // Include this server's promise
-    promises++;
+    logger.fine("Sending prepare requests to " + membership.size() + " servers.");
+    long start = Clock.nanoTime();
+    List<byte[]> promiseReplies = fanOut(allAcceptors(quorum), a -> a.prepare(proposalNumber, fromSlot),
+        r -> PaxosCodec.status(r) == PaxosCodec.PROMISE || PaxosCodec.status(r) == PaxosCodec.LAGGING, quorum);
+    metrics.prepare.record(PaxosMetrics.micros(start));
+    for (byte[] response : promiseReplies) {
+      if (PaxosCodec.status(response) == PaxosCodec.LAGGING) {
+        // a peer has compacted slots we have not applied, and leading now could overwrite them with
+        // no-ops, or it has applied so many more that recovering them here would stall the log
+        server.requestCatchUp();
+        throw new RemoteException("Replica is behind a peer's log from slot " + fromSlot + ", catching up");
+      }
+      promises++;
+      for (Map.Entry<Long, AcceptedEntry> accepted : PaxosCodec.decodePromise(response).entrySet()) {
+        AcceptedEntry current = highestAccepted.get(accepted.getKey());
+        if (current == null || accepted.getValue().proposal > current.proposal) {
+          highestAccepted.put(accepted.getKey(), accepted.getValue());
+        }
+      }
+    }
 
-    logger.info("Prepare phase complete. Promises received: " + promises + " out of " + (otherServers.size() + 1));
+    logger.fine("Prepare phase complete. Promises received: " + promises + " out of " + membership.size());
 
     if (promises < quorum) {
       throw new RemoteException("Failed to get quorum for prepare phase. Received " + promises + " promises, needed " + quorum);
     }
 
-    // 2: accept
-    String valueToPropose = highestAcceptedValue != null ? highestAcceptedValue : value;
-    int accepts = 0;
-
-    for (KeyValueRPC otherServer : otherServers) {
-      try {
-        String response = otherServer.accept(proposalNumber, valueToPropose);
-        logger.info("Received accept response from server: " + response);
-        if (response.equals("ACCEPTED")) {
-          accepts++;
+    // A membership change among the open slots governs the slots after it, which this prepare did not
+    // cover with the right quorum: finish the slots up to it, then start over under the new configuration
+    long lastSlot = highestAccepted.isEmpty() ? fromSlot - 1 : Collections.max(highestAccepted.keySet());
+    for (Map.Entry<Long, AcceptedEntry> accepted : highestAccepted.entrySet()) {
+      if (PaxosCodec.isMembershipChange(accepted.getValue().value)) {
+        long changeSlot = accepted.getKey();
+        for (long slot = fromSlot; slot <= changeSlot; slot++) {
+          AcceptedEntry entry = highestAccepted.get(slot);
+          acceptAndLearn(proposalNumber, slot, entry != null ? entry.value : PaxosCodec.NOOP, membership);
         }
-      } catch (RemoteException e) {
-        logger.warning("Failed to send accept request to server: " + e.getMessage());
+        throw new RemoteException("Membership change recovered in slot " + changeSlot + ", electing again under it");
       }
     }
 
-    // Include this server's accept
-    accepts++;
+    // New proposals start past the slots being recovered below. This has to happen before leaderBallot
+    // is published: a proposal that saw it and took one of those slots would be accepted under the same
+    // ballot as the recovered value, and the two could both reach a quorum.
+    synchronized (this) {
+      nextSlot = Math.max(nextSlot, lastSlot + 1);
+    }
+    recovery = new Recovery(proposalNumber, lastSlot);
+    leaderBallot = proposalNumber;
+    metrics.elections.increment();
+    logger.info("Became leader with ballot " + proposalNumber);
+
+    // Re-propose values already accepted in open slots and fill any holes with no-ops
+    for (long slot = fromSlot; slot <= lastSlot; slot++) {
+      AcceptedEntry entry = highestAccepted.get(slot);
+      acceptAndLearn(proposalNumber, slot, entry != null ? entry.value : PaxosCodec.NOOP, membership);
+    }
+  }
+
+  // membership is the configuration that governs this slot
+  private ProposalId acceptAndLearn(long proposalNumber, long slot, byte[] valueToPropose, Membership membership)
+      throws RemoteException {
+    int quorum = membership.phase2Quorum();
+    int accepts;
+    inFlight.incrementAndGet();
+    long start = Clock.nanoTime();
+    try {
+      accepts = fanOut(allAcceptors(quorum), a -> a.accept(proposalNumber, slot, valueToPropose),
+          r -> PaxosCodec.status(r) == PaxosCodec.ACCEPTED, quorum).size();
+    } finally {
+      inFlight.decrementAndGet();
+    }
+    long roundTrip = PaxosMetrics.micros(start);
+    metrics.accept.record(roundTrip);
 
-    logger.info("Accept phase complete. Accepts received: " + accepts + " out of " + (otherServers.size() + 1));
+    messageLog.fine(() -> "Accept phase complete for slot " + slot + ". Accepts received: " + accepts + " out of "
+        + membership.size() + ", " + inFlight.get() + " still in flight");
 
     if (accepts < quorum) {
+      // Another proposer has been promised a higher ballot; fall back to a full round
+      stepDown(proposalNumber);
       throw new RemoteException("Failed to get quorum for accept phase. Received " + accepts + " accepts, needed " + quorum);
     }
+    long smoothed = smoothedRoundTripMicros;
+    smoothedRoundTripMicros = smoothed == 0 ? roundTrip : smoothed + (roundTrip - smoothed) / 8;
 
-    // Proposal accepted, notify learners
-    for (KeyValueRPC otherServer : otherServers) {
-      try {
-        otherServer.learn(proposalNumber, valueToPropose);
-      } catch (RemoteException e) {
-        logger.warning("Failed to notify learner: " + e.getMessage());
-      }
+    // Proposal accepted, notify remote learners without waiting for them
+    // suspected peers miss the learn and pick the slot up through catch-up once they are back
+    for (KeyValueRPC otherServer : server.getLivePeers()) {
+      rpcExecutor.execute(() -> {
+        try {
+          otherServer.learn(slot, valueToPropose);
+        } catch (RemoteException e) {
+          logger.warning("Failed to notify learner: " + e.getMessage());
+        }
+      });
     }
 
     // Notify this server's learner
     try {
-      server.learn(proposalNumber, valueToPropose);
+      server.learn(slot, valueToPropose);
     } catch (RemoteException e) {
       logger.warning("Failed to notify local learner: " + e.getMessage());
     }
 
-    return new ProposalId(proposalNumber, valueToPropose);
+    return new ProposalId(proposalNumber, slot, valueToPropose);
   }
 
+  // Send one request to every target at once and return the replies accepted by isOk as soon as
+  // quorum of them arrive; failures, rejections and replies after the deadline are not waited for
+  private List<byte[]> fanOut(List<KeyValueRPC> targets, RemoteCall call, Predicate<byte[]> isOk, int quorum) {
+    // replies in the order they complete, guarded by itself
+    ArrayDeque<CompletableFuture<byte[]>> completed = new ArrayDeque<>();
+    List<CompletableFuture<byte[]>> pending = new ArrayList<>();
+    for (KeyValueRPC target : targets) {
+      CompletableFuture<byte[]> reply = new CompletableFuture<>();
+      reply.whenComplete((response, error) -> {
+        synchronized (completed) {
+          completed.add(reply);
+          Clock.signalAll(completed);
+        }
+      });
+      pending.add(reply);
+      rpcExecutor.execute(() -> {
+        if (reply.isDone()) {
+          return; // cancelled before it was sent
+        }
+        try {
+          reply.complete(call.send(target));
+        } catch (Throwable e) {
+          reply.completeExceptionally(e);
+        }
+      });
+    }
+
+    List<byte[]> oks = new ArrayList<>();
+    int failures = 0;
+    long deadline = Clock.currentTimeMillis() + RPC_TIMEOUT_MS;
+    try {
+      for (int received = 0; received < targets.size(); received++) {
+        if (oks.size() >= quorum || targets.size() - failures < quorum) {
+          break;
+        }
+        CompletableFuture<byte[]> done;
+        synchronized (completed) {
+          long remaining;
+          while (completed.isEmpty() && (remaining = deadline - Clock.currentTimeMillis()) > 0) {
+            Clock.await(completed, remaining);
+          }
+          done = completed.poll();
+        }
+        if (done == null) {
+          metrics.rpcTimeouts.increment();
+          logger.warning("RPC deadline of " + RPC_TIMEOUT_MS + " ms passed with " + oks.size() + " of " + quorum + " replies");
+          break;
+        }
+        try {
+          byte[] response = done.get();
+          countReply(PaxosCodec.status(response));
+          observeRejection(response);
+          messageLog.fine(() -> "Received response from server: status " + PaxosCodec.status(response) + ", "
+              + response.length + " bytes");
+          if (isOk.test(response)) {
+            oks.add(response);
+          } else {
+            failures++;
+          }
+        } catch (ExecutionException e) {
+          failures++;
+          metrics.rpcFailures.increment();
+          logger.warning("Failed to send request to server: " + e.getCause().getMessage());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (CompletableFuture<byte[]> future : pending) {
+      future.cancel(false); // late replies are ignored; interrupting would only break shared connections
+    }
+    return oks;
+  }
+
+  private void countReply(byte status) {
+    switch (status) {
+      case PaxosCodec.PROMISE:
+        metrics.promisesReceived.increment();
+        break;
+      case PaxosCodec.ACCEPTED:
+        metrics.acceptedReceived.increment();
+        break;
+      case PaxosCodec.LAGGING:
+        metrics.laggingReceived.increment();
+        break;
+      default:
+        metrics.rejectsReceived.increment(); // rejects, and acceptors that timed out
+    }
+  }
+
+  interface RemoteCall {
+    byte[] send(KeyValueRPC target) throws RemoteException;
+  }
+
+  // This server's acceptor takes part in every phase alongside the remote ones. Peers the failure
+  // detector suspects are left out, so a round neither waits on nor spends a call on a dead node,
+  // unless that leaves too few for a quorum; then every member of the configuration is tried.
+  private List<KeyValueRPC> allAcceptors(int quorum) {
+    List<KeyValueRPC> live = server.getLivePeers();
+    List<KeyValueRPC> acceptors = new ArrayList<>(live.size() + 1 >= quorum ? live : server.getPeers());
+    acceptors.add(server);
+    return acceptors;
+  }
+
+  // Waits while our own membership change is being decided; the ballot must still be ours afterwards
+  private synchronized long allocateSlot(long ballot, boolean reconfiguration) throws RemoteException {
+    long deadline = Clock.currentTimeMillis() + RPC_TIMEOUT_MS;
+    while (reconfigurationSlot != -1) {
+      long remaining = deadline - Clock.currentTimeMillis();
+      if (remaining <= 0) {
+        throw new RemoteException("Membership change in slot " + reconfigurationSlot + " still being decided");
+      }
+      try {
+        Clock.await(this, remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RemoteException("Interrupted waiting for a membership change");
+      }
+    }
+    if (leaderBallot != ballot) {
+      throw new RemoteException("Lost leadership before slot could be assigned");
+    }
+    nextSlot = Math.max(nextSlot, server.getFirstUnappliedSlot());
+    if (reconfiguration) {
+      reconfigurationSlot = nextSlot;
+    }
+    return nextSlot++;
+  }
+
+  // Starts above anything the local acceptor has promised, which after a restart comes from its log
   private synchronized long getNextProposalNumber() {
-    return nextProposalNumber += otherServers.size() + 1;
+    nextProposalNumber += BALLOT_STRIDE;
+    long promised = Math.max(server.getPromisedBallot(), highestRejectedBallot.get());
+    if (nextProposalNumber <= promised) {
+      nextProposalNumber += ((promised - nextProposalNumber) / BALLOT_STRIDE + 1) * BALLOT_STRIDE;
+    }
+    return nextProposalNumber;
   }
-}
 
-class ProposalId {
-  long number;
-  String value;
+  // What phase 1 under a ballot found: every slot through throughSlot may have been chosen before it
+  private static class Recovery {
+    final long ballot;
+    final long throughSlot;
+
+    Recovery(long ballot, long throughSlot) {
+      this.ballot = ballot;
+      this.throughSlot = throughSlot;
+    }
+  }
+
+  // An accept round that did not reach a quorum; its slot may have chosen the value anyway
+  private static class UnresolvedSlotException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    final long slot;
+    final long ballot;
 
-  public ProposalId(long number, String value) {
-    this.number = number;
-    this.value = value;
+    UnresolvedSlotException(long slot, long ballot, RemoteException cause) {
+      super("Slot " + slot + ": " + cause.getMessage());
+      this.slot = slot;
+      this.ballot = ballot;
+    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,29 @@
+// Token bucket in bytes per second; a burst of up to one second's worth is allowed
+public class RateLimiter {
+  private final long bytesPerSecond;
+  private double available;
+  private long lastRefill = Clock.nanoTime();
+
+  RateLimiter(long bytesPerSecond) {
+    this.bytesPerSecond = bytesPerSecond;
+    this.available = bytesPerSecond;
+  }
+
+  public void acquire(long bytes) throws InterruptedException {
+    long waitNanos;
+    synchronized (this) {
+      refill();
+      available -= bytes;
+      // go into debt and sleep it off, so oversized replies are slowed rather than refused; the debt stays
+      // in the bucket, so other catch-up requests sleep until this one's bytes are paid for too
+      waitNanos = available < 0 ? (long) (-available * 1e9 / bytesPerSecond) : 0;
+    }
+    Clock.sleepNanos(waitNanos);
+  }
+
+  private void refill() {
+    long now = Clock.nanoTime();
+    available = Math.min(bytesPerSecond, available + (now - lastRefill) * bytesPerSecond / 1e9);
+    lastRefill = now;
+  }
+}
@@ -0,0 +1,23 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Per-message debug logging: only every paxos.log.sampleEvery-th message is written, at FINE, and the
+// message is only built when it will be
+public class SampledLog {
+  private static final int SAMPLE_EVERY = Integer.getInteger("paxos.log.sampleEvery", 100);
+
+  private final Logger logger;
+  private final AtomicLong seen = new AtomicLong();
+
+  SampledLog(Logger logger) {
+    this.logger = logger;
+  }
+
+  void fine(Supplier<String> message) {
+    if (logger.isLoggable(Level.FINE) && seen.incrementAndGet() % SAMPLE_EVERY == 0) {
+      logger.fine(message.get() + " [1 in " + SAMPLE_EVERY + " logged]");
+    }
+  }
+}
@@ -0,0 +1,72 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// One page of KeyValueRPC.scan, in key order. Pass nextToken back to scan() for the following page;
+// it is null once the range is exhausted.
+public class ScanPage implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  final LinkedHashMap<String, String> entries;
+  final String nextToken;
+
+  public ScanPage(LinkedHashMap<String, String> entries, String nextToken) {
+    this.entries = entries;
+    this.nextToken = nextToken;
+  }
+
+  public Map<String, String> getEntries() {
+    return entries;
+  }
+
+  public String getNextToken() {
+    return nextToken;
+  }
+
+  public boolean hasMore() {
+    return nextToken != null;
+  }
+
+  // The old GETALL listing, "key value" per line, fetched page by page
+  static String listAll(KeyValueRPC source) throws RemoteException {
+    StringBuilder result = new StringBuilder();
+    String token = null;
+    do {
+      ScanPage page = source.scan("", token, Server.MAX_SCAN_PAGE);
+      for (Map.Entry<String, String> entry : page.entries.entrySet()) {
+        result.append(entry.getKey()).append(" ").append(entry.getValue()).append("\n");
+      }
+      token = page.nextToken;
+    } while (token != null);
+    return result.toString();
+  }
+
+  // TcpTransport encoding: [count] then per entry [keyLen][key][valueLen][value], then [hasToken][token]
+  void write(DataOutputStream out) throws IOException {
+    out.writeInt(entries.size());
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      TcpTransport.writeBytes(out, entry.getKey().getBytes(StandardCharsets.UTF_8));
+      TcpTransport.writeBytes(out, entry.getValue().getBytes(StandardCharsets.UTF_8));
+    }
+    out.writeBoolean(nextToken != null);
+    if (nextToken != null) {
+      TcpTransport.writeBytes(out, nextToken.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  static ScanPage read(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    LinkedHashMap<String, String> entries = new LinkedHashMap<>();
+    for (int i = 0; i < count; i++) {
+      String key = new String(TcpTransport.readBytes(in), StandardCharsets.UTF_8);
+      entries.put(key, new String(TcpTransport.readBytes(in), StandardCharsets.UTF_8));
+    }
+    String nextToken = in.readBoolean() ? new String(TcpTransport.readBytes(in), StandardCharsets.UTF_8) : null;
+    return new ScanPage(entries, nextToken);
+  }
+}
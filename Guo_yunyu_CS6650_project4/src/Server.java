@@ -1,69 +1,367 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
 
 public class Server extends UnicastRemoteObject implements KeyValueRPC {
   private static final Logger logger = Logger.getLogger(Server.class.getName());
-  private Map<String, String> store = new ConcurrentHashMap<>();
-  private List<KeyValueRPC> otherServers = new ArrayList<>();
-  private String[] otherServerAddresses;
-  private int[] otherServerPorts;
+  // Sorted so scan() can resume after any key without materialising the whole keyspace
+  // replaced wholesale when a snapshot is installed from a peer
+  private volatile StorageEngine store = StorageEngine.create();
+  // Membership: the configuration in effect after lastApplied, read back from the store whenever a
+  // membership change is applied. The group starts with this server and the peers it was launched with;
+  // with -Dpaxos.join=true it starts outside the group and only takes part once its addMember is applied.
+  private final Membership bootstrapMembership;
+  private volatile Membership membership;
+  private final String address;
+  // connections to every replica we have reached, by address; peers holds those in the current membership
+  private final Map<String, KeyValueRPC> connections = new ConcurrentHashMap<>();
+  private final Map<String, Integer> serverIds = new ConcurrentHashMap<>();
+  private final Object peersLock = new Object();
+  private volatile Map<String, KeyValueRPC> memberPeers = Collections.emptyMap();
+  private volatile List<KeyValueRPC> peers = Collections.emptyList();
+  private volatile Map<Integer, KeyValueRPC> peersByOwner = new ConcurrentHashMap<>();
   private int serverId;
   private int port;
+  // this server is one replica of shard `shard` out of shardCount, see ShardMap
+  private final int shard;
+  private final int shardCount;
 
   private Acceptor acceptor;
   private Proposer proposer;
   private Learner learner;
+  private CommandBatcher batcher;
+  private CatchUp catchUp;
+  private FailureDetector failureDetector;
+  private PeerTransport transport = PeerTransport.fromSystemProperty();
+  private Registry registry;
+  private final PaxosMetrics metrics = new PaxosMetrics();
 
-  private static final int PREPARE_TIMEOUT_MS = 5000; // 5 seconds
+  // Replicated log: decided commands are applied to the store strictly in slot order
+  private final Object applyLock = new Object();
+  private long lastApplied = -1;
+  // Applied commands kept for peers that are catching up; every slot in (compactedThrough, lastApplied]
+  // is present, older ones are only available as a snapshot of the store
+  private final ConcurrentSkipListMap<Long, byte[]> appliedLog = new ConcurrentSkipListMap<>();
+  private volatile long compactedThrough = -1;
+  private final RateLimiter catchUpLimiter = new RateLimiter(CATCHUP_BYTES_PER_SEC);
+
+  // Durability: acceptor state and applied decisions go to a write-ahead log under dataDir.
+  // Every SNAPSHOT_INTERVAL applied slots the store is snapshotted (when durable) and the log compacted.
+  private File dataDir;
+  private WriteAheadLog wal;
+  private long lastSnapshot = -1;
+  private volatile boolean snapshotting = false;
+  private final ExecutorService snapshotExecutor = Threads.single("snapshotter");
+  // connects to replicas added to the group, off the apply path
+  private final ExecutorService membershipExecutor = Threads.single("membership");
+  private final Semaphore waitingRequests = new Semaphore(MAX_WAITING_REQUESTS);
+
+  private static final long BATCH_WINDOW_MS = Long.getLong("paxos.batch.windowMs", 2);
+  private static final int BATCH_MAX_SIZE = Integer.getInteger("paxos.batch.maxSize", 64);
+  private static final int PIPELINE_DEPTH = Integer.getInteger("paxos.pipeline.depth", 8);
+  private static final int MAX_QUEUED_COMMANDS = Integer.getInteger("paxos.batch.maxQueued", 50000);
+  static final int APPLY_TIMEOUT_MS = 10000; // 10 seconds
+  // Writes, forwards and linearizable reads hold their handler thread (RMI's own, or a TCP request worker)
+  // until the log has applied them; past this many at once they are turned away rather than piling up threads
+  private static final int MAX_WAITING_REQUESTS = Integer.getInteger("paxos.requests.maxWaiting",
+      Threads.virtual() ? 10000 : 1000);
+  private static final int READ_INDEX_ATTEMPTS = Integer.getInteger("paxos.read.leaderAttempts", 4);
+  private static final long READ_INDEX_BACKOFF_MS = Long.getLong("paxos.read.backoffMs", 5);
+  public static final int MAX_SCAN_PAGE = Integer.getInteger("paxos.scan.maxPage", 1000);
+  // An empty paxos.dataDir keeps everything in memory, as before
+  private static final String DATA_DIR = System.getProperty("paxos.dataDir", "data");
+  private static final boolean GROUP_COMMIT = Boolean.parseBoolean(System.getProperty("paxos.wal.groupCommit", "true"));
+  private static final long SNAPSHOT_INTERVAL = Long.getLong("paxos.snapshot.interval", 10000);
+  // applied slots kept behind the last checkpoint, so a replica that is only a little behind needs no snapshot
+  private static final long LOG_RETAIN = Long.getLong("paxos.log.retain", 10000);
+  private static final long CATCHUP_BYTES_PER_SEC = Long.getLong("paxos.catchup.bytesPerSec", 8L * 1024 * 1024);
+  // the host this server's own address is given with in the membership
+  private static final String HOST = System.getProperty("paxos.host", "localhost");
+  private static final boolean JOIN = Boolean.getBoolean("paxos.join");
+
+  // read modes for get(key, readMode)
+  public static final String READ_LOCAL = "local";
+  public static final String READ_LINEARIZABLE = "linearizable";
+  // reply prefix for a key sent to a group that does not own it, followed by the owning shard
+  public static final String WRONG_SHARD = "ERROR: WRONG_SHARD";
+  // multiPut/multiGet/multiDelete: keys per call, all of which must belong to this shard
+  public static final int MAX_MULTI_KEYS = Integer.getInteger("paxos.multi.maxKeys", 1000);
 
   public Server(int port, String[] otherServerAddresses, int[] otherServerPorts, int serverId) throws RemoteException {
+    this(port, otherServerAddresses, otherServerPorts, serverId, 0, 1);
+  }
+
+  public Server(int port, String[] otherServerAddresses, int[] otherServerPorts, int serverId, int shard,
+      int shardCount) throws RemoteException {
+    this(port, otherServerAddresses, otherServerPorts, serverId, shard, shardCount, JOIN);
+  }
+
+  public Server(int port, String[] otherServerAddresses, int[] otherServerPorts, int serverId, int shard,
+      int shardCount, boolean join) throws RemoteException {
     super(port);
+    if (serverId < 0 || serverId >= Proposer.BALLOT_STRIDE) {
+      throw new IllegalArgumentException("Server id must be in [0, " + Proposer.BALLOT_STRIDE + "): " + serverId);
+    }
     this.port = port;
     this.serverId = serverId;
-    this.otherServerAddresses = otherServerAddresses;
-    this.otherServerPorts = otherServerPorts;
+    this.shard = shard;
+    this.shardCount = shardCount;
+    this.address = Membership.address(HOST, port);
+    Set<String> members = new TreeSet<>();
+    if (!join) {
+      members.add(address);
+    }
+    for (int i = 0; i < otherServerAddresses.length; i++) {
+      members.add(Membership.address(otherServerAddresses[i], otherServerPorts[i]));
+    }
+    this.bootstrapMembership = new Membership(members);
+    bootstrap(store);
+    this.membership = bootstrapMembership;
 
+    registerGauges();
     this.acceptor = new Acceptor(this);
-    this.proposer = new Proposer(this, serverId, otherServers);
-    this.learner = new Learner(this, otherServers.size()/2+1);
+    this.proposer = new Proposer(this, serverId);
+    this.learner = new Learner(this);
+    this.batcher = new CommandBatcher(this, BATCH_WINDOW_MS, BATCH_MAX_SIZE, PIPELINE_DEPTH, MAX_QUEUED_COMMANDS);
+    this.catchUp = new CatchUp(this);
+    this.failureDetector = new FailureDetector(this);
+    if (!DATA_DIR.isEmpty()) {
+      File parent = shardCount > 1 ? new File(DATA_DIR, "shard-" + shard) : new File(DATA_DIR);
+      this.dataDir = new File(parent, "server-" + serverId);
+    }
+  }
+
+  // Rebuilds the store from the latest snapshot plus the decisions logged after it, and the acceptor's
+  // promises and accepts from the log, then opens a fresh log segment for new records
+  private void recover() throws IOException {
+    if (dataDir == null) {
+      return;
+    }
+    dataDir.mkdirs();
+    long start = System.currentTimeMillis();
+    Snapshot snapshot = Snapshot.read(dataDir);
+    store = snapshot.store;
+    bootstrap(store);
+    Map<Long, byte[]> decided = new HashMap<>();
+    long records = WriteAheadLog.replay(dataDir, (type, payload) -> {
+      if (type == WriteAheadLog.PROMISE) {
+        acceptor.restorePromise(payload.getLong());
+      } else if (type == WriteAheadLog.ACCEPT) {
+        long slot = payload.getLong();
+        long ballot = payload.getLong();
+        acceptor.restoreAccepted(slot, ballot, WriteAheadLog.readValue(payload));
+      } else if (type == WriteAheadLog.DECIDE) {
+        long slot = payload.getLong();
+        if (slot > snapshot.lastApplied) {
+          decided.put(slot, WriteAheadLog.readValue(payload));
+        }
+      }
+    });
+    synchronized (applyLock) {
+      lastApplied = snapshot.lastApplied;
+      lastSnapshot = snapshot.lastApplied;
+      compactedThrough = snapshot.lastApplied;
+      byte[] command;
+      while ((command = decided.get(lastApplied + 1)) != null) {
+        applyTo(store, command);
+        lastApplied++;
+        appliedLog.put(lastApplied, command);
+      }
+      learner.release(lastApplied);
+      membership = Membership.decode(store.get(Membership.STORE_KEY));
+    }
+    // accepted values at or below the snapshot may not have been replayed
+    acceptor.compact(snapshot.lastApplied);
+    wal = new WriteAheadLog(dataDir, GROUP_COMMIT);
+    acceptor.setLog(wal);
+    logger.info("Recovered " + keyCount(store) + " keys through slot " + lastApplied + " from " + dataDir
+        + " (snapshot at " + snapshot.lastApplied + ", " + records + " log records) in "
+        + (System.currentTimeMillis() - start) + " ms, " + membership);
+  }
+
+  // A store that has never seen a membership change starts from the launch configuration
+  private void bootstrap(StorageEngine target) {
+    if (target.get(Membership.STORE_KEY) == null) {
+      target.put(Membership.STORE_KEY, bootstrapMembership.encode());
+    }
+  }
+
+  // Clients' keys only; the reserved ones sort first, so counting them reads just the front of the store
+  private static int keyCount(StorageEngine target) {
+    int reserved = 0;
+    Iterator<Map.Entry<String, String>> keys = target.scan(Membership.RESERVED_PREFIX, true);
+    while (keys.hasNext() && keys.next().getKey().startsWith(Membership.RESERVED_PREFIX)) {
+      reserved++;
+    }
+    return target.size() - reserved;
+  }
+
+  // Copies the store under the apply lock and rotates the log there, so the snapshot and the new
+  // segment meet exactly at lastApplied; the copy is written out afterwards on the snapshot thread.
+  // Then drops applied entries and acceptor state older than LOG_RETAIN slots behind it.
+  private void checkpoint() {
+    try {
+      long index;
+      if (wal != null) {
+        StorageEngine copy;
+        long segment;
+        synchronized (applyLock) {
+          copy = store.snapshot();
+          index = lastApplied;
+          segment = acceptor.rotateLog(index);
+        }
+        // write() returns once the rename is on disk, so the segments the snapshot replaces can go
+        Snapshot.write(dataDir, index, copy);
+        wal.deleteSegmentsBefore(segment);
+        logger.info("Snapshot of " + keyCount(copy) + " keys written through slot " + index);
+      } else {
+        synchronized (applyLock) {
+          index = lastApplied;
+        }
+      }
+      synchronized (applyLock) {
+        lastSnapshot = index;
+      }
+      compact(index - LOG_RETAIN);
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Failed to write snapshot", e);
+    } finally {
+      snapshotting = false;
+    }
+  }
+
+  private void compact(long throughSlot) {
+    if (throughSlot <= compactedThrough) {
+      return;
+    }
+    compactedThrough = throughSlot; // before removing, so fetchLog never offers a range with holes
+    appliedLog.headMap(throughSlot, true).clear();
+    acceptor.compact(throughSlot);
   }
 
   public void start() {
-    connectToOtherServers();
-    acceptor.start();
-    proposer.start();
-    learner.start();
+    connectToMembers();
+    Threads.start(batcher);
+    Threads.start(catchUp);
+    Threads.start(failureDetector);
     checkConnectivity();
-    logger.info("Server fully initialized and ready for operations.");
+    logger.info("Server fully initialized and ready for operations ("
+        + (Threads.virtual() ? "virtual" : "platform") + " threads for blocking work).");
   }
 
-  private void connectToOtherServers() {
-    for (int i = 0; i < otherServerAddresses.length; i++) {
-      try {
-        Registry registry = LocateRegistry.getRegistry(otherServerAddresses[i], otherServerPorts[i]);
-        KeyValueRPC otherServer = (KeyValueRPC) registry.lookup("KeyValueRPC");
-        otherServers.add(otherServer);
-        logger.info("Connected to server at " + otherServerAddresses[i] + ":" + otherServerPorts[i]);
-      } catch (Exception e) {
-        logger.log(Level.WARNING, "Failed to connect to server at " + otherServerAddresses[i] + ":" + otherServerPorts[i], e);
+  // Connects to every member we have no connection to yet; the failure detector retries the ones that
+  // cannot be reached now
+  private void connectToMembers() {
+    for (String member : membership.members()) {
+      if (member.equals(address) || connections.containsKey(member)) {
+        continue;
+      }
+      if (reconnect(member)) {
+        logger.info("Connected to server at " + member);
+      } else {
+        logger.warning("Failed to connect to server at " + member + ", will keep trying");
+      }
+    }
+  }
+
+  // (Re)places the connection to a member, e.g. a stub that a restarted peer no longer answers.
+  // False if the member cannot be reached.
+  boolean reconnect(String member) {
+    int colon = member.lastIndexOf(':');
+    KeyValueRPC otherServer;
+    try {
+      otherServer = transport.connect(member.substring(0, colon), Integer.parseInt(member.substring(colon + 1)));
+      serverIds.put(member, otherServer.getServerId());
+    } catch (Exception e) {
+      logger.fine("Failed to connect to server at " + member + ": " + e);
+      return false;
+    }
+    KeyValueRPC previous = connections.put(member, otherServer);
+    if (previous != null) {
+      transport.disconnect(previous);
+      metrics.peerReconnects.increment();
+    }
+    refreshPeers();
+    return true;
+  }
+
+  // Rebuilds the peer lists from the current membership; removed replicas drop out at once
+  private void refreshPeers() {
+    synchronized (peersLock) {
+      Membership current = membership;
+      Map<String, KeyValueRPC> members = new LinkedHashMap<>();
+      Map<Integer, KeyValueRPC> owners = new ConcurrentHashMap<>();
+      for (Map.Entry<String, KeyValueRPC> connection : connections.entrySet()) {
+        if (!current.contains(connection.getKey()) || connection.getKey().equals(address)) {
+          continue;
+        }
+        members.put(connection.getKey(), connection.getValue());
+        owners.put(serverIds.get(connection.getKey()), connection.getValue());
+      }
+      memberPeers = Collections.unmodifiableMap(members);
+      peers = Collections.unmodifiableList(new ArrayList<>(members.values()));
+      peersByOwner = owners;
+    }
+  }
+
+  // Connections to the other members of the current configuration
+  public List<KeyValueRPC> getPeers() {
+    return peers;
+  }
+
+  // The members among them that the failure detector does not suspect
+  public List<KeyValueRPC> getLivePeers() {
+    List<KeyValueRPC> live = new ArrayList<>(memberPeers.size());
+    for (Map.Entry<String, KeyValueRPC> peer : memberPeers.entrySet()) {
+      if (!failureDetector.isSuspected(peer.getKey())) {
+        live.add(peer.getValue());
       }
     }
+    return live;
+  }
+
+  KeyValueRPC getConnection(String member) {
+    return connections.get(member);
+  }
+
+  public String getAddress() {
+    return address;
+  }
+
+  public Membership getMembership() {
+    return membership;
+  }
+
+  public boolean isMember() {
+    return membership.contains(address);
   }
 
   public void checkConnectivity() {
     logger.info("Checking connectivity with other servers...");
-    for (KeyValueRPC otherServer : otherServers) {
+    for (KeyValueRPC otherServer : peers) {
       try {
         String response = otherServer.ping();
         logger.info("Successfully pinged server: " + response);
@@ -77,6 +375,14 @@ public class Server extends UnicastRemoteObject implements KeyValueRPC {
     return "pong from " + serverId;
   }
 
+  public int getServerId() throws RemoteException {
+    return serverId;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
   public boolean isReady() {
     return acceptor != null && proposer != null && learner != null;
   }
@@ -84,41 +390,453 @@ public class Server extends UnicastRemoteObject implements KeyValueRPC {
   public void healthCheck() {
     logger.info("Performing health check...");
     checkConnectivity();
-    // Add any other health check logic here
+    logger.info("Peers: " + failureDetector.describe());
+    logger.info("Batching stats: " + batcher.getStats());
+    if (wal != null) {
+      logger.info("WAL: " + wal.getRecordCount() + " records, " + wal.getFsyncCount() + " fsyncs");
+    }
+  }
+
+  @Override
+  public String addMember(String member) throws RemoteException {
+    return changeMembership(Command.addMember(member));
+  }
+
+  @Override
+  public String removeMember(String member) throws RemoteException {
+    return changeMembership(Command.removeMember(member));
+  }
+
+  @Override
+  public String getMembers() throws RemoteException {
+    return membership.toString();
+  }
+
+  // Decided through the log like a write, on its own in a slot, and applied in slot order on every
+  // replica, so they all switch configuration between the same two slots
+  private String changeMembership(Command change) {
+    int colon = change.key.lastIndexOf(':');
+    if (colon <= 0 || !change.key.substring(colon + 1).matches("\\d+")) {
+      return "ERROR: member address must be host:port, got " + change.key;
+    }
+    if (change.op == Command.REMOVE_MEMBER && membership.size() == 1 && membership.contains(change.key)) {
+      return "ERROR: cannot remove the last member";
+    }
+    byte[] value = PaxosCodec.encodeCommands(Collections.singletonList(change));
+    if (!proposer.isLeader()) {
+      KeyValueRPC leader = currentLeader();
+      if (leader != null) {
+        try {
+          return leader.forward(value);
+        } catch (RemoteException e) {
+          if (!neverDelivered(e)) {
+            return "ERROR: forward to leader failed, the change may still take effect: " + e.getMessage();
+          }
+          logger.warning("Failed to forward membership change to leader, proposing locally: " + e.getMessage());
+        }
+      }
+    }
+    return proposeValue(value, false);
   }
 
   @Override
   public String put(String key, String value) throws RemoteException {
-    String command = "PUT " + key + " " + value;
-    return runPaxos(command);
+    String wrongShard = checkKey(key);
+    return wrongShard != null ? wrongShard : submit(Command.put(key, value));
   }
 
   @Override
   public String get(String key) throws RemoteException {
-    return store.getOrDefault(key, "ERROR: key not found");
+    String wrongShard = checkKey(key);
+    if (wrongShard != null) {
+      return wrongShard;
+    }
+    String value = store.get(key);
+    return value != null ? value : "ERROR: key not found";
+  }
+
+  @Override
+  public String get(String key, String readMode) throws RemoteException {
+    if (READ_LINEARIZABLE.equalsIgnoreCase(readMode)) {
+      String wrongShard = checkKey(key);
+      return wrongShard != null ? wrongShard : linearizableGet(key);
+    }
+    return get(key);
+  }
+
+  // ReadIndex: learn the leader's commit point after it has confirmed leadership with a quorum,
+  // wait until this replica has applied that far, then read locally without going through the log
+  private String linearizableGet(String key) throws RemoteException {
+    if (!waitingRequests.tryAcquire()) {
+      return overloaded();
+    }
+    try {
+      long index = obtainReadIndex();
+      if (!waitForApplied(index)) {
+        return "ERROR: replica has not applied up to read index " + index;
+      }
+      return get(key);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return "ERROR: interrupted waiting for read index";
+    } finally {
+      waitingRequests.release();
+    }
+  }
+
+  private String overloaded() {
+    metrics.requestsRejected.increment();
+    return "ERROR: Server overloaded, " + MAX_WAITING_REQUESTS + " requests already waiting; retry later";
+  }
+
+  // A follower asks whoever it believes leads, again after a short jittered pause if that one is between
+  // ballots or has just been outbid. Taking over at the first refusal made concurrent readers on
+  // different replicas depose each other's leader in turn; this server only runs phase 1 itself when no
+  // leader is known, the believed one is suspected by the failure detector, or the retries run out.
+  private long obtainReadIndex() throws RemoteException {
+    for (int attempt = 0; !proposer.isLeader(); attempt++) {
+      int leaderId = believedLeaderId();
+      KeyValueRPC leader = leaderId == -1 ? null : peersByOwner.get(leaderId);
+      if (leader == null || isSuspected(leaderId)) {
+        break;
+      }
+      try {
+        long index = leader.readIndex();
+        catchUp.reportDecided(index); // fetched from a peer if the learns for it never arrive
+        return index;
+      } catch (RemoteException e) {
+        if (attempt == READ_INDEX_ATTEMPTS - 1) {
+          logger.warning("Failed to get read index from leader, taking leadership: " + e.getMessage());
+          break;
+        }
+      }
+      try {
+        Clock.sleep(Clock.random().nextLong(1, 2L << attempt) * READ_INDEX_BACKOFF_MS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RemoteException("Interrupted waiting for the leader");
+      }
+    }
+    if (!proposer.isLeader()) {
+      // No usable leader: committing a no-op makes this server leader with every earlier slot decided
+      String result = proposeValue(PaxosCodec.NOOP, false);
+      if (!result.equals("SUCCESS")) {
+        throw new RemoteException("Could not establish leadership for read: " + result);
+      }
+    }
+    return proposer.readIndex();
+  }
+
+  @Override
+  public long readIndex() throws RemoteException {
+    return proposer.readIndex();
+  }
+
+  @Override
+  public byte[] confirmLeader(long ballot) throws RemoteException {
+    heardFromOwner(ballot);
+    return acceptor.confirmLeader(ballot);
+  }
+
+  public long getPromisedBallot() {
+    return acceptor.getHighestPrepare();
+  }
+
+  public PaxosMetrics getMetrics() {
+    return metrics;
+  }
+
+  private void registerGauges() {
+    metrics.gauge("Leader", () -> proposer.isLeader() ? 1 : 0);
+    metrics.gauge("PromisedBallot", () -> acceptor.getHighestPrepare());
+    metrics.gauge("InFlightProposals", () -> proposer.getInFlight());
+    metrics.gauge("LastApplied", () -> getFirstUnappliedSlot() - 1);
+    metrics.gauge("HighestDecided", () -> learner.getHighestDecided());
+    // decided but not yet applied, usually because an earlier slot is still missing
+    metrics.gauge("ApplyLag", () -> Math.max(0, learner.getHighestDecided() - (getFirstUnappliedSlot() - 1)));
+    metrics.gauge("CompactedThrough", () -> compactedThrough);
+    metrics.gauge("StoreSize", () -> keyCount(store));
+    metrics.gauge("Members", () -> membership.size());
+    metrics.gauge("SuspectedPeers", () -> failureDetector.suspectedCount());
+    metrics.gauge("WalRecords", () -> wal == null ? 0 : wal.getRecordCount());
+    metrics.gauge("WalFsyncs", () -> wal == null ? 0 : wal.getFsyncCount());
+  }
+
+  public long getHighestDecided() {
+    return Math.max(learner.getHighestDecided(), getFirstUnappliedSlot() - 1);
   }
 
   @Override
   public String delete(String key) throws RemoteException {
-    String command = "DELETE " + key;
-    return runPaxos(command);
+    String wrongShard = checkKey(key);
+    return wrongShard != null ? wrongShard : submit(Command.delete(key));
+  }
+
+  // The commands of a multi-key write are proposed together in one log value, so they are
+  // decided in the same slot and applied under one hold of the apply lock
+  @Override
+  public String multiPut(Map<String, String> entries) throws RemoteException {
+    List<Command> commands = new ArrayList<>(entries.size());
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      commands.add(Command.put(entry.getKey(), entry.getValue()));
+    }
+    return submitAll(commands);
+  }
+
+  @Override
+  public String multiDelete(List<String> keys) throws RemoteException {
+    List<Command> commands = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      commands.add(Command.delete(key));
+    }
+    return submitAll(commands);
+  }
+
+  // Keys that are not in the store are left out. Reading under the apply lock means a multiPut is
+  // seen entirely or not at all.
+  @Override
+  public Map<String, String> multiGet(List<String> keys, String readMode) throws RemoteException {
+    if (keys.size() > MAX_MULTI_KEYS) {
+      throw new RemoteException("Too many keys: " + keys.size() + " > " + MAX_MULTI_KEYS);
+    }
+    for (String key : keys) {
+      String wrongShard = checkKey(key);
+      if (wrongShard != null) {
+        throw new RemoteException(wrongShard);
+      }
+    }
+    if (READ_LINEARIZABLE.equalsIgnoreCase(readMode)) {
+      if (!waitingRequests.tryAcquire()) {
+        throw new RemoteException(overloaded());
+      }
+      try {
+        long index = obtainReadIndex();
+        if (!waitForApplied(index)) {
+          throw new RemoteException("Replica has not applied up to read index " + index);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RemoteException("Interrupted waiting for read index");
+      } finally {
+        waitingRequests.release();
+      }
+    }
+    HashMap<String, String> values = new HashMap<>();
+    synchronized (applyLock) {
+      for (String key : keys) {
+        String value = store.get(key);
+        if (value != null) {
+          values.put(key, value);
+        }
+      }
+    }
+    return values;
+  }
+
+  private String submitAll(List<Command> commands) {
+    if (commands.isEmpty()) {
+      return "SUCCESS";
+    }
+    if (commands.size() > MAX_MULTI_KEYS) {
+      return "ERROR: too many keys: " + commands.size() + " > " + MAX_MULTI_KEYS;
+    }
+    // all keys must be in this group, since one log value cannot span groups
+    for (Command command : commands) {
+      String wrongShard = checkKey(command.key);
+      if (wrongShard != null) {
+        return wrongShard;
+      }
+    }
+    return submit(commands);
+  }
+
+  // A key routed to the wrong group is refused, naming the shard that owns it, rather than
+  // being written into a log that no reader of that key will look at. Reserved keys, such as the
+  // membership's, are only changed through addMember and removeMember.
+  private String checkKey(String key) {
+    if (key.startsWith(Membership.RESERVED_PREFIX)) {
+      return "ERROR: reserved key";
+    }
+    if (shardCount > 1) {
+      int owner = ShardMap.shardOf(key, shardCount);
+      if (owner != shard) {
+        return WRONG_SHARD + " " + owner;
+      }
+    }
+    return null;
   }
 
+  // Kept for old clients: the whole store in one string, assembled from scan pages
   @Override
   public String getAll() throws RemoteException {
-    StringBuilder result = new StringBuilder();
-    for (Map.Entry<String, String> entry : store.entrySet()) {
-      result.append(entry.getKey()).append(" ").append(entry.getValue()).append("\n");
+    return ScanPage.listAll(this);
+  }
+
+  // The continuation token is the last key of the previous page. The store iterates weakly
+  // consistently, so a scan runs alongside writes without locking and sees each key at most once.
+  @Override
+  public ScanPage scan(String prefix, String continuationToken, int pageSize) throws RemoteException {
+    return scan(prefix, continuationToken, pageSize, false);
+  }
+
+  // Snapshot transfer also copies the membership, which clients never see
+  private ScanPage scan(String prefix, String continuationToken, int pageSize, boolean withMembership) {
+    String match = prefix == null ? "" : prefix;
+    int limit = Math.max(1, Math.min(pageSize, MAX_SCAN_PAGE));
+    Iterator<Map.Entry<String, String>> range = continuationToken == null || continuationToken.compareTo(match) < 0
+        ? store.scan(match, true)
+        : store.scan(continuationToken, false);
+    LinkedHashMap<String, String> entries = new LinkedHashMap<>();
+    String lastKey = null;
+    String nextToken = null;
+    while (range.hasNext()) {
+      Map.Entry<String, String> entry = range.next();
+      if (!entry.getKey().startsWith(match)) {
+        break; // keys sharing the prefix are contiguous, so this is past the end of the range
+      }
+      if (!withMembership && entry.getKey().startsWith(Membership.RESERVED_PREFIX)) {
+        continue;
+      }
+      if (entries.size() == limit) {
+        nextToken = lastKey;
+        break;
+      }
+      entries.put(entry.getKey(), entry.getValue());
+      lastKey = entry.getKey();
+    }
+    return new ScanPage(entries, nextToken);
+  }
+
+  @Override
+  public String forward(byte[] command) throws RemoteException {
+    if (!waitingRequests.tryAcquire()) {
+      return overloaded();
+    }
+    try {
+      // Forwarded writes are always proposed here, never forwarded again
+      if (PaxosCodec.isMembershipChange(command)) {
+        return proposeValue(command, false); // never batched with writes
+      }
+      return runPaxos(PaxosCodec.decodeCommands(command), true);
+    } finally {
+      waitingRequests.release();
     }
-    return result.toString();
   }
 
-  private String runPaxos(String command) {
+  // Writes go to the current Multi-Paxos leader so that only one proposer skips phase 1
+  private String submit(Command command) {
+    return submit(Collections.singletonList(command));
+  }
+
+  private String submit(List<Command> commands) {
+    if (!waitingRequests.tryAcquire()) {
+      return overloaded();
+    }
     try {
-      ProposalId proposalId = proposer.propose(command);
+      if (!proposer.isLeader()) {
+        KeyValueRPC leader = currentLeader();
+        if (leader != null) {
+          try {
+            return leader.forward(PaxosCodec.encodeCommands(commands));
+          } catch (RemoteException e) {
+            if (!neverDelivered(e)) {
+              return "ERROR: forward to leader failed, the write may still take effect: " + e.getMessage();
+            }
+            logger.warning("Failed to forward to leader, proposing locally: " + e.getMessage());
+          }
+        }
+      }
+      return runPaxos(commands, false);
+    } finally {
+      waitingRequests.release();
+    }
+  }
+
+  // A forward that failed before reaching the leader can be proposed here instead. One that may have
+  // reached it cannot: the leader may have proposed it already, and it would be applied twice.
+  private static boolean neverDelivered(RemoteException e) {
+    return e instanceof ConnectException || e instanceof ConnectIOException || e instanceof NoSuchObjectException;
+  }
+
+  private boolean isSuspected(int peerId) {
+    String member = memberWithId(peerId);
+    return member != null && failureDetector.isSuspected(member);
+  }
+
+  // A prepare, accept or leadership check carrying a peer's ballot shows that peer is up; a heartbeat
+  // still waiting out a partition that just healed would otherwise keep it suspected for a while
+  private void heardFromOwner(long ballot) {
+    String member = memberWithId(peerOwning(ballot));
+    if (member != null) {
+      failureDetector.heardFrom(member);
+    }
+  }
+
+  private String memberWithId(int peerId) {
+    for (Map.Entry<String, Integer> peer : serverIds.entrySet()) {
+      if (peer.getValue() == peerId) {
+        return peer.getKey();
+      }
+    }
+    return null;
+  }
+
+  // The leader is whoever owns the highest ballot our acceptor has promised
+  private KeyValueRPC currentLeader() {
+    int leaderId = believedLeaderId();
+    return leaderId == -1 ? null : peersByOwner.get(leaderId);
+  }
+
+  // A peer's server id, or -1 if no leader is known or it is this server without a live ballot
+  private int believedLeaderId() {
+    return peerOwning(acceptor.getHighestPrepare());
+  }
+
+  // The peer whose proposer hands out this ballot, or -1 if it is ours, none, or not a member
+  private int peerOwning(long ballot) {
+    if (ballot < 0) {
+      return -1;
+    }
+    int owner = proposer.ballotOwner(ballot);
+    return peersByOwner.containsKey(owner) ? owner : -1;
+  }
+
+  // Redirect hint for clients, so writes can skip the forwarding hop
+  @Override
+  public int getLeaderId() throws RemoteException {
+    return proposer.isLeader() ? serverId : believedLeaderId();
+  }
+
+  // PUT/DELETE commands are queued for the batcher, which proposes them together as one log value
+  private String runPaxos(List<Command> commands, boolean forwarded) {
+    try {
+      return Clock.get(batcher.submit(commands, forwarded), 0);
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Error in Paxos execution", e);
+      return "ERROR: " + e.getMessage();
+    }
+  }
+
+  // Runs one Paxos instance for an encoded log value and waits until it is applied locally. With
+  // mayHandOff the value goes to a proposer that has just outbid this one, instead of contending with it.
+  public String proposeValue(byte[] value, boolean mayHandOff) {
+    long start = Clock.nanoTime();
+    try {
+      ProposalId proposalId;
+      try {
+        proposalId = proposer.propose(value, mayHandOff);
+      } catch (LeaderElsewhereException e) {
+        String result = handOff(value, e.ballot);
+        return result != null ? result : proposeValue(value, false);
+      }
+      long accepted = Clock.nanoTime();
       if (learner.waitForConsensus(proposalId)) {
-        executeCommand(command);
-        return "SUCCESS";
+        metrics.learn.record(PaxosMetrics.micros(accepted));
+        if (waitForApplied(proposalId.slot)) {
+          metrics.propose.record(PaxosMetrics.micros(start));
+          return "SUCCESS";
+        }
+        return "FAILURE: Slot " + proposalId.slot + " decided but not yet applied";
       }
       return "FAILURE: Consensus not reached";
     } catch (Exception e) {
@@ -127,26 +845,220 @@ public class Server extends UnicastRemoteObject implements KeyValueRPC {
     }
   }
 
-  private void executeCommand(String command) {
-    String[] parts = command.split(" ");
-    if (parts[0].equals("PUT")) {
-      store.put(parts[1], parts[2]);
-    } else if (parts[0].equals("DELETE")) {
-      store.remove(parts[1]);
+  public long getFirstUnappliedSlot() {
+    synchronized (applyLock) {
+      return lastApplied + 1;
+    }
+  }
+
+  // Apply every decided slot that directly follows the last applied one
+  private void applyDecided() {
+    long reconfiguredAt = -1;
+    synchronized (applyLock) {
+      byte[] command;
+      while ((command = learner.getDecision(lastApplied + 1)) != null) {
+        long start = Clock.nanoTime();
+        if (applyTo(store, command)) {
+          reconfiguredAt = lastApplied + 1;
+          membership = Membership.decode(store.get(Membership.STORE_KEY));
+        }
+        metrics.apply.record(PaxosMetrics.micros(start));
+        metrics.slotsApplied.increment();
+        lastApplied++;
+        appliedLog.put(lastApplied, command);
+        if (wal != null) {
+          try {
+            // not synced: a decision lost in a crash can be learned again from the acceptors
+            wal.append(WriteAheadLog.DECIDE, WriteAheadLog.decide(lastApplied, command));
+          } catch (IOException e) {
+            logger.warning("Failed to log decision for slot " + lastApplied + ": " + e.getMessage());
+          }
+        }
+        learner.release(lastApplied);
+      }
+      Clock.signalAll(applyLock);
+      if (!snapshotting && lastApplied - lastSnapshot >= SNAPSHOT_INTERVAL) {
+        snapshotting = true;
+        snapshotExecutor.execute(this::checkpoint);
+      }
+    }
+    if (reconfiguredAt != -1) {
+      membershipApplied(reconfiguredAt);
     }
   }
 
+  // Outside the apply lock: the proposer takes its own lock and then the apply lock
+  private void membershipApplied(long slot) {
+    logger.info("Membership changed in slot " + slot + ": " + membership);
+    metrics.membershipChanges.increment();
+    proposer.membershipChanged(slot);
+    refreshPeers();
+    membershipExecutor.execute(this::connectToMembers);
+  }
+
+  // The value decided in a slot, once this replica has applied it; null if that takes longer than
+  // timeoutMs or the slot has been compacted into a snapshot
+  public byte[] awaitDecidedValue(long slot, long timeoutMs) throws InterruptedException {
+    return waitForApplied(slot, timeoutMs) ? appliedLog.get(slot) : null;
+  }
+
+  private boolean waitForApplied(long slot) throws InterruptedException {
+    return waitForApplied(slot, APPLY_TIMEOUT_MS);
+  }
+
+  private boolean waitForApplied(long slot, long timeoutMs) throws InterruptedException {
+    long deadline = Clock.currentTimeMillis() + timeoutMs;
+    synchronized (applyLock) {
+      while (lastApplied < slot) {
+        long remaining = deadline - Clock.currentTimeMillis();
+        if (remaining <= 0) {
+          return false;
+        }
+        Clock.await(applyLock, remaining);
+      }
+      return true;
+    }
+  }
+
+  // A log value may carry a whole batch; its commands are applied together, in order. Returns whether
+  // it changed the membership, which is an idempotent update of the set kept under Membership.STORE_KEY.
+  static boolean applyTo(StorageEngine target, byte[] value) {
+    boolean reconfigured = false;
+    for (Command command : PaxosCodec.decodeCommands(value)) {
+      if (command.op == Command.PUT) {
+        target.put(command.key, command.value);
+      } else if (command.op == Command.DELETE) {
+        target.remove(command.key);
+      } else if (command.op == Command.ADD_MEMBER || command.op == Command.REMOVE_MEMBER) {
+        Membership current = Membership.decode(target.get(Membership.STORE_KEY));
+        Membership changed = command.op == Command.ADD_MEMBER ? current.with(command.key) : current.without(command.key);
+        target.put(Membership.STORE_KEY, changed.encode());
+        reconfigured = true;
+      }
+    }
+    return reconfigured;
+  }
+
+  // Forwards a value that lost to another proposer's ballot to that ballot's owner; null if the owner
+  // could not be reached, so the value can be proposed here
+  private String handOff(byte[] value, long ballot) {
+    int owner = peerOwning(ballot);
+    KeyValueRPC leader = owner == -1 ? null : peersByOwner.get(owner);
+    if (leader == null) {
+      return null;
+    }
+    try {
+      metrics.handoffs.increment();
+      return leader.forward(value);
+    } catch (RemoteException e) {
+      if (!neverDelivered(e)) {
+        return "ERROR: handoff to server " + owner + " failed, the write may still take effect: " + e.getMessage();
+      }
+      logger.warning("Handoff to server " + owner + " failed, proposing here: " + e.getMessage());
+      return null;
+    }
+  }
+
+  // Slots fetched by CatchUp from a peer that has already applied them
+  public void applyCaughtUp(Map<Long, byte[]> entries) {
+    for (Map.Entry<Long, byte[]> entry : entries.entrySet()) {
+      learner.learnDecided(entry.getKey(), entry.getValue());
+    }
+    applyDecided();
+  }
+
+  // Replaces the store with one copied from a peer that had applied through the given slot
+  public void installSnapshot(StorageEngine copy, long throughSlot) {
+    boolean reconfigured;
+    synchronized (applyLock) {
+      if (throughSlot <= lastApplied) {
+        return; // caught up some other way in the meantime
+      }
+      store = copy;
+      lastApplied = throughSlot;
+      compactedThrough = throughSlot;
+      appliedLog.clear();
+      learner.releaseThrough(throughSlot);
+      Membership installed = Membership.decode(copy.get(Membership.STORE_KEY));
+      reconfigured = !installed.members().equals(membership.members());
+      membership = installed;
+    }
+    if (reconfigured) {
+      membershipApplied(throughSlot);
+    }
+    applyDecided(); // anything learned past the snapshot while it was in transfer
+    if (wal != null) {
+      // the log's decisions no longer lead up to this store, so it must be on disk before a restart
+      try {
+        snapshotting = true;
+        Clock.get(CompletableFuture.runAsync(this::checkpoint, snapshotExecutor), 0);
+      } catch (Exception e) {
+        logger.log(Level.SEVERE, "Failed to snapshot installed state", e);
+      }
+    }
+  }
+
+  public void requestCatchUp() {
+    catchUp.request();
+  }
+
   @Override
-  public String prepare(long proposalNumber) throws RemoteException {
-    CompletableFuture<String> future = CompletableFuture.supplyAsync(() -> {
-      return acceptor.prepare(proposalNumber);
-    });
+  public byte[] fetchLog(long fromSlot, int maxEntries) throws RemoteException {
+    long applied = getFirstUnappliedSlot() - 1;
+    if (fromSlot <= compactedThrough) {
+      return PaxosCodec.compacted(applied);
+    }
+    Map<Long, byte[]> entries = new LinkedHashMap<>();
+    long bytes = 0;
+    for (Map.Entry<Long, byte[]> entry : appliedLog.tailMap(fromSlot, true).entrySet()) {
+      if (entries.size() >= maxEntries || entry.getKey() != fromSlot + entries.size()) {
+        break;
+      }
+      entries.put(entry.getKey(), entry.getValue());
+      bytes += entry.getValue().length;
+    }
+    if (maxEntries > 0 && entries.isEmpty() && fromSlot <= applied) {
+      return PaxosCodec.compacted(applied); // compacted between the check and the read
+    }
+    throttle(bytes);
+    return PaxosCodec.encodeLogEntries(applied, entries);
+  }
+
+  @Override
+  public ScanPage fetchSnapshot(String continuationToken, int maxEntries) throws RemoteException {
+    ScanPage page = scan("", continuationToken, maxEntries, true);
+    long bytes = 0;
+    for (Map.Entry<String, String> entry : page.getEntries().entrySet()) {
+      bytes += entry.getKey().length() + entry.getValue().length();
+    }
+    throttle(bytes);
+    return page;
+  }
 
+  // Catch-up replies wait on their own token bucket, so a recovering replica cannot crowd out consensus
+  private void throttle(long bytes) throws RemoteException {
     try {
-      return future.get(PREPARE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-    } catch (TimeoutException e) {
-      logger.warning("Prepare request timed out for proposal: " + proposalNumber);
-      return "TIMEOUT";
+      catchUpLimiter.acquire(bytes);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted while throttling catch-up");
+    }
+  }
+
+  @Override
+  public byte[] prepare(long proposalNumber, long fromSlot) throws RemoteException {
+    // Runs on the caller's thread: the acceptor never blocks on anything but its own fsync, and the
+    // proposer already gives up on replies slower than its RPC deadline
+    heardFromOwner(proposalNumber);
+    try {
+      byte[] response = acceptor.prepare(proposalNumber, fromSlot);
+      if (PaxosCodec.status(response) == PaxosCodec.PROMISE) {
+        metrics.promisesGiven.increment();
+        proposer.observeBallot(proposalNumber);
+      } else {
+        metrics.rejectsGiven.increment();
+      }
+      return response;
     } catch (Exception e) {
       logger.severe("Error in prepare request: " + e.getMessage());
       throw new RemoteException("Error in prepare request", e);
@@ -154,39 +1066,108 @@ public class Server extends UnicastRemoteObject implements KeyValueRPC {
   }
 
   @Override
-  public String accept(long proposalNumber, String value) throws RemoteException {
-    return acceptor.accept(proposalNumber, value);
+  public byte[] accept(long proposalNumber, long slot, byte[] value) throws RemoteException {
+    heardFromOwner(proposalNumber);
+    byte[] response;
+    try {
+      response = acceptor.accept(proposalNumber, slot, value);
+    } catch (UncheckedIOException e) {
+      throw new RemoteException("Failed to persist accept", e);
+    }
+    if (PaxosCodec.status(response) == PaxosCodec.ACCEPTED) {
+      metrics.acceptsGiven.increment();
+      proposer.observeBallot(proposalNumber);
+    } else {
+      metrics.rejectsGiven.increment();
+    }
+    return response;
   }
 
   @Override
-  public void learn(long proposalNumber, String value) throws RemoteException {
-    learner.learn(proposalNumber, value);
+  public void learn(long slot, byte[] value) throws RemoteException {
+    metrics.learnMessages.increment();
+    learner.learn(slot, value);
+    applyDecided();
   }
 
+  // Creates the server and makes it reachable to clients (RMI) and to peers (the configured transport);
+  // start() then connects it to the other replicas
+  public static Server launch(int port, String[] otherServerAddresses, int[] otherServerPorts, int serverId) throws Exception {
+    return launch(port, otherServerAddresses, otherServerPorts, serverId, 0, 1);
+  }
+
+  public static Server launch(int port, String[] otherServerAddresses, int[] otherServerPorts, int serverId, int shard,
+      int shardCount) throws Exception {
+    return launch(port, otherServerAddresses, otherServerPorts, serverId, shard, shardCount, JOIN);
+  }
+
+  public static Server launch(int port, String[] otherServerAddresses, int[] otherServerPorts, int serverId, int shard,
+      int shardCount, boolean join) throws Exception {
+    Server server = new Server(port, otherServerAddresses, otherServerPorts, serverId, shard, shardCount, join);
+    server.recover();
+    server.registry = LocateRegistry.createRegistry(port);
+    server.registry.bind("KeyValueRPC", server);
+    server.transport.listen(server, port);
+    server.metrics.register(shard, serverId);
+    logger.info("Server bound to registry on port " + port);
+    return server;
+  }
+
+  public void shutdown() {
+    metrics.unregister();
+    batcher.shutdown();
+    proposer.shutdown();
+    transport.shutdown();
+    catchUp.shutdown();
+    failureDetector.shutdown();
+    snapshotExecutor.shutdownNow();
+    membershipExecutor.shutdownNow();
+    if (wal != null) {
+      wal.close();
+    }
+    try {
+      UnicastRemoteObject.unexportObject(this, true);
+      UnicastRemoteObject.unexportObject(registry, true);
+    } catch (Exception e) {
+      logger.warning("Failed to unexport server: " + e.getMessage());
+    }
+  }
+
+  // Each peer is a port on localhost or host:port. A server joining a running group is started with
+  // -Dpaxos.join=true and the group's current members, then added with addMember from any member.
   public static void main(String args[]) {
-    if (args.length != 6) {
-      System.out.println("Usage: java Server <port> <otherPort1> <otherPort2> <otherPort3> <otherPort4> <serverId>");
+    if (args.length < 2) {
+      System.out.println("Usage: java [-Dpaxos.shards=N] [-Dpaxos.quorum.phase2=K] [-Dpaxos.join=true] Server <port> [<peer> ...] <serverId>");
       System.exit(1);
     }
 
     int port = Integer.parseInt(args[0]);
-    String[] otherServerAddresses = new String[4];
-    int[] otherServerPorts = new int[4];
-    for (int i = 0; i < 4; i++) {
-      otherServerAddresses[i] = "localhost";
-      otherServerPorts[i] = Integer.parseInt(args[i+1]);
+    int peerCount = args.length - 2;
+    String[] otherServerAddresses = new String[peerCount];
+    int[] otherServerPorts = new int[peerCount];
+    for (int i = 0; i < peerCount; i++) {
+      String peer = args[i + 1];
+      int colon = peer.lastIndexOf(':');
+      otherServerAddresses[i] = colon == -1 ? "localhost" : peer.substring(0, colon);
+      otherServerPorts[i] = Integer.parseInt(peer.substring(colon + 1));
     }
-    int serverId = Integer.parseInt(args[5]);
+    int serverId = Integer.parseInt(args[args.length - 1]);
 
     try {
       Thread.sleep(1000);
-      Server server = new Server(port, otherServerAddresses, otherServerPorts, serverId);
-      Registry registry = LocateRegistry.createRegistry(port);
-      registry.bind("KeyValueRPC", server);
-      logger.info("Server bound to registry on port " + port);
-
-      server.start();
-      logger.info("Server fully started and connected on port " + port);
+      // one replica per shard, each its own Paxos group on its own port (ShardMap.portOf)
+      List<Server> shards = new ArrayList<>();
+      for (int shard = 0; shard < ShardMap.SHARDS; shard++) {
+        int[] shardPeerPorts = new int[otherServerPorts.length];
+        for (int i = 0; i < otherServerPorts.length; i++) {
+          shardPeerPorts[i] = ShardMap.portOf(otherServerPorts[i], shard);
+        }
+        shards.add(launch(ShardMap.portOf(port, shard), otherServerAddresses, shardPeerPorts, serverId, shard, ShardMap.SHARDS));
+      }
+      for (Server server : shards) {
+        server.start();
+      }
+      logger.info("Server fully started and connected on port " + port + " with " + ShardMap.SHARDS + " shard(s)");
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
       logger.log(Level.SEVERE, "Interrupted while waiting to start server", e);
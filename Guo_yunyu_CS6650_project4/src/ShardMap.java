@@ -0,0 +1,50 @@
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+
+// Hash partitioning of the keyspace into paxos.shards independent Paxos groups, each with its own
+// acceptor state, log and store. Every replica node runs one Server per shard; shard k of the node
+// whose base port is p listens on p + k * paxos.shard.portStride.
+public class ShardMap {
+  public static final int SHARDS = Integer.getInteger("paxos.shards", 1);
+  public static final int PORT_STRIDE = Integer.getInteger("paxos.shard.portStride", 10);
+
+  // [shard][replica]
+  private final KeyValueRPC[][] replicas;
+
+  public ShardMap(KeyValueRPC[][] replicas) {
+    this.replicas = replicas;
+  }
+
+  public static int shardOf(String key, int shards) {
+    int h = key.hashCode();
+    return Math.floorMod(h ^ (h >>> 16), shards); // String.hashCode is fixed by the spec, so every JVM agrees
+  }
+
+  public static int portOf(int basePort, int shard) {
+    return basePort + shard * PORT_STRIDE;
+  }
+
+  // RMI stubs for every shard on every node
+  public static ShardMap connect(String[] hosts, int[] basePorts, int shards) throws Exception {
+    KeyValueRPC[][] replicas = new KeyValueRPC[shards][hosts.length];
+    for (int shard = 0; shard < shards; shard++) {
+      for (int i = 0; i < hosts.length; i++) {
+        Registry registry = LocateRegistry.getRegistry(hosts[i], portOf(basePorts[i], shard));
+        replicas[shard][i] = (KeyValueRPC) registry.lookup("KeyValueRPC");
+      }
+    }
+    return new ShardMap(replicas);
+  }
+
+  public int shardCount() {
+    return replicas.length;
+  }
+
+  public KeyValueRPC[] replicas(int shard) {
+    return replicas[shard];
+  }
+
+  public KeyValueRPC[] replicasFor(String key) {
+    return replicas[shardOf(key, replicas.length)];
+  }
+}
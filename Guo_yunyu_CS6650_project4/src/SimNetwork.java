@@ -0,0 +1,231 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Simulated network for running a replica group in one JVM: -Dpaxos.transport=sim, see ClusterSimulator.
+// A peer call is a direct call on the target server, made on the caller's thread. Each leg of it (request
+// and reply) first goes through deliver(), which delays it, holds it back so later messages overtake it,
+// or drops it, as drawn from a random stream per link seeded from one seed, and drops it outright across
+// a partition. A dropped leg looks like a timeout: the caller waits dropTimeoutMs and gets a
+// RemoteException, and if it was the reply the call has already taken effect at the target.
+// Delays are Clock sleeps on the caller's thread: real sleeps, or under a DeterministicScheduler
+// virtual ones, in which case the seed fixes the faults and the order they are drawn in alike.
+public class SimNetwork {
+  private static SimNetwork installed;
+
+  private final long seed;
+  private final Map<Integer, KeyValueRPC> endpoints = new ConcurrentHashMap<>();
+  private final Map<Long, SplittableRandom> links = new ConcurrentHashMap<>();
+  // port -> side of the current partition; ports on different sides cannot reach each other
+  private volatile Map<Integer, Integer> sides = Collections.emptyMap();
+
+  private volatile long delayMs = Long.getLong("paxos.sim.delayMs", 1);
+  private volatile long jitterMs = Long.getLong("paxos.sim.jitterMs", 2);
+  private volatile double dropRate = Double.parseDouble(System.getProperty("paxos.sim.dropRate", "0"));
+  private volatile double reorderRate = Double.parseDouble(System.getProperty("paxos.sim.reorderRate", "0"));
+  private volatile long reorderDelayMs = Long.getLong("paxos.sim.reorderDelayMs", 20);
+  private volatile long dropTimeoutMs = Long.getLong("paxos.sim.dropTimeoutMs", 500);
+
+  final LongAdder messages = new LongAdder();
+  final LongAdder dropped = new LongAdder();
+  final LongAdder reordered = new LongAdder();
+  final LongAdder partitioned = new LongAdder();
+
+  public SimNetwork(long seed) {
+    this.seed = seed;
+  }
+
+  // The network servers launched with -Dpaxos.transport=sim connect through; one seeded by
+  // -Dpaxos.sim.seed unless a simulator installed its own first
+  static synchronized SimNetwork installed() {
+    if (installed == null) {
+      installed = new SimNetwork(Long.getLong("paxos.sim.seed", 1));
+    }
+    return installed;
+  }
+
+  static synchronized void install(SimNetwork network) {
+    installed = network;
+  }
+
+  PeerTransport transport() {
+    return new SimTransport(this);
+  }
+
+  public void configure(long delayMs, long jitterMs, double dropRate, double reorderRate) {
+    this.delayMs = delayMs;
+    this.jitterMs = jitterMs;
+    this.dropRate = dropRate;
+    this.reorderRate = reorderRate;
+  }
+
+  // Splits the ports into groups that only reach their own group; ports in none of them form one more
+  @SafeVarargs
+  public final void partition(Set<Integer>... groups) {
+    Map<Integer, Integer> assigned = new HashMap<>();
+    for (int side = 0; side < groups.length; side++) {
+      for (int port : groups[side]) {
+        assigned.put(port, side + 1);
+      }
+    }
+    sides = assigned;
+  }
+
+  public void heal() {
+    sides = Collections.emptyMap();
+  }
+
+  public String describe() {
+    return String.format("%d messages, %d dropped, %d reordered, %d lost to partitions", messages.sum(),
+        dropped.sum(), reordered.sum(), partitioned.sum());
+  }
+
+  void listen(int port, KeyValueRPC local) {
+    endpoints.put(port, local);
+  }
+
+  void unlisten(int port, KeyValueRPC local) {
+    endpoints.remove(port, local);
+  }
+
+  // One message from port `from` to port `to`: returns once it has arrived, or throws if it never will
+  void deliver(int from, int to) throws RemoteException {
+    messages.increment();
+    if (!sides.getOrDefault(from, 0).equals(sides.getOrDefault(to, 0))) {
+      partitioned.increment();
+      lose("partitioned from " + to);
+    }
+    long delay;
+    boolean drop;
+    boolean holdBack;
+    SplittableRandom random = links.computeIfAbsent(((long) from << 32) | to,
+        link -> new SplittableRandom(seed * 1000003 + link));
+    synchronized (random) {
+      drop = random.nextDouble() < dropRate;
+      holdBack = random.nextDouble() < reorderRate;
+      delay = delayMs + (jitterMs > 0 ? random.nextLong(jitterMs + 1) : 0);
+    }
+    if (drop) {
+      dropped.increment();
+      lose("message to " + to + " dropped");
+    }
+    if (holdBack) {
+      reordered.increment();
+      delay += reorderDelayMs;
+    }
+    sleep(delay);
+  }
+
+  private void lose(String what) throws RemoteException {
+    sleep(dropTimeoutMs);
+    throw new RemoteException("Timed out: " + what);
+  }
+
+  private static void sleep(long ms) throws RemoteException {
+    if (ms <= 0) {
+      return;
+    }
+    try {
+      Clock.sleep(ms);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted in the simulated network");
+    }
+  }
+
+  KeyValueRPC endpoint(int port) throws RemoteException {
+    KeyValueRPC target = endpoints.get(port);
+    if (target == null) {
+      throw new ConnectException("Connection refused to simulated port " + port);
+    }
+    return target;
+  }
+}
+
+// One server's end of the simulated network. Connections look up their target on every call, so like
+// the TCP transport they reach a restarted peer without reconnecting.
+class SimTransport implements PeerTransport {
+  private final SimNetwork network;
+  private volatile int localPort;
+  private volatile KeyValueRPC local;
+
+  SimTransport(SimNetwork network) {
+    this.network = network;
+  }
+
+  @Override
+  public KeyValueRPC connect(String host, int port) throws Exception {
+    network.endpoint(port); // refused like a real connect while nothing listens there
+    int from = localPort;
+    InvocationHandler handler = (proxy, method, args) -> {
+      if (method.getDeclaringClass() == Object.class) {
+        return invokeObjectMethod(proxy, method, args, port);
+      }
+      network.deliver(from, port);
+      Object result;
+      try {
+        result = method.invoke(network.endpoint(port), copy(args));
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+      network.deliver(port, from);
+      return result instanceof byte[] ? ((byte[]) result).clone() : result;
+    };
+    return (KeyValueRPC) Proxy.newProxyInstance(KeyValueRPC.class.getClassLoader(),
+        new Class<?>[] {KeyValueRPC.class}, handler);
+  }
+
+  // Byte arrays are copied as RMI or TCP would, so neither side sees the other reuse a buffer
+  private static Object[] copy(Object[] args) {
+    if (args == null) {
+      return null;
+    }
+    Object[] copied = args.clone();
+    for (int i = 0; i < copied.length; i++) {
+      if (copied[i] instanceof byte[]) {
+        copied[i] = ((byte[]) copied[i]).clone();
+      }
+    }
+    return copied;
+  }
+
+  private static Object invokeObjectMethod(Object proxy, Method method, Object[] args, int port) {
+    switch (method.getName()) {
+      case "equals":
+        return proxy == args[0];
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      default:
+        return "SimConnection[" + port + "]";
+    }
+  }
+
+  @Override
+  public void listen(KeyValueRPC local, int port) {
+    this.local = local;
+    this.localPort = port;
+    network.listen(port, local);
+  }
+
+  @Override
+  public void disconnect(KeyValueRPC peer) {
+    // nothing is held open
+  }
+
+  @Override
+  public void shutdown() {
+    if (local != null) {
+      network.unlisten(localPort, local);
+    }
+  }
+}
@@ -0,0 +1,443 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Client library over a ShardMap's stubs, which are looked up once and reused for every request.
+// Writes and linearizable reads go straight to the leader of the key's shard, learned from the replicas'
+// getLeaderId() hints and cached for paxos.client.leaderTtlMs, instead of to a random replica that would
+// have to forward them. WRONG_SHARD replies redirect to the shard they name. A failed replica is
+// dropped from the cache and the request retried elsewhere with jittered exponential backoff.
+// Local reads go to a random replica; with paxos.client.hedge=true a second replica is asked if the
+// first has not answered within the p95 of recent read latencies, and the first reply wins.
+// Multi-key operations are split by shard and are atomic within each shard, not across shards. The
+// *Async variants run on a pool of paxos.client.asyncThreads threads, so a loader can keep many
+// requests in flight; the servers' batchers fold concurrent writes into shared log slots.
+public class SmartClient {
+  private static final long LEADER_TTL_MS = Long.getLong("paxos.client.leaderTtlMs", 5000);
+  private static final int MAX_ATTEMPTS = Integer.getInteger("paxos.client.attempts", 5);
+  private static final long BACKOFF_MS = Long.getLong("paxos.client.backoffMs", 50);
+  private static final boolean HEDGE = Boolean.parseBoolean(System.getProperty("paxos.client.hedge", "false"));
+  private static final int ASYNC_THREADS = Integer.getInteger("paxos.client.asyncThreads", 64);
+
+  interface Call<T> {
+    T call(KeyValueRPC replica) throws RemoteException;
+  }
+
+  interface Request<T> {
+    T run() throws RemoteException;
+  }
+
+  private final ShardMap shards;
+  private final boolean hedge;
+  // per shard: index of the cached leader in shards.replicas(shard), or -1, and when to re-check it
+  private final AtomicIntegerArray leaders;
+  private final AtomicLongArray leaderExpiry;
+  // per shard: server id of each replica, -1 until it has answered getServerId()
+  private final int[][] serverIds;
+
+  private final LatencyTracker readLatency = new LatencyTracker();
+  private final ExecutorService hedgeExecutor;
+  private final ExecutorService asyncExecutor;
+  private final AtomicLong leaderLookups = new AtomicLong();
+  private final AtomicLong redirects = new AtomicLong();
+  private final AtomicLong failovers = new AtomicLong();
+  private final AtomicLong hedgedReads = new AtomicLong();
+
+  public SmartClient(ShardMap shards) {
+    this(shards, HEDGE);
+  }
+
+  public SmartClient(ShardMap shards, boolean hedge) {
+    this.shards = shards;
+    this.hedge = hedge;
+    leaders = new AtomicIntegerArray(shards.shardCount());
+    leaderExpiry = new AtomicLongArray(shards.shardCount());
+    serverIds = new int[shards.shardCount()][];
+    for (int shard = 0; shard < shards.shardCount(); shard++) {
+      leaders.set(shard, -1);
+      serverIds[shard] = new int[shards.replicas(shard).length];
+      Arrays.fill(serverIds[shard], -1);
+    }
+    hedgeExecutor = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "hedged-read");
+      thread.setDaemon(true);
+      return thread;
+    });
+    asyncExecutor = Executors.newFixedThreadPool(ASYNC_THREADS, runnable -> {
+      Thread thread = new Thread(runnable, "async-client");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public String put(String key, String value) throws RemoteException {
+    return toLeader(shardOf(key), key, true, replica -> replica.put(key, value));
+  }
+
+  public String delete(String key) throws RemoteException {
+    return toLeader(shardOf(key), key, true, replica -> replica.delete(key));
+  }
+
+  // "SUCCESS" if every shard applied its part, otherwise the first failure
+  public String multiPut(Map<String, String> entries) throws RemoteException {
+    Map<Integer, Map<String, String>> byShard = new HashMap<>();
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      byShard.computeIfAbsent(shardOf(entry.getKey()), shard -> new HashMap<>()).put(entry.getKey(), entry.getValue());
+    }
+    String result = "SUCCESS";
+    for (Map.Entry<Integer, Map<String, String>> part : byShard.entrySet()) {
+      HashMap<String, String> values = new HashMap<>(part.getValue());
+      String reply = toLeader(part.getKey(), values.size() + " keys", false, replica -> replica.multiPut(values));
+      if (!reply.startsWith("SUCCESS") && result.startsWith("SUCCESS")) {
+        result = reply;
+      }
+    }
+    return result;
+  }
+
+  public String multiDelete(List<String> keys) throws RemoteException {
+    String result = "SUCCESS";
+    for (Map.Entry<Integer, List<String>> part : groupByShard(keys).entrySet()) {
+      List<String> shardKeys = part.getValue();
+      String reply = toLeader(part.getKey(), shardKeys.size() + " keys", false, replica -> replica.multiDelete(shardKeys));
+      if (!reply.startsWith("SUCCESS") && result.startsWith("SUCCESS")) {
+        result = reply;
+      }
+    }
+    return result;
+  }
+
+  // Values of the keys that exist; each shard's part is read at a single point in its log
+  public Map<String, String> multiGet(List<String> keys, String readMode) throws RemoteException {
+    Map<String, String> values = new HashMap<>();
+    for (Map.Entry<Integer, List<String>> part : groupByShard(keys).entrySet()) {
+      int shard = part.getKey();
+      List<String> shardKeys = part.getValue();
+      if (Server.READ_LINEARIZABLE.equalsIgnoreCase(readMode)) {
+        values.putAll(toLeader(shard, shardKeys.size() + " keys", false, replica -> replica.multiGet(shardKeys, readMode)));
+      } else {
+        values.putAll(anyReplica(shard, replica -> replica.multiGet(shardKeys, readMode)));
+      }
+    }
+    return values;
+  }
+
+  // One page of one shard's keys; the token is a key, so the next page may come from another replica
+  public ScanPage scan(int shard, String prefix, String token, int limit) throws RemoteException {
+    return anyReplica(shard, replica -> replica.scan(prefix, token, limit));
+  }
+
+  public String getMembers(int shard) throws RemoteException {
+    return anyReplica(shard, KeyValueRPC::getMembers);
+  }
+
+  public String changeMembership(int shard, boolean add, String member) throws RemoteException {
+    return toLeader(shard, member, false, replica -> add ? replica.addMember(member) : replica.removeMember(member));
+  }
+
+  public CompletableFuture<String> putAsync(String key, String value) {
+    return async(() -> put(key, value));
+  }
+
+  public CompletableFuture<String> getAsync(String key, String readMode) {
+    return async(() -> get(key, readMode));
+  }
+
+  public CompletableFuture<String> deleteAsync(String key) {
+    return async(() -> delete(key));
+  }
+
+  public CompletableFuture<String> multiPutAsync(Map<String, String> entries) {
+    return async(() -> multiPut(entries));
+  }
+
+  public CompletableFuture<Map<String, String>> multiGetAsync(List<String> keys, String readMode) {
+    return async(() -> multiGet(keys, readMode));
+  }
+
+  public CompletableFuture<String> multiDeleteAsync(List<String> keys) {
+    return async(() -> multiDelete(keys));
+  }
+
+  // Completes exceptionally with the RemoteException if the request fails on every replica
+  private <T> CompletableFuture<T> async(Request<T> request) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return request.run();
+      } catch (RemoteException e) {
+        throw new CompletionException(e);
+      }
+    }, asyncExecutor);
+  }
+
+  private int shardOf(String key) {
+    return ShardMap.shardOf(key, shards.shardCount());
+  }
+
+  private Map<Integer, List<String>> groupByShard(List<String> keys) {
+    Map<Integer, List<String>> byShard = new HashMap<>();
+    for (String key : keys) {
+      byShard.computeIfAbsent(shardOf(key), shard -> new ArrayList<>()).add(key);
+    }
+    return byShard;
+  }
+
+  public String get(String key) throws RemoteException {
+    return get(key, Server.READ_LOCAL);
+  }
+
+  // Linearizable reads are served by the leader without the extra hop to fetch its read index
+  public String get(String key, String readMode) throws RemoteException {
+    if (Server.READ_LINEARIZABLE.equalsIgnoreCase(readMode)) {
+      return toLeader(shardOf(key), key, true, replica -> replica.get(key, readMode));
+    }
+    int shard = shardOf(key);
+    RemoteException failure = null;
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+      try {
+        String reply = hedge ? hedgedGet(shard, key) : timedGet(shards.replicas(shard)[randomReplica(shard, -1)], key);
+        int owner = redirect(reply);
+        if (owner < 0) {
+          return reply;
+        }
+        shard = owner;
+      } catch (RemoteException e) {
+        failure = e;
+        failovers.incrementAndGet();
+      }
+    }
+    throw new RemoteException("No replica of shard " + shard + " answered GET " + key, failure);
+  }
+
+  // A multi-key request is not redirected as a whole, since its keys may belong to several shards
+  private <T> T toLeader(int shard, String what, boolean redirectable, Call<T> call) throws RemoteException {
+    int failed = -1;
+    RemoteException failure = null;
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+      if (failed >= 0) {
+        backoff(attempt);
+      }
+      int target = leader(shard, failed);
+      try {
+        T reply = call.call(shards.replicas(shard)[target]);
+        int owner = redirectable ? redirect((String) reply) : -1;
+        if (owner < 0) {
+          return reply;
+        }
+        shard = owner;
+        failed = -1;
+      } catch (RemoteException e) {
+        failure = e;
+        failed = target;
+        failovers.incrementAndGet();
+        leaders.compareAndSet(shard, target, -1);
+      }
+    }
+    throw new RemoteException("No replica of shard " + shard + " accepted the request for " + what, failure);
+  }
+
+  private <T> T anyReplica(int shard, Call<T> call) throws RemoteException {
+    int failed = -1;
+    RemoteException failure = null;
+    for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+      failed = randomReplica(shard, failed);
+      try {
+        return call.call(shards.replicas(shard)[failed]);
+      } catch (RemoteException e) {
+        failure = e;
+        failovers.incrementAndGet();
+      }
+    }
+    throw new RemoteException("No replica of shard " + shard + " answered", failure);
+  }
+
+  // The shard named by a WRONG_SHARD reply, or -1 if the reply is an answer
+  private int redirect(String reply) {
+    if (!reply.startsWith(Server.WRONG_SHARD)) {
+      return -1;
+    }
+    try {
+      int owner = Integer.parseInt(reply.substring(Server.WRONG_SHARD.length()).trim());
+      if (owner >= 0 && owner < shards.shardCount()) {
+        redirects.incrementAndGet();
+        return owner;
+      }
+    } catch (NumberFormatException e) {
+      // fall through and hand the reply back as an error
+    }
+    return -1;
+  }
+
+  // Cached leader of the shard if still fresh; otherwise asks a replica (the old leader first, since it
+  // knows if it still is) and caches its answer. Without a usable hint any replica will do: it forwards
+  // the request to the leader itself.
+  private int leader(int shard, int failed) {
+    int cached = leaders.get(shard);
+    if (cached >= 0 && System.currentTimeMillis() < leaderExpiry.get(shard)) {
+      return cached;
+    }
+    leaderLookups.incrementAndGet();
+    int ask = cached >= 0 && cached != failed ? cached : randomReplica(shard, failed);
+    int found = -1;
+    try {
+      found = indexOf(shard, shards.replicas(shard)[ask].getLeaderId());
+    } catch (RemoteException e) {
+      failed = ask;
+    }
+    if (found < 0 || found == failed) {
+      found = ask == failed ? randomReplica(shard, failed) : ask;
+    }
+    leaders.set(shard, found);
+    leaderExpiry.set(shard, System.currentTimeMillis() + LEADER_TTL_MS);
+    return found;
+  }
+
+  private int indexOf(int shard, int serverId) {
+    if (serverId < 0) {
+      return -1;
+    }
+    KeyValueRPC[] replicas = shards.replicas(shard);
+    for (int i = 0; i < replicas.length; i++) {
+      if (serverIds[shard][i] < 0) {
+        try {
+          serverIds[shard][i] = replicas[i].getServerId();
+        } catch (RemoteException e) {
+          continue; // unreachable for now, asked again next time
+        }
+      }
+      if (serverIds[shard][i] == serverId) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private int randomReplica(int shard, int exclude) {
+    int count = shards.replicas(shard).length;
+    if (exclude < 0 || count == 1) {
+      return ThreadLocalRandom.current().nextInt(count);
+    }
+    return (exclude + 1 + ThreadLocalRandom.current().nextInt(count - 1)) % count;
+  }
+
+  private static void backoff(int attempt) {
+    long ceiling = BACKOFF_MS << Math.min(attempt - 1, 6);
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private String timedGet(KeyValueRPC replica, String key) throws RemoteException {
+    long start = System.nanoTime();
+    String reply = replica.get(key);
+    readLatency.record(System.nanoTime() - start);
+    return reply;
+  }
+
+  private String hedgedGet(int shard, String key) throws RemoteException {
+    KeyValueRPC[] replicas = shards.replicas(shard);
+    int first = randomReplica(shard, -1);
+    CompletableFuture<String> primary = asyncGet(replicas[first], key);
+    try {
+      return primary.get(readLatency.percentileNanos(0.95), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      hedgedReads.incrementAndGet();
+    } catch (ExecutionException e) {
+      // failed fast; the second request is now the only one
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted waiting for GET " + key);
+    }
+    if (replicas.length == 1) {
+      return await(primary);
+    }
+    CompletableFuture<String> backup = asyncGet(replicas[randomReplica(shard, first)], key);
+    // the first successful reply wins; fail only once both requests have
+    CompletableFuture<String> winner = new CompletableFuture<>();
+    primary.thenAccept(winner::complete);
+    backup.thenAccept(winner::complete);
+    CompletableFuture.allOf(primary, backup).whenComplete((ignored, e) -> {
+      if (e != null) {
+        winner.completeExceptionally(e);
+      }
+    });
+    return await(winner);
+  }
+
+  private CompletableFuture<String> asyncGet(KeyValueRPC replica, String key) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return timedGet(replica, key);
+      } catch (RemoteException e) {
+        throw new CompletionException(e);
+      }
+    }, hedgeExecutor);
+  }
+
+  private static String await(CompletableFuture<String> future) throws RemoteException {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RemoteException) {
+        throw (RemoteException) cause;
+      }
+      throw new RemoteException("GET failed", cause);
+    }
+  }
+
+  public String getStats() {
+    return String.format("leader lookups=%d, redirects=%d, failovers=%d, hedged reads=%d, read p95=%.2f ms",
+        leaderLookups.get(), redirects.get(), failovers.get(), hedgedReads.get(),
+        readLatency.percentileNanos(0.95) / 1e6);
+  }
+
+  public void shutdown() {
+    hedgeExecutor.shutdownNow();
+    asyncExecutor.shutdownNow();
+  }
+}
+
+// Latencies of the most recent reads in a ring buffer; percentiles are recomputed every RECOMPUTE_EVERY
+// samples rather than on every request. Until enough samples arrive, paxos.client.hedgeDelayMs is used.
+class LatencyTracker {
+  private static final int WINDOW = 1024;
+  private static final int MIN_SAMPLES = 64;
+  private static final int RECOMPUTE_EVERY = 128;
+  private static final long INITIAL_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("paxos.client.hedgeDelayMs", 10));
+
+  private final long[] samples = new long[WINDOW];
+  private long count = 0;
+  private long[] sorted = null;
+
+  public synchronized void record(long nanos) {
+    samples[(int) (count++ % WINDOW)] = nanos;
+    if (count >= MIN_SAMPLES && (sorted == null || count % RECOMPUTE_EVERY == 0)) {
+      sorted = Arrays.copyOf(samples, (int) Math.min(count, WINDOW));
+      Arrays.sort(sorted);
+    }
+  }
+
+  public synchronized long percentileNanos(double percentile) {
+    if (sorted == null) {
+      return INITIAL_NANOS;
+    }
+    return sorted[Math.min(sorted.length - 1, (int) (percentile * sorted.length))];
+  }
+}
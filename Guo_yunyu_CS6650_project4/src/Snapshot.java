@@ -0,0 +1,87 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+
+// Point-in-time copy of the store together with the last log slot it reflects.
+// Written to snapshot.tmp, fsynced, then renamed over snapshot.bin so a crash never leaves half a snapshot.
+// The directory is fsynced after the rename, so once write() returns the new snapshot survives a crash.
+// Format: [lastApplied][count] then per entry [keyLen][key][valueLen][value]
+public class Snapshot {
+  static final String FILE_NAME = "snapshot.bin";
+
+  final long lastApplied;
+  final StorageEngine store;
+
+  Snapshot(long lastApplied, StorageEngine store) {
+    this.lastApplied = lastApplied;
+    this.store = store;
+  }
+
+  public static void write(File dir, long lastApplied, StorageEngine store) throws IOException {
+    File tmp = new File(dir, FILE_NAME + ".tmp");
+    try (FileOutputStream file = new FileOutputStream(tmp);
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+      out.writeLong(lastApplied);
+      out.writeInt(store.size());
+      Iterator<Map.Entry<String, String>> entries = store.scan("", true);
+      while (entries.hasNext()) {
+        Map.Entry<String, String> entry = entries.next();
+        writeString(out, entry.getKey());
+        writeString(out, entry.getValue());
+      }
+      out.flush();
+      file.getFD().sync();
+    }
+    Files.move(tmp.toPath(), new File(dir, FILE_NAME).toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    syncDirectory(dir);
+  }
+
+  // A rename is only durable once the directory entry is; until then a crash can bring back the old file
+  static void syncDirectory(File dir) throws IOException {
+    try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+      channel.force(true);
+    }
+  }
+
+  // Returns an empty snapshot at slot -1 when none has been written yet
+  public static Snapshot read(File dir) throws IOException {
+    File file = new File(dir, FILE_NAME);
+    if (!file.exists()) {
+      return new Snapshot(-1, StorageEngine.create());
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+      long lastApplied = in.readLong();
+      int count = in.readInt();
+      StorageEngine store = StorageEngine.create();
+      for (int i = 0; i < count; i++) {
+        store.put(readString(in), readString(in));
+      }
+      return new Snapshot(lastApplied, store);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,88 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// What a replica keeps its key/value state in. Writes come from one thread at a time (the server
+// applies decided commands under its apply lock); reads and scans may run concurrently with them.
+// The default is a ConcurrentSkipListMap; -Dpaxos.store.engine=compact keeps entries packed in byte
+// slabs instead, see CompactStore.
+public interface StorageEngine {
+  // null if absent
+  String get(String key);
+
+  void put(String key, String value);
+
+  void remove(String key);
+
+  int size();
+
+  // Entries in key order starting at from; weakly consistent, like an iterator over a concurrent map
+  Iterator<Map.Entry<String, String>> scan(String from, boolean inclusive);
+
+  // A point-in-time copy that later writes to this store do not change
+  StorageEngine snapshot();
+
+  default void putAll(Map<String, String> entries) {
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  static StorageEngine create() {
+    String name = System.getProperty("paxos.store.engine", "skiplist");
+    if (name.equalsIgnoreCase("compact")) {
+      return new CompactStore();
+    }
+    return new SkipListStore();
+  }
+}
+
+class SkipListStore implements StorageEngine {
+  private final ConcurrentSkipListMap<String, String> map;
+  // ConcurrentSkipListMap.size() walks the whole map
+  private final AtomicInteger size;
+
+  SkipListStore() {
+    this(new ConcurrentSkipListMap<>());
+  }
+
+  private SkipListStore(ConcurrentSkipListMap<String, String> map) {
+    this.map = map;
+    this.size = new AtomicInteger(map.size());
+  }
+
+  @Override
+  public String get(String key) {
+    return map.get(key);
+  }
+
+  @Override
+  public void put(String key, String value) {
+    if (map.put(key, value) == null) {
+      size.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void remove(String key) {
+    if (map.remove(key) != null) {
+      size.decrementAndGet();
+    }
+  }
+
+  @Override
+  public int size() {
+    return size.get();
+  }
+
+  @Override
+  public Iterator<Map.Entry<String, String>> scan(String from, boolean inclusive) {
+    return map.tailMap(from, inclusive).entrySet().iterator();
+  }
+
+  @Override
+  public StorageEngine snapshot() {
+    return new SkipListStore(new ConcurrentSkipListMap<>(map));
+  }
+}
@@ -0,0 +1,863 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Replica-to-replica transport over plain TCP. Each frame is [int length][long requestId][byte method or status][payload];
+// one connection per peer carries any number of concurrent requests, matched to replies by request id.
+// Peers listen on their RMI port plus paxos.tcp.portOffset.
+public class TcpTransport implements PeerTransport {
+  private static final Logger logger = Logger.getLogger(TcpTransport.class.getName());
+  static final int PORT_OFFSET = Integer.getInteger("paxos.tcp.portOffset", 1000);
+  static final int REQUEST_TIMEOUT_MS = Integer.getInteger("paxos.tcp.timeoutMs", 5000);
+  static final int CONNECT_TIMEOUT_MS = Integer.getInteger("paxos.tcp.connectTimeoutMs", 1000);
+  static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+  // handler threads for Paxos messages and other calls that return promptly
+  static final int WORKER_THREADS = Integer.getInteger("paxos.tcp.workerThreads", 64);
+  // handler threads for calls that may wait for consensus; four times as many more may queue
+  static final int REQUEST_THREADS = Integer.getInteger("paxos.tcp.requestThreads", Threads.virtual() ? 10000 : 256);
+
+  // request methods
+  static final byte PREPARE = 1;
+  static final byte ACCEPT = 2;
+  static final byte LEARN = 3;
+  static final byte PING = 4;
+  static final byte FORWARD = 5;
+  static final byte GET_SERVER_ID = 6;
+  static final byte PUT = 7;
+  static final byte GET = 8;
+  static final byte DELETE = 9;
+  static final byte GET_ALL = 10;
+  static final byte GET_WITH_MODE = 11;
+  static final byte CONFIRM_LEADER = 12;
+  static final byte READ_INDEX = 13;
+  static final byte SCAN = 14;
+  static final byte FETCH_LOG = 15;
+  static final byte FETCH_SNAPSHOT = 16;
+  static final byte GET_LEADER_ID = 17;
+  static final byte MULTI_PUT = 18;
+  static final byte MULTI_GET = 19;
+  static final byte MULTI_DELETE = 20;
+  static final byte ADD_MEMBER = 21;
+  static final byte REMOVE_MEMBER = 22;
+  static final byte GET_MEMBERS = 23;
+
+  // reply status
+  static final byte OK = 0;
+  static final byte FAILED = 1;
+
+  private final List<TcpPeerClient> clients = new ArrayList<>();
+  private TcpPeerServer server;
+
+  @Override
+  public synchronized KeyValueRPC connect(String host, int port) throws Exception {
+    TcpPeerClient client = new TcpPeerClient(host, port + PORT_OFFSET);
+    client.getServerId(); // fail now, like an RMI lookup would, if the peer is not up
+    clients.add(client);
+    return client;
+  }
+
+  @Override
+  public synchronized void disconnect(KeyValueRPC peer) {
+    if (clients.remove(peer)) {
+      ((TcpPeerClient) peer).close();
+    }
+  }
+
+  @Override
+  public synchronized void listen(KeyValueRPC local, int port) throws IOException {
+    server = new TcpPeerServer(local, port + PORT_OFFSET);
+    server.start();
+    logger.info("TCP transport listening on port " + (port + PORT_OFFSET));
+  }
+
+  @Override
+  public synchronized void shutdown() {
+    if (server != null) {
+      server.shutdown();
+    }
+    for (TcpPeerClient client : clients) {
+      client.close();
+    }
+  }
+
+  // Calls whose handler may wait until a slot is applied
+  static boolean waitsForConsensus(byte method) {
+    switch (method) {
+      case PUT:
+      case DELETE:
+      case MULTI_PUT:
+      case MULTI_GET:
+      case MULTI_DELETE:
+      case FORWARD:
+      case GET_WITH_MODE:
+      case READ_INDEX:
+      case ADD_MEMBER:
+      case REMOVE_MEMBER:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  static byte[] frame(long requestId, byte kind, byte[] payload) {
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1 + payload.length);
+    buffer.putInt(8 + 1 + payload.length);
+    buffer.putLong(requestId);
+    buffer.put(kind);
+    buffer.put(payload);
+    return buffer.array();
+  }
+
+  interface PayloadWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  // An encoding failure reaches the caller as a RemoteException, like any other failed call
+  static byte[] payload(PayloadWriter writer) throws RemoteException {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      writer.write(out);
+      out.flush();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new RemoteException("Failed to encode request", e);
+    }
+  }
+
+  static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static byte[] readBytes(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  // Strings go as length-prefixed UTF-8 like ScanPage entries; writeUTF caps them at 64 KB
+  static void writeString(DataOutputStream out, String string) throws IOException {
+    writeBytes(out, string.getBytes(StandardCharsets.UTF_8));
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    return new String(readBytes(in), StandardCharsets.UTF_8);
+  }
+
+  // [count] then each string
+  static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+    out.writeInt(strings.size());
+    for (String string : strings) {
+      writeString(out, string);
+    }
+  }
+
+  static List<String> readStrings(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    List<String> strings = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      strings.add(readString(in));
+    }
+    return strings;
+  }
+
+  // [count] then each key and value
+  static void writeStringMap(DataOutputStream out, Map<String, String> map) throws IOException {
+    out.writeInt(map.size());
+    for (Map.Entry<String, String> entry : map.entrySet()) {
+      writeString(out, entry.getKey());
+      writeString(out, entry.getValue());
+    }
+  }
+
+  static HashMap<String, String> readStringMap(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    HashMap<String, String> map = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      String key = readString(in);
+      map.put(key, readString(in));
+    }
+    return map;
+  }
+}
+
+// Client side of one peer connection. Connects lazily and reconnects after a failure.
+class TcpPeerClient implements KeyValueRPC {
+  private static final Logger logger = Logger.getLogger(TcpPeerClient.class.getName());
+  private final String host;
+  private final int port;
+  private final AtomicLong nextRequestId = new AtomicLong();
+  private final Map<Long, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+  private final Object writeLock = new Object();
+  // A plain socket rather than a channel: interrupting a caller must not close the shared connection
+  private Socket socket;
+  private volatile boolean closed = false;
+
+  TcpPeerClient(String host, int port) {
+    this.host = host;
+    this.port = port;
+  }
+
+  // Connects outside any lock and with a timeout, so an unreachable peer holds up neither writers on a
+  // working connection nor callers for longer than CONNECT_TIMEOUT_MS
+  private Socket connection() throws IOException {
+    synchronized (this) {
+      if (socket != null && !socket.isClosed()) {
+        return socket;
+      }
+    }
+    Socket newSocket = new Socket();
+    newSocket.setTcpNoDelay(true);
+    newSocket.connect(new InetSocketAddress(host, port), TcpTransport.CONNECT_TIMEOUT_MS);
+    synchronized (this) {
+      if (socket != null && !socket.isClosed()) {
+        newSocket.close(); // another caller connected first
+        return socket;
+      }
+      socket = newSocket;
+    }
+    Threads.factory("tcp-peer-reader-" + host + ":" + port).newThread(() -> readLoop(newSocket)).start();
+    return newSocket;
+  }
+
+  private void readLoop(Socket readSocket) {
+    DataInputStream in;
+    try {
+      in = new DataInputStream(new BufferedInputStream(readSocket.getInputStream()));
+      while (!closed) {
+        int length = in.readInt();
+        long requestId = in.readLong();
+        byte status = in.readByte();
+        byte[] body = new byte[length - 9];
+        in.readFully(body);
+        CompletableFuture<byte[]> future = pending.remove(requestId);
+        if (future == null) {
+          continue; // the caller already gave up on this request
+        }
+        if (status == TcpTransport.OK) {
+          future.complete(body);
+        } else {
+          future.completeExceptionally(new RemoteException(new String(body, StandardCharsets.UTF_8)));
+        }
+      }
+    } catch (IOException e) {
+      if (!closed) {
+        logger.warning("Connection to " + host + ":" + port + " lost: " + e.getMessage());
+      }
+    }
+    failConnection(readSocket);
+  }
+
+  private void failConnection(Socket failed) {
+    synchronized (this) {
+      if (socket == failed) {
+        socket = null;
+      }
+    }
+    try {
+      failed.close();
+    } catch (IOException ignored) {
+    }
+    for (Long requestId : pending.keySet()) {
+      CompletableFuture<byte[]> future = pending.remove(requestId);
+      if (future != null) {
+        future.completeExceptionally(new RemoteException("Connection to " + host + ":" + port + " closed"));
+      }
+    }
+  }
+
+  private byte[] call(byte method, byte[] payload) throws RemoteException {
+    long requestId = nextRequestId.incrementAndGet();
+    CompletableFuture<byte[]> future = new CompletableFuture<>();
+    pending.put(requestId, future);
+    Socket writeSocket = null;
+    try {
+      byte[] frame = TcpTransport.frame(requestId, method, payload);
+      writeSocket = connection();
+      synchronized (writeLock) {
+        OutputStream out = writeSocket.getOutputStream();
+        out.write(frame);
+        out.flush();
+      }
+      return future.get(TcpTransport.REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (IOException e) {
+      if (writeSocket == null) {
+        throw new ConnectException("Failed to reach " + host + ":" + port, e); // nothing was sent
+      }
+      failConnection(writeSocket);
+      throw new RemoteException("Failed to reach " + host + ":" + port, e);
+    } catch (TimeoutException e) {
+      throw new RemoteException("Request to " + host + ":" + port + " timed out");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RemoteException) {
+        throw (RemoteException) e.getCause();
+      }
+      throw new RemoteException("Request to " + host + ":" + port + " failed", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted waiting for " + host + ":" + port);
+    } finally {
+      pending.remove(requestId);
+    }
+  }
+
+  private static DataInputStream reply(byte[] body) {
+    return new DataInputStream(new ByteArrayInputStream(body));
+  }
+
+  private String callForString(byte method, byte[] payload) throws RemoteException {
+    byte[] body = call(method, payload);
+    try {
+      return TcpTransport.readString(reply(body));
+    } catch (IOException e) {
+      throw new RemoteException("Malformed reply", e);
+    }
+  }
+
+  private byte[] callForBytes(byte method, byte[] payload) throws RemoteException {
+    byte[] body = call(method, payload);
+    try {
+      return TcpTransport.readBytes(reply(body));
+    } catch (IOException e) {
+      throw new RemoteException("Malformed reply", e);
+    }
+  }
+
+  @Override
+  public String put(String key, String value) throws RemoteException {
+    return callForString(TcpTransport.PUT, TcpTransport.payload(out -> {
+      TcpTransport.writeString(out, key);
+      TcpTransport.writeString(out, value);
+    }));
+  }
+
+  @Override
+  public String get(String key) throws RemoteException {
+    return callForString(TcpTransport.GET, TcpTransport.payload(out -> TcpTransport.writeString(out, key)));
+  }
+
+  @Override
+  public String get(String key, String readMode) throws RemoteException {
+    return callForString(TcpTransport.GET_WITH_MODE, TcpTransport.payload(out -> {
+      TcpTransport.writeString(out, key);
+      TcpTransport.writeString(out, readMode);
+    }));
+  }
+
+  @Override
+  public String delete(String key) throws RemoteException {
+    return callForString(TcpTransport.DELETE, TcpTransport.payload(out -> TcpTransport.writeString(out, key)));
+  }
+
+  @Override
+  public String multiPut(Map<String, String> entries) throws RemoteException {
+    return callForString(TcpTransport.MULTI_PUT, TcpTransport.payload(out -> TcpTransport.writeStringMap(out, entries)));
+  }
+
+  @Override
+  public Map<String, String> multiGet(List<String> keys, String readMode) throws RemoteException {
+    byte[] reply = call(TcpTransport.MULTI_GET, TcpTransport.payload(out -> {
+      TcpTransport.writeStrings(out, keys);
+      TcpTransport.writeString(out, readMode);
+    }));
+    try {
+      return TcpTransport.readStringMap(reply(reply));
+    } catch (IOException e) {
+      throw new RemoteException("Malformed reply", e);
+    }
+  }
+
+  @Override
+  public String multiDelete(List<String> keys) throws RemoteException {
+    return callForString(TcpTransport.MULTI_DELETE, TcpTransport.payload(out -> TcpTransport.writeStrings(out, keys)));
+  }
+
+  @Override
+  public String getAll() throws RemoteException {
+    return ScanPage.listAll(this); // one bounded frame per page rather than the whole store at once
+  }
+
+  @Override
+  public String addMember(String address) throws RemoteException {
+    return callForString(TcpTransport.ADD_MEMBER, TcpTransport.payload(out -> TcpTransport.writeString(out, address)));
+  }
+
+  @Override
+  public String removeMember(String address) throws RemoteException {
+    return callForString(TcpTransport.REMOVE_MEMBER, TcpTransport.payload(out -> TcpTransport.writeString(out, address)));
+  }
+
+  @Override
+  public String getMembers() throws RemoteException {
+    return callForString(TcpTransport.GET_MEMBERS, new byte[0]);
+  }
+
+  @Override
+  public ScanPage scan(String prefix, String continuationToken, int pageSize) throws RemoteException {
+    byte[] reply = call(TcpTransport.SCAN, TcpTransport.payload(out -> {
+      TcpTransport.writeString(out, prefix == null ? "" : prefix);
+      out.writeBoolean(continuationToken != null);
+      if (continuationToken != null) {
+        TcpTransport.writeString(out, continuationToken);
+      }
+      out.writeInt(pageSize);
+    }));
+    try {
+      return ScanPage.read(reply(reply));
+    } catch (IOException e) {
+      throw new RemoteException("Malformed reply", e);
+    }
+  }
+
+  @Override
+  public byte[] fetchLog(long fromSlot, int maxEntries) throws RemoteException {
+    return callForBytes(TcpTransport.FETCH_LOG, TcpTransport.payload(out -> {
+      out.writeLong(fromSlot);
+      out.writeInt(maxEntries);
+    }));
+  }
+
+  @Override
+  public ScanPage fetchSnapshot(String continuationToken, int maxEntries) throws RemoteException {
+    byte[] reply = call(TcpTransport.FETCH_SNAPSHOT, TcpTransport.payload(out -> {
+      out.writeBoolean(continuationToken != null);
+      if (continuationToken != null) {
+        TcpTransport.writeString(out, continuationToken);
+      }
+      out.writeInt(maxEntries);
+    }));
+    try {
+      return ScanPage.read(reply(reply));
+    } catch (IOException e) {
+      throw new RemoteException("Malformed reply", e);
+    }
+  }
+
+  @Override
+  public byte[] prepare(long proposalNumber, long fromSlot) throws RemoteException {
+    return callForBytes(TcpTransport.PREPARE, TcpTransport.payload(out -> {
+      out.writeLong(proposalNumber);
+      out.writeLong(fromSlot);
+    }));
+  }
+
+  @Override
+  public byte[] accept(long proposalNumber, long slot, byte[] value) throws RemoteException {
+    return callForBytes(TcpTransport.ACCEPT, TcpTransport.payload(out -> {
+      out.writeLong(proposalNumber);
+      out.writeLong(slot);
+      TcpTransport.writeBytes(out, value);
+    }));
+  }
+
+  @Override
+  public void learn(long slot, byte[] value) throws RemoteException {
+    call(TcpTransport.LEARN, TcpTransport.payload(out -> {
+      out.writeLong(slot);
+      TcpTransport.writeBytes(out, value);
+    }));
+  }
+
+  @Override
+  public byte[] confirmLeader(long ballot) throws RemoteException {
+    return callForBytes(TcpTransport.CONFIRM_LEADER, TcpTransport.payload(out -> out.writeLong(ballot)));
+  }
+
+  @Override
+  public long readIndex() throws RemoteException {
+    byte[] body = call(TcpTransport.READ_INDEX, new byte[0]);
+    try {
+      return reply(body).readLong();
+    } catch (IOException e) {
+      throw new RemoteException("Malformed reply", e);
+    }
+  }
+
+  @Override
+  public String ping() throws RemoteException {
+    return callForString(TcpTransport.PING, new byte[0]);
+  }
+
+  @Override
+  public String forward(byte[] command) throws RemoteException {
+    return callForString(TcpTransport.FORWARD, TcpTransport.payload(out -> TcpTransport.writeBytes(out, command)));
+  }
+
+  @Override
+  public int getServerId() throws RemoteException {
+    byte[] body = call(TcpTransport.GET_SERVER_ID, new byte[0]);
+    try {
+      return reply(body).readInt();
+    } catch (IOException e) {
+      throw new RemoteException("Malformed reply", e);
+    }
+  }
+
+  @Override
+  public int getLeaderId() throws RemoteException {
+    byte[] body = call(TcpTransport.GET_LEADER_ID, new byte[0]);
+    try {
+      return reply(body).readInt();
+    } catch (IOException e) {
+      throw new RemoteException("Malformed reply", e);
+    }
+  }
+
+  void close() {
+    closed = true;
+    Socket current;
+    synchronized (this) {
+      current = socket;
+    }
+    if (current != null) {
+      failConnection(current);
+    }
+  }
+}
+
+// Server side: a single selector thread does all socket I/O; requests run on a worker pool so that
+// slow handlers never hold up other requests on the same connection.
+class TcpPeerServer extends Thread {
+  private static final Logger logger = Logger.getLogger(TcpPeerServer.class.getName());
+  private final KeyValueRPC local;
+  private final Selector selector;
+  private final ServerSocketChannel serverChannel;
+  private final Queue<Connection> writeReady = new ConcurrentLinkedQueue<>();
+  // Requests that may wait up to the consensus timeout run apart from Paxos messages, so a full request
+  // pool never holds up the accepts its own requests are waiting for
+  private final ExecutorService workers = Threads.bounded("tcp-peer-worker", TcpTransport.WORKER_THREADS,
+      Integer.MAX_VALUE);
+  private final ExecutorService requests = Threads.bounded("tcp-peer-request", TcpTransport.REQUEST_THREADS,
+      TcpTransport.REQUEST_THREADS * 4);
+  private volatile boolean running = true;
+
+  TcpPeerServer(KeyValueRPC local, int port) throws IOException {
+    super("tcp-peer-selector-" + port);
+    setDaemon(true);
+    this.local = local;
+    this.selector = Selector.open();
+    this.serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(port));
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        selector.select();
+        Connection ready;
+        while ((ready = writeReady.poll()) != null) {
+          if (ready.key.isValid()) {
+            ready.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          }
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          try {
+            if (key.isAcceptable()) {
+              acceptConnection();
+            } else {
+              Connection connection = (Connection) key.attachment();
+              if (key.isReadable()) {
+                connection.read();
+              }
+              if (key.isValid() && key.isWritable()) {
+                connection.write();
+              }
+            }
+          } catch (IOException | CancelledKeyException e) {
+            logger.fine("Closing peer connection: " + e);
+            key.cancel();
+            try {
+              key.channel().close();
+            } catch (IOException ignored) {
+            }
+          }
+        }
+      } catch (ClosedSelectorException e) {
+        break; // shut down
+      } catch (CancelledKeyException e) {
+        continue; // connection closed between the validity check and interestOps
+      } catch (IOException e) {
+        if (running) {
+          logger.log(Level.WARNING, "TCP selector loop failed", e);
+        }
+      }
+    }
+  }
+
+  private void acceptConnection() throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+    key.attach(new Connection(channel, key));
+  }
+
+  void shutdown() {
+    running = false;
+    workers.shutdownNow();
+    requests.shutdownNow();
+    try {
+      // closing the selector alone leaves accepted connections open, and peers would keep writing to them
+      for (SelectionKey key : new ArrayList<>(selector.keys())) {
+        key.channel().close();
+      }
+      selector.close();
+      serverChannel.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  private class Connection {
+    static final int READ_BUFFER_BYTES = 8192;
+
+    final SocketChannel channel;
+    final SelectionKey key;
+    // grown to hold a frame larger than READ_BUFFER_BYTES, and given back once that frame is handled
+    ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    final Queue<ByteBuffer> writes = new ArrayDeque<>();
+
+    Connection(SocketChannel channel, SelectionKey key) {
+      this.channel = channel;
+      this.key = key;
+    }
+
+    void read() throws IOException {
+      if (channel.read(readBuffer) < 0) {
+        throw new IOException("Peer closed connection");
+      }
+      readBuffer.flip();
+      while (readBuffer.remaining() >= 4) {
+        int length = readBuffer.getInt(readBuffer.position());
+        if (length < 9 || length > TcpTransport.MAX_FRAME_BYTES) {
+          throw new IOException("Bad frame length " + length);
+        }
+        if (readBuffer.remaining() < 4 + length) {
+          if (readBuffer.capacity() < 4 + length) {
+            ByteBuffer larger = ByteBuffer.allocate(4 + length);
+            larger.put(readBuffer);
+            readBuffer = larger;
+            return; // already compacted into the larger buffer
+          }
+          break;
+        }
+        readBuffer.getInt();
+        long requestId = readBuffer.getLong();
+        byte method = readBuffer.get();
+        byte[] body = new byte[length - 9];
+        readBuffer.get(body);
+        ExecutorService pool = TcpTransport.waitsForConsensus(method) ? requests : workers;
+        try {
+          pool.execute(() -> respond(requestId, method, body));
+        } catch (RejectedExecutionException e) {
+          send(TcpTransport.frame(requestId, TcpTransport.FAILED,
+              "Server overloaded, too many requests queued; retry later".getBytes(StandardCharsets.UTF_8)));
+        }
+      }
+      if (readBuffer.capacity() > READ_BUFFER_BYTES && !startsLargeFrame()) {
+        ByteBuffer normal = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        normal.put(readBuffer);
+        readBuffer = normal;
+      } else {
+        readBuffer.compact();
+      }
+    }
+
+    // Whether the unread bytes need more than the default buffer: they don't fit in it, or they begin a
+    // frame that doesn't
+    private boolean startsLargeFrame() {
+      if (readBuffer.remaining() > READ_BUFFER_BYTES) {
+        return true;
+      }
+      return readBuffer.remaining() >= 4 && 4 + readBuffer.getInt(readBuffer.position()) > READ_BUFFER_BYTES;
+    }
+
+    void respond(long requestId, byte method, byte[] body) {
+      byte[] response;
+      try {
+        response = TcpTransport.frame(requestId, TcpTransport.OK, handle(method, body));
+      } catch (Exception e) {
+        String message = e.getMessage() == null ? e.toString() : e.getMessage();
+        response = TcpTransport.frame(requestId, TcpTransport.FAILED, message.getBytes(StandardCharsets.UTF_8));
+      }
+      send(response);
+    }
+
+    void send(byte[] response) {
+      synchronized (writes) {
+        writes.add(ByteBuffer.wrap(response));
+      }
+      writeReady.add(this);
+      selector.wakeup();
+    }
+
+    void write() throws IOException {
+      synchronized (writes) {
+        while (!writes.isEmpty()) {
+          ByteBuffer next = writes.peek();
+          channel.write(next);
+          if (next.hasRemaining()) {
+            return; // socket buffer full, wait for the next OP_WRITE
+          }
+          writes.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+      }
+    }
+  }
+
+  private byte[] handle(byte method, byte[] body) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+    switch (method) {
+      case TcpTransport.PREPARE: {
+        long proposalNumber = in.readLong();
+        long fromSlot = in.readLong();
+        byte[] reply = local.prepare(proposalNumber, fromSlot);
+        return TcpTransport.payload(out -> TcpTransport.writeBytes(out, reply));
+      }
+      case TcpTransport.ACCEPT: {
+        long proposalNumber = in.readLong();
+        long slot = in.readLong();
+        byte[] reply = local.accept(proposalNumber, slot, TcpTransport.readBytes(in));
+        return TcpTransport.payload(out -> TcpTransport.writeBytes(out, reply));
+      }
+      case TcpTransport.LEARN: {
+        long slot = in.readLong();
+        local.learn(slot, TcpTransport.readBytes(in));
+        return new byte[0];
+      }
+      case TcpTransport.PING: {
+        String reply = local.ping();
+        return TcpTransport.payload(out -> TcpTransport.writeString(out, reply));
+      }
+      case TcpTransport.FORWARD: {
+        String reply = local.forward(TcpTransport.readBytes(in));
+        return TcpTransport.payload(out -> TcpTransport.writeString(out, reply));
+      }
+      case TcpTransport.GET_SERVER_ID: {
+        int id = local.getServerId();
+        return TcpTransport.payload(out -> out.writeInt(id));
+      }
+      case TcpTransport.GET_LEADER_ID: {
+        int id = local.getLeaderId();
+        return TcpTransport.payload(out -> out.writeInt(id));
+      }
+      case TcpTransport.PUT: {
+        String key = TcpTransport.readString(in);
+        String reply = local.put(key, TcpTransport.readString(in));
+        return TcpTransport.payload(out -> TcpTransport.writeString(out, reply));
+      }
+      case TcpTransport.GET: {
+        String reply = local.get(TcpTransport.readString(in));
+        return TcpTransport.payload(out -> TcpTransport.writeString(out, reply));
+      }
+      case TcpTransport.DELETE: {
+        String reply = local.delete(TcpTransport.readString(in));
+        return TcpTransport.payload(out -> TcpTransport.writeString(out, reply));
+      }
+      case TcpTransport.MULTI_PUT: {
+        String reply = local.multiPut(TcpTransport.readStringMap(in));
+        return TcpTransport.payload(out -> TcpTransport.writeString(out, reply));
+      }
+      case TcpTransport.MULTI_GET: {
+        List<String> keys = TcpTransport.readStrings(in);
+        Map<String, String> values = local.multiGet(keys, TcpTransport.readString(in));
+        return TcpTransport.payload(out -> TcpTransport.writeStringMap(out, values));
+      }
+      case TcpTransport.MULTI_DELETE: {
+        String reply = local.multiDelete(TcpTransport.readStrings(in));
+        return TcpTransport.payload(out -> TcpTransport.writeString(out, reply));
+      }
+      case TcpTransport.ADD_MEMBER: {
+        String reply = local.addMember(TcpTransport.readString(in));
+        return TcpTransport.payload(out -> TcpTransport.writeString(out, reply));
+      }
+      case TcpTransport.REMOVE_MEMBER: {
+        String reply = local.removeMember(TcpTransport.readString(in));
+        return TcpTransport.payload(out -> TcpTransport.writeString(out, reply));
+      }
+      case TcpTransport.GET_MEMBERS: {
+        String reply = local.getMembers();
+        return TcpTransport.payload(out -> TcpTransport.writeString(out, reply));
+      }
+      case TcpTransport.SCAN: {
+        String prefix = TcpTransport.readString(in);
+        String token = in.readBoolean() ? TcpTransport.readString(in) : null;
+        ScanPage page = local.scan(prefix, token, in.readInt());
+        return TcpTransport.payload(page::write);
+      }
+      case TcpTransport.FETCH_LOG: {
+        long fromSlot = in.readLong();
+        byte[] reply = local.fetchLog(fromSlot, in.readInt());
+        return TcpTransport.payload(out -> TcpTransport.writeBytes(out, reply));
+      }
+      case TcpTransport.FETCH_SNAPSHOT: {
+        String token = in.readBoolean() ? TcpTransport.readString(in) : null;
+        ScanPage page = local.fetchSnapshot(token, in.readInt());
+        return TcpTransport.payload(page::write);
+      }
+      case TcpTransport.GET_ALL: { // peers from before SCAN
+        byte[] reply = local.getAll().getBytes(StandardCharsets.UTF_8);
+        return TcpTransport.payload(out -> TcpTransport.writeBytes(out, reply));
+      }
+      case TcpTransport.GET_WITH_MODE: {
+        String key = TcpTransport.readString(in);
+        String reply = local.get(key, TcpTransport.readString(in));
+        return TcpTransport.payload(out -> TcpTransport.writeString(out, reply));
+      }
+      case TcpTransport.CONFIRM_LEADER: {
+        byte[] reply = local.confirmLeader(in.readLong());
+        return TcpTransport.payload(out -> TcpTransport.writeBytes(out, reply));
+      }
+      case TcpTransport.READ_INDEX: {
+        long index = local.readIndex();
+        return TcpTransport.payload(out -> out.writeLong(index));
+      }
+      default:
+        throw new IOException("Unknown method " + method);
+    }
+  }
+}
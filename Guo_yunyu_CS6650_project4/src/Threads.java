@@ -0,0 +1,108 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+// Execution model: work that mostly waits (calls to peers, proposals waiting out their accept round)
+// runs one task per thread, on virtual threads when the JVM has them (Java 21+). Looked up reflectively
+// so the code still builds and runs on Java 17, where the same executors fall back to cached pools of
+// daemon platform threads; -Dpaxos.virtualThreads=false forces the fallback. A cached pool has no limit,
+// so every perTask executor is bounded by its owner: the batcher's pipeline window, the proposer's
+// fan-out to a fixed set of peers, one heartbeat per peer. Request handlers, whose number is up to the
+// clients, get a bounded() pool, and the server admits only so many requests waiting on consensus.
+// Under a simulation (ClusterSimulator) the server's threads and executors are simulated threads of the
+// DeterministicScheduler instead.
+public final class Threads {
+  private static final Logger logger = Logger.getLogger(Threads.class.getName());
+  private static final Method OF_VIRTUAL = lookup();
+
+  private Threads() {
+  }
+
+  private static Method lookup() {
+    if (!Boolean.parseBoolean(System.getProperty("paxos.virtualThreads", "true"))) {
+      return null;
+    }
+    try {
+      return Thread.class.getMethod("ofVirtual");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  public static boolean virtual() {
+    return OF_VIRTUAL != null;
+  }
+
+  // Threads named name-0, name-1, ...: virtual if available, otherwise daemon platform threads
+  public static ThreadFactory factory(String name) {
+    if (OF_VIRTUAL != null) {
+      try {
+        Object builder = OF_VIRTUAL.invoke(null);
+        builder = builder.getClass().getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+        return (ThreadFactory) builder.getClass().getMethod("factory").invoke(builder);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        logger.warning("Virtual threads unavailable, using platform threads: " + e);
+      }
+    }
+    return daemonFactory(name);
+  }
+
+  // Starts one of the server's long-running threads
+  public static void start(Thread thread) {
+    DeterministicScheduler simulation = Clock.simulation();
+    if (simulation != null) {
+      simulation.spawn(thread::run, thread.getName());
+    } else {
+      thread.start();
+    }
+  }
+
+  // A new thread per task, for tasks that block; whoever submits is responsible for bounding them
+  public static ExecutorService perTask(String name) {
+    DeterministicScheduler simulation = Clock.simulation();
+    if (simulation != null) {
+      return simulation.perTask(name);
+    }
+    ThreadFactory factory = factory(name);
+    if (OF_VIRTUAL != null) {
+      try {
+        Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        return (ExecutorService) perTask.invoke(null, factory);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        logger.warning("Thread-per-task executor unavailable: " + e);
+      }
+    }
+    // platform threads are expensive to start, so idle ones are kept for a minute and reused
+    return Executors.newCachedThreadPool(factory);
+  }
+
+  // One thread running tasks in order
+  public static ExecutorService single(String name) {
+    DeterministicScheduler simulation = Clock.simulation();
+    return simulation != null ? simulation.serial(name) : Executors.newSingleThreadExecutor(factory(name));
+  }
+
+  // At most `threads` tasks at once and up to `queued` more waiting; past that execute() throws
+  // RejectedExecutionException. Idle threads exit after a minute.
+  public static ExecutorService bounded(String name, int threads, int queued) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<>(queued), factory(name));
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  private static ThreadFactory daemonFactory(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, name + "-" + count.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+}
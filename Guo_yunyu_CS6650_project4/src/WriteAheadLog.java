@@ -0,0 +1,317 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+// Append-only log of acceptor promises/accepts and applied decisions, split into numbered segments
+// (wal-<n>.log). Each record is [int length][byte type][payload][int crc32]. Callers that need a record
+// on disk before replying call sync(); with group commit one fsync from the flusher thread covers every
+// record appended up to that point.
+public class WriteAheadLog {
+  private static final Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+
+  public static final byte PROMISE = 1; // [ballot]
+  public static final byte ACCEPT = 2;  // [slot][ballot][len][value]
+  public static final byte DECIDE = 3;  // [slot][len][value], written when a slot is applied
+
+  private final File dir;
+  private final boolean groupCommit;
+  private final Object lock = new Object();
+  private RandomAccessFile file;
+  private FileChannel channel;
+  private long segment;
+  // positions count bytes across all segments since this log was opened
+  private long appended = 0;
+  private long durable = 0;
+  private long segmentStart = 0;
+  private volatile boolean running = true;
+  // set by the first failed fsync; after that nothing appended can be trusted to reach disk, so every
+  // sync() fails with it and the replica stops instead of acknowledging records it may have lost
+  private IOException failure;
+  private Thread flusher;
+
+  private final AtomicLong records = new AtomicLong();
+  private final AtomicLong fsyncs = new AtomicLong();
+
+  public WriteAheadLog(File dir, boolean groupCommit) throws IOException {
+    this.dir = dir;
+    this.groupCommit = groupCommit;
+    dir.mkdirs();
+    long[] existing = segments(dir);
+    openSegment(existing.length == 0 ? 0 : existing[existing.length - 1] + 1);
+    if (groupCommit) {
+      flusher = new Thread(this::flushLoop, "wal-flusher");
+      flusher.setDaemon(true);
+      Threads.start(flusher);
+    }
+  }
+
+  private void openSegment(long number) throws IOException {
+    segment = number;
+    file = new RandomAccessFile(new File(dir, "wal-" + number + ".log"), "rw");
+    file.setLength(0);
+    channel = file.getChannel();
+    Snapshot.syncDirectory(dir); // so the new segment itself, not just its records, survives a crash
+  }
+
+  // Returns the log position to pass to sync()
+  public long append(byte type, byte[] payload) throws IOException {
+    ByteBuffer record = ByteBuffer.allocate(4 + 1 + payload.length + 4);
+    record.putInt(1 + payload.length);
+    record.put(type);
+    record.put(payload);
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), 4, 1 + payload.length);
+    record.putInt((int) crc.getValue());
+    record.flip();
+    synchronized (lock) {
+      while (record.hasRemaining()) {
+        channel.write(record);
+      }
+      appended = segmentStart + channel.position();
+      records.incrementAndGet();
+      return appended;
+    }
+  }
+
+  // Blocks until everything up to position is on disk
+  public void sync(long position) throws IOException {
+    if (!groupCommit) {
+      synchronized (lock) {
+        checkHealthy();
+        if (durable < position) {
+          force();
+          durable = appended;
+        }
+      }
+      return;
+    }
+    synchronized (lock) {
+      Clock.signalAll(lock); // wake the flusher
+      while (durable < position) {
+        checkHealthy();
+        try {
+          Clock.await(lock, 0);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted waiting for WAL sync");
+        }
+      }
+    }
+  }
+
+  // Callers hold lock
+  private void checkHealthy() throws IOException {
+    if (failure != null) {
+      throw new IOException("WAL is unusable after a failed fsync", failure);
+    }
+    if (!running) {
+      throw new IOException("WAL is closed");
+    }
+  }
+
+  // Callers hold lock
+  private void force() throws IOException {
+    try {
+      channel.force(false);
+      fsyncs.incrementAndGet();
+    } catch (IOException e) {
+      failed(e);
+      throw e;
+    }
+  }
+
+  // Callers hold lock
+  private void failed(IOException e) {
+    if (failure == null) {
+      failure = e;
+      logger.severe("WAL fsync failed, refusing further syncs: " + e.getMessage());
+    }
+    Clock.signalAll(lock);
+  }
+
+  private void flushLoop() {
+    while (running) {
+      long target;
+      FileChannel toForce;
+      synchronized (lock) {
+        while (durable >= appended && running && failure == null) {
+          try {
+            Clock.await(lock, 0);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (!running || failure != null) {
+          return; // close() forces whatever is left; after a failure there is nothing left to do
+        }
+        target = appended;
+        toForce = channel;
+      }
+      try {
+        // appends may continue while this fsync runs; they are picked up by the next one
+        toForce.force(false);
+        fsyncs.incrementAndGet();
+      } catch (IOException e) {
+        synchronized (lock) {
+          failed(e);
+        }
+        return;
+      }
+      synchronized (lock) {
+        durable = Math.max(durable, target);
+        Clock.signalAll(lock);
+      }
+    }
+  }
+
+  // Starts a new segment; checkpoint records (acceptor state) are written to it first and synced, so
+  // segments before it are no longer needed once a snapshot covering them is on disk. Returns the new
+  // segment number.
+  public long rotate(List<byte[]> checkpointTypesAndPayloads) throws IOException {
+    synchronized (lock) {
+      checkHealthy();
+      force();
+      segmentStart += channel.position();
+      durable = appended = segmentStart;
+      file.close();
+      openSegment(segment + 1);
+      for (byte[] record : checkpointTypesAndPayloads) {
+        append(record[0], Arrays.copyOfRange(record, 1, record.length));
+      }
+      force();
+      durable = appended;
+      return segment;
+    }
+  }
+
+  public void deleteSegmentsBefore(long number) {
+    for (long old : segments(dir)) {
+      if (old < number && !new File(dir, "wal-" + old + ".log").delete()) {
+        logger.warning("Failed to delete WAL segment " + old);
+      }
+    }
+  }
+
+  public long getRecordCount() {
+    return records.get();
+  }
+
+  public long getFsyncCount() {
+    return fsyncs.get();
+  }
+
+  public void close() {
+    synchronized (lock) {
+      running = false;
+      Clock.signalAll(lock);
+      try {
+        channel.force(false);
+        file.close();
+      } catch (IOException e) {
+        logger.warning("Failed to close WAL: " + e.getMessage());
+      }
+    }
+  }
+
+  interface RecordHandler {
+    void handle(byte type, ByteBuffer payload);
+  }
+
+  // Replays every segment in order; a torn or corrupt record ends replay of that segment
+  public static long replay(File dir, RecordHandler handler) throws IOException {
+    long count = 0;
+    for (long number : segments(dir)) {
+      File segmentFile = new File(dir, "wal-" + number + ".log");
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)))) {
+        while (true) {
+          int length;
+          try {
+            length = in.readInt();
+          } catch (EOFException e) {
+            break;
+          }
+          if (length <= 0 || length > 64 * 1024 * 1024) {
+            logger.warning("Corrupt record length in " + segmentFile + ", ignoring the rest of the segment");
+            break;
+          }
+          byte[] body = new byte[length];
+          int storedCrc;
+          try {
+            in.readFully(body);
+            storedCrc = in.readInt();
+          } catch (EOFException e) {
+            logger.warning("Torn record at end of " + segmentFile);
+            break;
+          }
+          CRC32 crc = new CRC32();
+          crc.update(body);
+          if ((int) crc.getValue() != storedCrc) {
+            logger.warning("Checksum mismatch in " + segmentFile + ", ignoring the rest of the segment");
+            break;
+          }
+          handler.handle(body[0], ByteBuffer.wrap(body, 1, body.length - 1).slice());
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  private static long[] segments(File dir) {
+    List<Long> numbers = new ArrayList<>();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        String name = f.getName();
+        if (name.startsWith("wal-") && name.endsWith(".log")) {
+          numbers.add(Long.parseLong(name.substring(4, name.length() - 4)));
+        }
+      }
+    }
+    long[] sorted = new long[numbers.size()];
+    for (int i = 0; i < sorted.length; i++) {
+      sorted[i] = numbers.get(i);
+    }
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  // Payload helpers
+  public static byte[] promise(long ballot) {
+    return ByteBuffer.allocate(8).putLong(ballot).array();
+  }
+
+  public static byte[] accept(long slot, long ballot, byte[] value) {
+    return ByteBuffer.allocate(8 + 8 + 4 + value.length).putLong(slot).putLong(ballot).putInt(value.length).put(value).array();
+  }
+
+  public static byte[] decide(long slot, byte[] value) {
+    return ByteBuffer.allocate(8 + 4 + value.length).putLong(slot).putInt(value.length).put(value).array();
+  }
+
+  public static byte[] readValue(ByteBuffer payload) {
+    byte[] value = new byte[payload.getInt()];
+    payload.get(value);
+    return value;
+  }
+
+  // A checkpoint record for rotate(): type byte followed by payload
+  public static byte[] checkpointRecord(byte type, byte[] payload) {
+    byte[] record = new byte[1 + payload.length];
+    record[0] = type;
+    System.arraycopy(payload, 0, record, 1, payload.length);
+    return record;
+  }
+}